@@ -0,0 +1,37 @@
+package me.dawson.promosaic.benchmark;
+
+import java.util.Random;
+
+// synthetic 4:3 ARGB images of a given size in megapixels, noise over a
+// gradient so no kernel gets to skip uniform runs
+public class BenchmarkImage {
+	private static final long SEED = 0x70726f6dL;
+
+	public final int width;
+	public final int height;
+	public final int[] pixels;
+
+	public BenchmarkImage(int megapixels) {
+		double pixelCount = megapixels * 1000000.0;
+		width = (int) Math.round(Math.sqrt(pixelCount * 4 / 3));
+		height = (int) Math.round(pixelCount / width);
+		pixels = new int[width * height];
+
+		Random random = new Random(SEED);
+		for (int y = 0; y < height; ++y) {
+			int row = y * width;
+			for (int x = 0; x < width; ++x) {
+				int r = (x * 255 / width + random.nextInt(32)) & 0xff;
+				int g = (y * 255 / height + random.nextInt(32)) & 0xff;
+				int b = random.nextInt(256);
+				pixels[row + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	public int[] copy() {
+		int[] copy = new int[pixels.length];
+		System.arraycopy(pixels, 0, copy, 0, pixels.length);
+		return copy;
+	}
+}
@@ -0,0 +1,61 @@
+package me.dawson.promosaic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import me.dawson.promosaic.MosaicEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// box blur of a whole image, threads caps the stripes of each pass, the
+// pool never runs more than one per core
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class BlurBenchmark {
+	@Param({ "1", "12", "48" })
+	public int megapixels;
+
+	@Param({ "2", "8", "32" })
+	public int radius;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	@Param({ "1" })
+	public int iterations;
+
+	private int mWidth;
+	private int mHeight;
+	private int[] mPixels;
+	private int[] mScratch;
+
+	@Setup
+	public void setup() {
+		BenchmarkImage image = new BenchmarkImage(megapixels);
+		mWidth = image.width;
+		mHeight = image.height;
+		mPixels = image.pixels;
+		mScratch = new int[mPixels.length];
+	}
+
+	// in place over the last result, the cost does not depend on content
+	@Benchmark
+	public int[] blur() {
+		MosaicEngine.blur(mPixels, mScratch, mWidth, mHeight, radius,
+				iterations, threads);
+		return mPixels;
+	}
+}
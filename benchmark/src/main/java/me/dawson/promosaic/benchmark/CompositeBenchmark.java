@@ -0,0 +1,96 @@
+package me.dawson.promosaic.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.dawson.promosaic.EditLog;
+import me.dawson.promosaic.EditSpec;
+import me.dawson.promosaic.Effect;
+import me.dawson.promosaic.EffectParams;
+import me.dawson.promosaic.MosaicEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// coverage of a set of finger strokes over a whole image, and the blend of
+// a cover over the image by it, as a save does band by band
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class CompositeBenchmark {
+	private static final long SEED = 0x6d61736bL;
+
+	@Param({ "1", "12", "48" })
+	public int megapixels;
+
+	@Param({ "16", "256" })
+	public int strokes;
+
+	// points of every stroke, and stroke width as a share of image width
+	private static final int STROKE_POINTS = 32;
+	private static final float STROKE_WIDTH = 0.03f;
+
+	private int mWidth;
+	private int mHeight;
+	private int[] mBase;
+	private int[] mCover;
+	private EditSpec mSpec;
+	private MosaicEngine mEngine;
+
+	@Setup
+	public void setup() {
+		BenchmarkImage image = new BenchmarkImage(megapixels);
+		mWidth = image.width;
+		mHeight = image.height;
+		mBase = image.pixels;
+		mCover = image.copy();
+		MosaicEngine.pixelate(mCover, mWidth, mHeight, 32, false);
+
+		EditLog log = new EditLog(mWidth, mHeight);
+		Random random = new Random(SEED);
+		float width = mWidth * STROKE_WIDTH;
+		float step = mWidth / 20f;
+		for (int stroke = 0; stroke < strokes; ++stroke) {
+			float x = random.nextFloat() * mWidth;
+			float y = random.nextFloat() * mHeight;
+			for (int point = 1; point < STROKE_POINTS; ++point) {
+				float nextX = x + (random.nextFloat() - 0.5f) * step;
+				float nextY = y + (random.nextFloat() - 0.5f) * step;
+				log.addLine(x, y, nextX, nextY, width, false, Effect.GRID);
+				x = nextX;
+				y = nextY;
+			}
+			log.endPath();
+		}
+
+		EffectParams params = new EffectParams();
+		params.effect = Effect.GRID;
+		mSpec = new EditSpec(me.dawson.promosaic.Mode.PATH, params, log);
+		mEngine = new MosaicEngine();
+		rasterize();
+	}
+
+	@Benchmark
+	public boolean rasterize() {
+		return mEngine.rasterize(mSpec, 1f, 0, mHeight, mWidth);
+	}
+
+	// in place over the last result, coverage and so the cost stay the same
+	@Benchmark
+	public int[] composite() {
+		mEngine.composite(mBase, 0, mCover, 0, mWidth, mHeight);
+		return mBase;
+	}
+}
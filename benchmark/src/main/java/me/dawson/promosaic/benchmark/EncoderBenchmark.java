@@ -0,0 +1,91 @@
+package me.dawson.promosaic.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import me.dawson.promosaic.JpegBandEncoder;
+import me.dawson.promosaic.PngBandEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// streamed export encoders over a whole image in bands the size export
+// uses, the output is only counted
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class EncoderBenchmark {
+	private static final int BAND_HEIGHT = 256;
+
+	@Param({ "1", "12" })
+	public int megapixels;
+
+	@Param({ "50", "90" })
+	public int quality;
+
+	private int mWidth;
+	private int mHeight;
+	private int[] mPixels;
+	private CountingStream mOut;
+
+	@Setup
+	public void setup() {
+		BenchmarkImage image = new BenchmarkImage(megapixels);
+		mWidth = image.width;
+		mHeight = image.height;
+		mPixels = image.pixels;
+		mOut = new CountingStream();
+	}
+
+	@Benchmark
+	public long jpeg() throws IOException {
+		JpegBandEncoder encoder = new JpegBandEncoder(quality);
+		encoder.begin(mOut, mWidth, mHeight);
+		for (int top = 0; top < mHeight; top += BAND_HEIGHT) {
+			encoder.write(mPixels, top * mWidth, mWidth,
+					Math.min(BAND_HEIGHT, mHeight - top));
+		}
+		encoder.finish();
+		return mOut.count;
+	}
+
+	// quality does not apply, narrow with -p quality=90
+	@Benchmark
+	public long png() throws IOException {
+		PngBandEncoder encoder = new PngBandEncoder();
+		encoder.begin(mOut, mWidth, mHeight);
+		for (int top = 0; top < mHeight; top += BAND_HEIGHT) {
+			encoder.write(mPixels, top * mWidth, mWidth,
+					Math.min(BAND_HEIGHT, mHeight - top));
+		}
+		encoder.finish();
+		return mOut.count;
+	}
+
+	private static class CountingStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int value) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			count += length;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package me.dawson.promosaic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import me.dawson.promosaic.MosaicEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// grid pixelation of a whole image, with top-left or mean cell colors
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class PixelateBenchmark {
+	@Param({ "1", "12", "48" })
+	public int megapixels;
+
+	@Param({ "8", "32", "128" })
+	public int grid;
+
+	@Param({ "false", "true" })
+	public boolean average;
+
+	private int mWidth;
+	private int mHeight;
+	private int[] mPixels;
+
+	@Setup
+	public void setup() {
+		BenchmarkImage image = new BenchmarkImage(megapixels);
+		mWidth = image.width;
+		mHeight = image.height;
+		mPixels = image.pixels;
+	}
+
+	// in place over the last result, the cost does not depend on content
+	@Benchmark
+	public int[] pixelate() {
+		MosaicEngine.pixelate(mPixels, mWidth, mHeight, grid, average);
+		return mPixels;
+	}
+}
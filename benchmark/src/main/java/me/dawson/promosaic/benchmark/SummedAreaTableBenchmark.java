@@ -0,0 +1,62 @@
+package me.dawson.promosaic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import me.dawson.promosaic.SummedAreaTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// building the sums of a whole image once, and pixelating it again from
+// them at another grid width, which no longer reads the image
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class SummedAreaTableBenchmark {
+	@Param({ "1", "12" })
+	public int megapixels;
+
+	@Param({ "8", "32", "128" })
+	public int grid;
+
+	private int mWidth;
+	private int mHeight;
+	private int[] mPixels;
+	private int[] mOut;
+	private SummedAreaTable mTable;
+
+	@Setup
+	public void setup() {
+		BenchmarkImage image = new BenchmarkImage(megapixels);
+		mWidth = image.width;
+		mHeight = image.height;
+		mPixels = image.pixels;
+		mOut = new int[mPixels.length];
+		mTable = new SummedAreaTable();
+		mTable.build(mPixels, mWidth, mHeight);
+	}
+
+	@Benchmark
+	public SummedAreaTable build() {
+		mTable.build(mPixels, mWidth, mHeight);
+		return mTable;
+	}
+
+	@Benchmark
+	public int[] regrid() {
+		mTable.pixelate(grid, mOut, 0, 0, mWidth, mHeight);
+		return mOut;
+	}
+}
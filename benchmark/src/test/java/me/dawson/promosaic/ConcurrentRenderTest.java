@@ -0,0 +1,166 @@
+package me.dawson.promosaic;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+// one spec rendered by many workers at once, the way BatchRunner does it,
+// must come out the same as a render on a single thread
+public class ConcurrentRenderTest {
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final int BAND_HEIGHT = 64;
+	private static final int THREADS = 4;
+	private static final int IMAGES = 16;
+
+	// one engine per worker, like the engines of BatchRunner
+	private static class Engines extends ThreadLocal<MosaicEngine> {
+
+		@Override
+		protected MosaicEngine initialValue() {
+			return new MosaicEngine();
+		}
+	}
+
+	@Test
+	public void copiedSpecs() throws Exception {
+		for (Effect effect : Effect.values()) {
+			final EditSpec spec = createSpec(effect);
+			int[] expected = render(new MosaicEngine(), spec, createImage());
+			// every worker copies the spec once, like BatchRunner.run
+			final ThreadLocal<EditSpec> specs = new ThreadLocal<EditSpec>() {
+
+				@Override
+				protected EditSpec initialValue() {
+					return new EditSpec(spec);
+				}
+			};
+			for (int[] pixels : renderAll(specs)) {
+				assertArrayEquals(effect.name(), expected, pixels);
+			}
+		}
+	}
+
+	@Test
+	public void sharedSpec() throws Exception {
+		for (Effect effect : Effect.values()) {
+			final EditSpec spec = createSpec(effect);
+			int[] expected = render(new MosaicEngine(), spec, createImage());
+			// the log and its index are only read, queries keep their state
+			// in the engine's cursor
+			final ThreadLocal<EditSpec> specs = new ThreadLocal<EditSpec>() {
+
+				@Override
+				protected EditSpec initialValue() {
+					return spec;
+				}
+			};
+			for (int[] pixels : renderAll(specs)) {
+				assertArrayEquals(effect.name(), expected, pixels);
+			}
+		}
+	}
+
+	private static List<int[]> renderAll(final ThreadLocal<EditSpec> specs)
+			throws Exception {
+		final Engines engines = new Engines();
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+			for (int image = 0; image < IMAGES; ++image) {
+				futures.add(executor.submit(new Callable<int[]>() {
+
+					@Override
+					public int[] call() {
+						return render(engines.get(), specs.get(),
+								createImage());
+					}
+				}));
+			}
+			List<int[]> results = new ArrayList<int[]>();
+			for (Future<int[]> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// the band loop of ExportEngine.render over an image in memory
+	private static int[] render(MosaicEngine engine, EditSpec spec,
+			int[] image) {
+		int[] out = new int[WIDTH * HEIGHT];
+		int[] source = new int[4];
+		float scale = spec.log.getScale(WIDTH);
+		for (int top = 0; top < HEIGHT; top += BAND_HEIGHT) {
+			int bottom = Math.min(top + BAND_HEIGHT, HEIGHT);
+			int rows = bottom - top;
+			System.arraycopy(image, top * WIDTH, out, top * WIDTH, WIDTH
+					* rows);
+			if (!engine.rasterize(spec, scale, top, bottom, WIDTH)) {
+				continue;
+			}
+
+			source[0] = 0;
+			source[1] = top;
+			source[2] = WIDTH;
+			source[3] = bottom;
+			MosaicEngine.getEffectSource(spec.params, source, WIDTH, HEIGHT);
+			int sourceRows = source[3] - source[1];
+			int[] pixels = new int[WIDTH * sourceRows];
+			System.arraycopy(image, source[1] * WIDTH, pixels, 0, WIDTH
+					* sourceRows);
+			engine.applyEffect(spec.params, pixels, 0, source[1], WIDTH,
+					sourceRows);
+			engine.composite(out, top * WIDTH, pixels, (top - source[1])
+					* WIDTH, WIDTH, rows);
+		}
+		return out;
+	}
+
+	// strokes and rects over the whole image, some of them erasing
+	private static EditSpec createSpec(Effect effect) {
+		Random random = new Random(effect.ordinal());
+		EditLog log = new EditLog(WIDTH / 2, HEIGHT / 2);
+		for (int path = 0; path < 24; ++path) {
+			float x = random.nextFloat() * WIDTH / 2;
+			float y = random.nextFloat() * HEIGHT / 2;
+			boolean erase = path % 5 == 4;
+			for (int segment = 0; segment < 12; ++segment) {
+				float nextX = x + random.nextFloat() * 40 - 20;
+				float nextY = y + random.nextFloat() * 40 - 20;
+				log.addLine(x, y, nextX, nextY, 6 + path % 8, erase, effect);
+				x = nextX;
+				y = nextY;
+			}
+			log.endPath();
+		}
+
+		EffectParams params = new EffectParams();
+		params.effect = effect;
+		params.gridWidth = 12;
+		params.gridAverage = true;
+		params.blurRadius = 3;
+		params.blurIterations = 2;
+		params.mosaicColor = 0xff336699;
+		return new EditSpec(Mode.PATH, params, log);
+	}
+
+	private static int[] createImage() {
+		Random random = new Random(42);
+		int[] pixels = new int[WIDTH * HEIGHT];
+		for (int index = 0; index < pixels.length; ++index) {
+			pixels[index] = 0xff000000 | random.nextInt(0x1000000);
+		}
+		return pixels;
+	}
+}
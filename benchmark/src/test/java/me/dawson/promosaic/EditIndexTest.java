@@ -0,0 +1,135 @@
+package me.dawson.promosaic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+// queries find exactly the records whose bounds meet the area, in log
+// order, the same as a scan over every record
+public class EditIndexTest {
+	private static final int WIDTH = 3000;
+	private static final int HEIGHT = 2000;
+	private static final int QUERIES = 500;
+
+	@Test
+	public void matchesScan() {
+		EditLog log = createLog(400);
+		EditIndex index = log.getIndex();
+		EditIndex.Cursor cursor = new EditIndex.Cursor();
+		Random random = new Random(3);
+		for (int query = 0; query < QUERIES; ++query) {
+			float[] area = createArea(random);
+			assertQuery(log, index, cursor, area);
+		}
+	}
+
+	// records appended after the index was built go in with insert, paths
+	// grown by a segment insert again
+	@Test
+	public void insertMatchesScan() {
+		EditLog log = new EditLog(WIDTH, HEIGHT);
+		EditIndex index = new EditIndex(log);
+		EditIndex.Cursor cursor = new EditIndex.Cursor();
+		Random random = new Random(5);
+		for (int path = 0; path < 100; ++path) {
+			float x = random.nextFloat() * WIDTH;
+			float y = random.nextFloat() * HEIGHT;
+			for (int segment = 0; segment < 8; ++segment) {
+				float nextX = x + random.nextFloat() * 200 - 100;
+				float nextY = y + random.nextFloat() * 200 - 100;
+				log.addLine(x, y, nextX, nextY, 20, false, Effect.GRID);
+				index.insert(log.size() - 1);
+				x = nextX;
+				y = nextY;
+			}
+			log.endPath();
+			assertQuery(log, index, cursor, createArea(random));
+		}
+	}
+
+	// one cursor per thread, or the same cursor again, gives the same result
+	@Test
+	public void cursorsAreIndependent() {
+		EditLog log = createLog(200);
+		EditIndex index = log.getIndex();
+		EditIndex.Cursor first = new EditIndex.Cursor();
+		EditIndex.Cursor second = new EditIndex.Cursor();
+		Random random = new Random(11);
+		for (int query = 0; query < QUERIES; ++query) {
+			float[] area = createArea(random);
+			int count = index.query(first, area[0], area[1], area[2], area[3]);
+			index.query(second, 0, 0, WIDTH, HEIGHT);
+			int[] expected = copy(first.getResult(), count);
+			assertEquals(count, index.query(first, area[0], area[1], area[2],
+					area[3]));
+			assertArrayEquals(expected, copy(first.getResult(), count));
+		}
+	}
+
+	@Test
+	public void emptyLog() {
+		EditLog log = new EditLog(WIDTH, HEIGHT);
+		assertEquals(0, log.getIndex().query(new EditIndex.Cursor(), 0, 0,
+				WIDTH, HEIGHT));
+	}
+
+	private static void assertQuery(EditLog log, EditIndex index,
+			EditIndex.Cursor cursor, float[] area) {
+		int count = index.query(cursor, area[0], area[1], area[2], area[3]);
+		assertArrayEquals(scan(log, area), copy(cursor.getResult(), count));
+	}
+
+	// every record whose bounds meet area, in log order
+	private static int[] scan(EditLog log, float[] area) {
+		int[] found = new int[log.size()];
+		int count = 0;
+		float[] bounds = new float[4];
+		for (int record = 0; record < log.size(); ++record) {
+			log.getBounds(record, bounds);
+			if (bounds[0] > area[2] || bounds[2] < area[0]
+					|| bounds[1] > area[3] || bounds[3] < area[1]) {
+				continue;
+			}
+			found[count++] = record;
+		}
+		return copy(found, count);
+	}
+
+	// rects and paths of every size, some reaching past the image
+	private static EditLog createLog(int records) {
+		Random random = new Random(records);
+		EditLog log = new EditLog(WIDTH, HEIGHT);
+		for (int record = 0; record < records; ++record) {
+			float x = random.nextFloat() * (WIDTH + 200) - 100;
+			float y = random.nextFloat() * (HEIGHT + 200) - 100;
+			float size = random.nextInt(4) == 0 ? random.nextFloat() * 1500
+					: random.nextFloat() * 80;
+			if (record % 3 == 0) {
+				log.addRect(x, y, x + size, y + size, record % 7 == 0,
+						Effect.BLUR);
+			} else {
+				log.addLine(x, y, x + size, y - size / 2, 2 + record % 30,
+						record % 7 == 0, Effect.GRID);
+				log.endPath();
+			}
+		}
+		return log;
+	}
+
+	// points, small and large areas, some outside the image
+	private static float[] createArea(Random random) {
+		float left = random.nextFloat() * (WIDTH + 400) - 200;
+		float top = random.nextFloat() * (HEIGHT + 400) - 200;
+		float size = random.nextInt(5) == 0 ? 0 : random.nextFloat() * 900;
+		return new float[] { left, top, left + size, top + size };
+	}
+
+	private static int[] copy(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+}
@@ -0,0 +1,180 @@
+package me.dawson.promosaic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+// what writeTo stores comes back the same, what it never stores is refused
+public class EditLogTest {
+	private static final int WIDTH = 800;
+	private static final int HEIGHT = 600;
+
+	// offsets in the bytes of a log, past the 24 bytes of its header
+	private static final int RECORDS = 16;
+	private static final int POINTS = 20;
+	private static final int FIRST_RECORD = 24;
+
+	@Test
+	public void roundTrip() throws IOException {
+		EditLog log = createLog();
+		assertSame(log, EditLog.fromByteArray(log.toByteArray()));
+		assertSame(log, EditLog.readFrom(new ByteArrayInputStream(log
+				.toByteArray())));
+	}
+
+	@Test
+	public void emptyRoundTrip() throws IOException {
+		EditLog log = new EditLog(WIDTH, HEIGHT);
+		EditLog read = EditLog.fromByteArray(log.toByteArray());
+		assertEquals(WIDTH, read.getWidth());
+		assertEquals(HEIGHT, read.getHeight());
+		assertEquals(0, read.size());
+	}
+
+	@Test
+	public void copyIsSame() {
+		EditLog log = createLog();
+		assertSame(log, new EditLog(log));
+	}
+
+	@Test
+	public void badMagic() {
+		byte[] bytes = createLog().toByteArray();
+		bytes[0] ^= 1;
+		assertCorrupted(bytes);
+	}
+
+	@Test
+	public void badVersion() {
+		byte[] bytes = createLog().toByteArray();
+		ByteBuffer.wrap(bytes).putInt(4, 2);
+		assertCorrupted(bytes);
+	}
+
+	@Test
+	public void truncated() {
+		byte[] bytes = createLog().toByteArray();
+		for (int length = 0; length < bytes.length; length += 7) {
+			byte[] cut = new byte[length];
+			System.arraycopy(bytes, 0, cut, 0, length);
+			assertCorrupted(cut);
+		}
+	}
+
+	// counts far past the stream fail before anything that large is made
+	@Test
+	public void hugeCounts() {
+		byte[] bytes = createLog().toByteArray();
+		ByteBuffer.wrap(bytes).putInt(RECORDS, Integer.MAX_VALUE);
+		assertCorrupted(bytes);
+
+		bytes = createLog().toByteArray();
+		ByteBuffer.wrap(bytes).putInt(POINTS, Integer.MAX_VALUE);
+		assertCorrupted(bytes);
+
+		bytes = createLog().toByteArray();
+		ByteBuffer.wrap(bytes).putInt(RECORDS, -1);
+		assertCorrupted(bytes);
+	}
+
+	@Test
+	public void badType() {
+		byte[] bytes = createLog().toByteArray();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		buffer.putInt(FIRST_RECORD, buffer.getInt(FIRST_RECORD) | 0x0f);
+		assertCorrupted(bytes);
+	}
+
+	// start and count of a record have to stay inside the points
+	@Test
+	public void badPoints() {
+		int start = FIRST_RECORD + 4;
+		int count = FIRST_RECORD + 8;
+
+		byte[] bytes = createLog().toByteArray();
+		ByteBuffer.wrap(bytes).putInt(start, -2);
+		assertCorrupted(bytes);
+
+		bytes = createLog().toByteArray();
+		ByteBuffer.wrap(bytes).putInt(start, Integer.MAX_VALUE - 1);
+		assertCorrupted(bytes);
+
+		bytes = createLog().toByteArray();
+		ByteBuffer.wrap(bytes).putInt(count, 3);
+		assertCorrupted(bytes);
+
+		bytes = createLog().toByteArray();
+		ByteBuffer.wrap(bytes).putInt(count, Integer.MAX_VALUE);
+		assertCorrupted(bytes);
+	}
+
+	// a rect first, then paths, some of them erasing
+	private static EditLog createLog() {
+		Random random = new Random(7);
+		EditLog log = new EditLog(WIDTH, HEIGHT);
+		log.addRect(10, 20, 200, 150, false, Effect.GRID);
+		for (int path = 0; path < 6; ++path) {
+			float x = random.nextFloat() * WIDTH;
+			float y = random.nextFloat() * HEIGHT;
+			Effect effect = Effect.values()[path % Effect.values().length];
+			for (int segment = 0; segment < 5; ++segment) {
+				float nextX = x + random.nextFloat() * 60 - 30;
+				float nextY = y + random.nextFloat() * 60 - 30;
+				log.addLine(x, y, nextX, nextY, 4 + path, path == 3, effect);
+				x = nextX;
+				y = nextY;
+			}
+			log.endPath();
+		}
+		log.addRect(300, 300, 420, 380, true, Effect.BLUR);
+		return log;
+	}
+
+	private static void assertSame(EditLog expected, EditLog actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		assertEquals(expected.size(), actual.size());
+		float[] expectedBounds = new float[4];
+		float[] actualBounds = new float[4];
+		for (int index = 0; index < expected.size(); ++index) {
+			assertEquals(expected.getType(index), actual.getType(index));
+			assertEquals(expected.isErase(index), actual.isErase(index));
+			assertEquals(expected.getEffect(index), actual.getEffect(index));
+			assertEquals(expected.getPointLength(index),
+					actual.getPointLength(index));
+			if (expected.getType(index) == EditLog.TYPE_PATH) {
+				assertEquals(expected.getPathWidth(index),
+						actual.getPathWidth(index), 0f);
+			}
+
+			int length = expected.getPointLength(index);
+			float[] expectedPoints = new float[length];
+			float[] actualPoints = new float[length];
+			System.arraycopy(expected.getPoints(),
+					expected.getPointOffset(index), expectedPoints, 0, length);
+			System.arraycopy(actual.getPoints(), actual.getPointOffset(index),
+					actualPoints, 0, length);
+			assertArrayEquals(expectedPoints, actualPoints, 0f);
+
+			expected.getBounds(index, expectedBounds);
+			actual.getBounds(index, actualBounds);
+			assertArrayEquals(expectedBounds, actualBounds, 0f);
+		}
+	}
+
+	private static void assertCorrupted(byte[] bytes) {
+		try {
+			EditLog.fromByteArray(bytes);
+			fail("read " + bytes.length + " corrupted bytes");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
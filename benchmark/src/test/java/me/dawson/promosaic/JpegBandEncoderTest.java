@@ -0,0 +1,123 @@
+package me.dawson.promosaic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+// output of the band encoder must decode with a stock decoder, close to
+// what was fed in, whatever the bands
+public class JpegBandEncoderTest {
+
+	@Test
+	public void decodesAtAnySize() throws IOException {
+		int[][] sizes = { { 1, 1 }, { 8, 8 }, { 17, 9 }, { 16, 33 },
+				{ 333, 251 }, };
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			int[] pixels = createImage(width, height);
+			BufferedImage image = decode(encode(pixels, width, height, 90,
+					height));
+			assertNotNull(image);
+			assertEquals(width, image.getWidth());
+			assertEquals(height, image.getHeight());
+		}
+	}
+
+	@Test
+	public void closeToSource() throws IOException {
+		int width = 320;
+		int height = 240;
+		int[] pixels = createImage(width, height);
+		BufferedImage image = decode(encode(pixels, width, height, 90, 64));
+		double psnr = getPsnr(pixels, image);
+		assertTrue("psnr " + psnr, psnr > 35);
+	}
+
+	@Test
+	public void bandsDoNotMatter() throws IOException {
+		int width = 123;
+		int height = 77;
+		int[] pixels = createImage(width, height);
+		byte[] expected = encode(pixels, width, height, 75, height);
+		int[] bands = { 1, 7, 16, 50 };
+		for (int band : bands) {
+			assertArrayEquals("band " + band, expected, encode(pixels, width,
+					height, 75, band));
+		}
+	}
+
+	@Test
+	public void qualityShrinksOutput() throws IOException {
+		int width = 256;
+		int height = 256;
+		int[] pixels = createImage(width, height);
+		int high = encode(pixels, width, height, 95, height).length;
+		int low = encode(pixels, width, height, 30, height).length;
+		assertTrue(high + " " + low, low < high);
+	}
+
+	static byte[] encode(int[] pixels, int width, int height, int quality,
+			int band) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JpegBandEncoder encoder = new JpegBandEncoder(quality);
+		encoder.begin(out, width, height);
+		for (int top = 0; top < height; top += band) {
+			encoder.write(pixels, top * width, width,
+					Math.min(band, height - top));
+		}
+		encoder.finish();
+		return out.toByteArray();
+	}
+
+	static BufferedImage decode(byte[] bytes) throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(bytes));
+	}
+
+	// smooth gradients and a little noise, like a photo
+	static int[] createImage(int width, int height) {
+		Random random = new Random(width * 31 + height);
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				int r = clamp(x * 255 / width + random.nextInt(9) - 4);
+				int g = clamp(y * 255 / height + random.nextInt(9) - 4);
+				int b = clamp((int) (128 + 100 * Math.sin((x + y) * 0.05)));
+				pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+		return pixels;
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(value, 255));
+	}
+
+	// over the three channels
+	private static double getPsnr(int[] pixels, BufferedImage image) {
+		int width = image.getWidth();
+		double error = 0;
+		for (int index = 0; index < pixels.length; ++index) {
+			int expected = pixels[index];
+			int actual = image.getRGB(index % width, index / width);
+			for (int shift = 0; shift < 24; shift += 8) {
+				int diff = ((expected >> shift) & 0xff)
+						- ((actual >> shift) & 0xff);
+				error += diff * diff;
+			}
+		}
+		double mean = error / (pixels.length * 3.0);
+		return 10 * Math.log10(255 * 255 / mean);
+	}
+}
@@ -0,0 +1,73 @@
+package me.dawson.promosaic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+// pixel buffers are allocated once per slot and grow only, the budget is
+// shared by every reservation, bitmaps need a device and are not tested
+public class LayerPoolTest {
+
+	@Test
+	public void reusesPixels() {
+		LayerPool pool = new LayerPool();
+		int[] first = pool.obtainPixels(LayerPool.PIXELS_IN, 1000);
+		assertEquals(1000, first.length);
+		assertSame(first, pool.obtainPixels(LayerPool.PIXELS_IN, 1000));
+		assertSame(first, pool.obtainPixels(LayerPool.PIXELS_IN, 10));
+		assertEquals(1, pool.getAllocations());
+		assertEquals(2, pool.getReuses());
+		assertEquals(4000L, pool.getBytesAllocated());
+		assertEquals(8000L, pool.getBytesAvoided());
+	}
+
+	@Test
+	public void growsPixels() {
+		LayerPool pool = new LayerPool();
+		int[] small = pool.obtainPixels(LayerPool.PIXELS_OUT, 100);
+		int[] large = pool.obtainPixels(LayerPool.PIXELS_OUT, 200);
+		assertNotSame(small, large);
+		assertSame(large, pool.obtainPixels(LayerPool.PIXELS_OUT, 150));
+		assertEquals(2, pool.getAllocations());
+	}
+
+	// the in, out and sample buffers of one band are never the same array
+	@Test
+	public void slotsAreSeparate() {
+		LayerPool pool = new LayerPool();
+		int[] in = pool.obtainPixels(LayerPool.PIXELS_IN, 64);
+		int[] out = pool.obtainPixels(LayerPool.PIXELS_OUT, 64);
+		int[] sample = pool.obtainPixels(LayerPool.PIXELS_SAMPLE, 64);
+		assertNotSame(in, out);
+		assertNotSame(in, sample);
+		assertNotSame(out, sample);
+	}
+
+	@Test
+	public void budgetIsShared() {
+		LayerPool pool = new LayerPool(3 * TiledLayer.TILE_BYTES);
+		assertTrue(pool.reserveBytes(TiledLayer.TILE_BYTES));
+		assertTrue(pool.reserveBytes(2 * TiledLayer.TILE_BYTES));
+		assertFalse(pool.hasRoom(1));
+		assertFalse(pool.reserveBytes(1));
+		assertEquals(3 * TiledLayer.TILE_BYTES, pool.getReservedBytes());
+
+		pool.releaseBytes(TiledLayer.TILE_BYTES);
+		assertTrue(pool.hasRoom(TiledLayer.TILE_BYTES));
+		assertFalse(pool.hasRoom(TiledLayer.TILE_BYTES + 1));
+		assertTrue(pool.reserveBytes(TiledLayer.TILE_BYTES));
+	}
+
+	@Test
+	public void noBudget() {
+		LayerPool pool = new LayerPool();
+		assertTrue(pool.reserveBytes(Long.MAX_VALUE / 2));
+		assertTrue(pool.hasRoom(Long.MAX_VALUE / 4));
+		pool.releaseBytes(Long.MAX_VALUE);
+		assertEquals(0L, pool.getReservedBytes());
+	}
+}
@@ -0,0 +1,51 @@
+package me.dawson.promosaic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+// png is lossless, every pixel and its alpha must come back
+public class PngBandEncoderTest {
+
+	@Test
+	public void roundTrip() throws IOException {
+		int[][] sizes = { { 1, 1 }, { 17, 9 }, { 300, 200 }, };
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			int[] pixels = new int[width * height];
+			Random random = new Random(width);
+			for (int index = 0; index < pixels.length; ++index) {
+				pixels[index] = random.nextInt();
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PngBandEncoder encoder = new PngBandEncoder();
+			encoder.begin(out, width, height);
+			for (int top = 0; top < height; top += 64) {
+				encoder.write(pixels, top * width, width,
+						Math.min(64, height - top));
+			}
+			encoder.finish();
+
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(out
+					.toByteArray()));
+			assertNotNull(image);
+			assertEquals(width, image.getWidth());
+			assertEquals(height, image.getHeight());
+			for (int index = 0; index < pixels.length; ++index) {
+				assertEquals("pixel " + index, pixels[index],
+						image.getRGB(index % width, index / width));
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package me.dawson.promosaic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+// segments chain from the first sample to the last, close samples are
+// dropped and a finer tolerance only splits curves further
+public class StrokeSmootherTest {
+	private static final float MIN_DISTANCE = 4f;
+	private static final float TOLERANCE = 0.5f;
+
+	private static class Recorder implements StrokeSmoother.Listener {
+		final List<float[]> segments = new ArrayList<float[]>();
+
+		@Override
+		public void onSegment(float startX, float startY, float stopX,
+				float stopY) {
+			segments.add(new float[] { startX, startY, stopX, stopY });
+		}
+	}
+
+	@Test
+	public void chainsFromFirstToLast() {
+		Recorder recorder = new Recorder();
+		StrokeSmoother smoother = new StrokeSmoother(recorder);
+		float[] samples = createCircle(100f, 40);
+		draw(smoother, samples, TOLERANCE);
+
+		List<float[]> segments = recorder.segments;
+		assertEquals(smoother.getSegmentCount(), segments.size());
+		assertEquals(samples[0], segments.get(0)[0], 0f);
+		assertEquals(samples[1], segments.get(0)[1], 0f);
+		for (int index = 1; index < segments.size(); ++index) {
+			float[] previous = segments.get(index - 1);
+			assertEquals(previous[2], segments.get(index)[0], 0f);
+			assertEquals(previous[3], segments.get(index)[1], 0f);
+		}
+		float[] last = segments.get(segments.size() - 1);
+		assertEquals(samples[samples.length - 2], last[2], 0f);
+		assertEquals(samples[samples.length - 1], last[3], 0f);
+		assertFalse(smoother.isActive());
+	}
+
+	// a curve through the midpoints stays between the circle and the
+	// polygon of its samples
+	@Test
+	public void staysOnCircle() {
+		Recorder recorder = new Recorder();
+		StrokeSmoother smoother = new StrokeSmoother(recorder);
+		float radius = 100f;
+		int count = 40;
+		draw(smoother, createCircle(radius, count), TOLERANCE);
+
+		double inner = radius * Math.cos(Math.PI / count) - TOLERANCE;
+		for (float[] segment : recorder.segments) {
+			double distance = Math.hypot(segment[2], segment[3]);
+			assertTrue(distance >= inner && distance <= radius + TOLERANCE);
+		}
+	}
+
+	@Test
+	public void finerToleranceSplitsMore() {
+		float[] samples = createCircle(200f, 24);
+		Recorder coarse = new Recorder();
+		draw(new StrokeSmoother(coarse), samples, 4f);
+		Recorder fine = new Recorder();
+		draw(new StrokeSmoother(fine), samples, 0.1f);
+		assertTrue(fine.segments.size() > coarse.segments.size());
+	}
+
+	// samples under the minimum distance never shape the curve, the last one
+	// still ends the stroke
+	@Test
+	public void dropsCloseSamples() {
+		Recorder recorder = new Recorder();
+		StrokeSmoother smoother = new StrokeSmoother(recorder);
+		smoother.begin(0f, 0f, MIN_DISTANCE, TOLERANCE);
+		for (int step = 1; step <= 10; ++step) {
+			smoother.add(step * 10f, 0f);
+			smoother.add(step * 10f + 1f, 0f);
+		}
+		smoother.end();
+
+		// the last close sample is taken when the stroke ends
+		assertEquals(21, smoother.getSampleCount());
+		assertEquals(9, smoother.getDroppedCount());
+		float[] last = recorder.segments.get(recorder.segments.size() - 1);
+		assertEquals(101f, last[2], 0f);
+		assertEquals(0f, last[3], 0f);
+
+		// a straight stroke stays straight
+		for (float[] segment : recorder.segments) {
+			assertEquals(0f, segment[1], 1e-4f);
+			assertEquals(0f, segment[3], 1e-4f);
+		}
+	}
+
+	@Test
+	public void singleTapDrawsNothing() {
+		Recorder recorder = new Recorder();
+		StrokeSmoother smoother = new StrokeSmoother(recorder);
+		smoother.begin(5f, 5f, MIN_DISTANCE, TOLERANCE);
+		smoother.end();
+		assertEquals(0, recorder.segments.size());
+	}
+
+	@Test
+	public void cancelStopsStroke() {
+		Recorder recorder = new Recorder();
+		StrokeSmoother smoother = new StrokeSmoother(recorder);
+		smoother.begin(0f, 0f, MIN_DISTANCE, TOLERANCE);
+		smoother.add(20f, 0f);
+		smoother.add(40f, 10f);
+		int segments = recorder.segments.size();
+		smoother.cancel();
+		smoother.add(60f, 20f);
+		smoother.end();
+		assertFalse(smoother.isActive());
+		assertEquals(segments, recorder.segments.size());
+	}
+
+	private static void draw(StrokeSmoother smoother, float[] samples,
+			float tolerance) {
+		smoother.begin(samples[0], samples[1], MIN_DISTANCE, tolerance);
+		for (int index = 2; index < samples.length; index += 2) {
+			smoother.add(samples[index], samples[index + 1]);
+		}
+		smoother.end();
+	}
+
+	// x, y pairs of most of a circle around the origin
+	private static float[] createCircle(float radius, int count) {
+		float[] samples = new float[count * 2];
+		for (int index = 0; index < count; ++index) {
+			double angle = 1.8 * Math.PI * index / (count - 1);
+			samples[index * 2] = (float) (radius * Math.cos(angle));
+			samples[index * 2 + 1] = (float) (radius * Math.sin(angle));
+		}
+		return samples;
+	}
+}
@@ -0,0 +1,144 @@
+package me.dawson.promosaic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+// means from the table are the rounded means the engine picks by summing
+// every pixel, so a grid from the table looks the same as one from a pass
+public class SummedAreaTableTest {
+	private static final int WIDTH = 333;
+	private static final int HEIGHT = 257;
+
+	@Test
+	public void meanMatchesSum() {
+		int[] pixels = createImage(WIDTH, HEIGHT);
+		SummedAreaTable table = new SummedAreaTable();
+		table.build(pixels, WIDTH, HEIGHT);
+		assertTrue(table.isComplete());
+
+		Random random = new Random(9);
+		for (int area = 0; area < 2000; ++area) {
+			int left = random.nextInt(WIDTH);
+			int top = random.nextInt(HEIGHT);
+			int right = left + 1 + random.nextInt(WIDTH - left);
+			int bottom = top + 1 + random.nextInt(HEIGHT - top);
+			assertEquals(getMean(pixels, WIDTH, left, top, right, bottom),
+					table.getMean(left, top, right, bottom));
+		}
+	}
+
+	// sums of white go past the sign bit of an int, the mean is still white
+	@Test
+	public void largeAreas() {
+		int width = 3000;
+		int height = 2900;
+		int[] pixels = new int[width * height];
+		Arrays.fill(pixels, 0xffffffff);
+		SummedAreaTable table = new SummedAreaTable();
+		table.build(pixels, width, height);
+		assertEquals(0xffffffff, table.getMean(0, 0, width, height));
+		assertEquals(0xffffffff, table.getMean(1, 1, width, height));
+	}
+
+	@Test
+	public void bandsMatchBuild() {
+		int[] pixels = createImage(WIDTH, HEIGHT);
+		SummedAreaTable whole = new SummedAreaTable();
+		whole.build(pixels, WIDTH, HEIGHT);
+
+		SummedAreaTable banded = new SummedAreaTable();
+		banded.reset(WIDTH, HEIGHT);
+		for (int top = 0; top < HEIGHT; top += 64) {
+			assertFalse(banded.isComplete());
+			banded.addRows(pixels, top * WIDTH, Math.min(64, HEIGHT - top));
+		}
+		assertTrue(banded.isComplete());
+
+		Random random = new Random(13);
+		for (int area = 0; area < 500; ++area) {
+			int left = random.nextInt(WIDTH);
+			int top = random.nextInt(HEIGHT);
+			int right = left + 1 + random.nextInt(WIDTH - left);
+			int bottom = top + 1 + random.nextInt(HEIGHT - top);
+			assertEquals(whole.getMean(left, top, right, bottom),
+					banded.getMean(left, top, right, bottom));
+		}
+	}
+
+	@Test
+	public void pixelateMatchesEngine() {
+		for (int grid = 2; grid <= 64; grid += 7) {
+			int[] expected = createImage(WIDTH, HEIGHT);
+			int[] actual = expected.clone();
+			MosaicEngine.pixelate(expected, WIDTH, HEIGHT, grid, true);
+			MosaicEngine.pixelate(actual, WIDTH, HEIGHT, grid,
+					new SummedAreaTable());
+			assertArrayEquals("grid " + grid, expected, actual);
+		}
+	}
+
+	// a region anywhere in the image gets the colors of the whole grid
+	@Test
+	public void regionMatchesWhole() {
+		int grid = 24;
+		int[] pixels = createImage(WIDTH, HEIGHT);
+		SummedAreaTable table = new SummedAreaTable();
+		table.build(pixels, WIDTH, HEIGHT);
+		int[] whole = new int[WIDTH * HEIGHT];
+		table.pixelate(grid, whole, 0, 0, WIDTH, HEIGHT);
+
+		Random random = new Random(17);
+		for (int area = 0; area < 100; ++area) {
+			int left = random.nextInt(WIDTH);
+			int top = random.nextInt(HEIGHT);
+			int width = 1 + random.nextInt(WIDTH - left);
+			int height = 1 + random.nextInt(HEIGHT - top);
+			int[] region = new int[width * height];
+			table.pixelate(grid, region, left, top, width, height);
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < width; ++x) {
+					assertEquals(whole[(top + y) * WIDTH + left + x],
+							region[y * width + x]);
+				}
+			}
+		}
+	}
+
+	// channel by channel through the engine's rounding
+	private static int getMean(int[] pixels, int width, int left, int top,
+			int right, int bottom) {
+		long[] sums = new long[4];
+		for (int y = top; y < bottom; ++y) {
+			for (int x = left; x < right; ++x) {
+				int rgb = pixels[y * width + x];
+				sums[0] += rgb >>> 24;
+				sums[1] += (rgb >> 16) & 0xff;
+				sums[2] += (rgb >> 8) & 0xff;
+				sums[3] += rgb & 0xff;
+			}
+		}
+		long count = (long) (right - left) * (bottom - top);
+		int color = 0;
+		for (int channel = 0; channel < 4; ++channel) {
+			color = (color << 8) | MosaicEngine.getMean(sums[channel], count);
+		}
+		return color;
+	}
+
+	// random colors, alpha too
+	private static int[] createImage(int width, int height) {
+		Random random = new Random(width * 31 + height);
+		int[] pixels = new int[width * height];
+		for (int index = 0; index < pixels.length; ++index) {
+			pixels[index] = random.nextInt();
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,179 @@
+package me.dawson.promosaic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import me.dawson.promosaic.BitmapUtil.Size;
+import android.util.Log;
+
+// applies one edit spec to many images without a view, images are
+// processed in parallel and every worker streams its image in bands, so
+// memory is bounded by the worker count and not by the image sizes
+public class BatchRunner {
+	public static final String TAG = "BatchRunner";
+
+	// appended to the file name stem of every output
+	public static final String OUT_SUFFIX = "_mosaic";
+
+	// rough peak memory of one worker, band buffers and decoded regions
+	private static final long WORKER_MEMORY = 32L * 1024 * 1024;
+
+	public interface Listener {
+		// called on a worker thread when an image is done
+		public void onImageDone(Result result);
+	}
+
+	public static class Result {
+		public final String inPath;
+		public final String outPath;
+		public boolean succeed;
+		public int width;
+		public int height;
+		public long millis;
+		public ExportMetrics metrics;
+
+		public Result(String inPath, String outPath) {
+			this.inPath = inPath;
+			this.outPath = outPath;
+		}
+
+		// megapixels per second
+		public float getThroughput() {
+			if (millis <= 0) {
+				return 0f;
+			}
+			return width * (float) height / millis / 1000f;
+		}
+	}
+
+	private final int mThreads;
+	private final ThreadLocal<ExportEngine> mEngines;
+
+	public BatchRunner() {
+		this(getDefaultThreads());
+	}
+
+	public BatchRunner(int threads) {
+		mThreads = Math.max(threads, 1);
+		mEngines = new ThreadLocal<ExportEngine>() {
+
+			@Override
+			protected ExportEngine initialValue() {
+				return new ExportEngine(new LayerPool());
+			}
+		};
+	}
+
+	// one worker per core, as long as the heap can hold them
+	public static int getDefaultThreads() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		long memory = Runtime.getRuntime().maxMemory() / 2;
+		return (int) Math.max(Math.min(cores, memory / WORKER_MEMORY), 1);
+	}
+
+	// output path of an input inside outDir
+	public static String getOutPath(String inPath, File outDir) {
+		String name = new File(inPath).getName();
+		int index = name.lastIndexOf(".");
+		String stem = index > 0 ? name.substring(0, index) : name;
+		String extension = index > 0 ? name.substring(index) : ".jpg";
+		return new File(outDir, stem + OUT_SUFFIX + extension).getPath();
+	}
+
+	// blocks until every image is done, results are in input order,
+	// listener may be null
+	public List<Result> run(List<String> inputs, final File outDir,
+			final EditSpec spec, final ExportOptions options,
+			final Listener listener) {
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(mThreads,
+				new ThreadFactory() {
+					private int mCount;
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable, "batch-" + mCount++);
+					}
+				});
+
+		// every worker reads its own copy of the spec, taken from a
+		// snapshot so nothing of the caller's log or params is shared
+		final EditSpec snapshot = new EditSpec(spec);
+		final ThreadLocal<EditSpec> specs = new ThreadLocal<EditSpec>() {
+
+			@Override
+			protected EditSpec initialValue() {
+				return new EditSpec(snapshot);
+			}
+		};
+
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (final String inPath : inputs) {
+			futures.add(executor.submit(new Callable<Result>() {
+
+				@Override
+				public Result call() {
+					Result result = process(inPath, outDir, specs.get(),
+							options);
+					if (listener != null) {
+						listener.onImageDone(result);
+					}
+					return result;
+				}
+			}));
+		}
+
+		List<Result> results = new ArrayList<Result>(inputs.size());
+		long pixels = 0;
+		int failed = 0;
+		try {
+			for (int index = 0; index < futures.size(); ++index) {
+				Result result = futures.get(index).get();
+				results.add(result);
+				if (result.succeed) {
+					pixels += (long) result.width * result.height;
+				} else {
+					failed++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+			return results;
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+
+		long millis = Math.max(System.currentTimeMillis() - start, 1);
+		Log.d(TAG, "batch of " + inputs.size() + " images, " + failed
+				+ " failed, " + millis + "ms, " + (pixels / millis / 1000f)
+				+ " megapixels/s on " + mThreads + " threads");
+		return results;
+	}
+
+	private Result process(String inPath, File outDir, EditSpec spec,
+			ExportOptions options) {
+		Result result = new Result(inPath, getOutPath(inPath, outDir));
+		long start = System.currentTimeMillis();
+		Size size = BitmapUtil.getImageSize(inPath);
+		result.width = size.width;
+		result.height = size.height;
+		result.metrics = mEngines.get().exportFile(inPath, spec, options,
+				result.outPath, null);
+		result.succeed = result.metrics != null;
+		result.millis = System.currentTimeMillis() - start;
+		Log.d(TAG, inPath + " " + (result.succeed ? "done" : "failed")
+				+ " in " + result.millis + "ms, " + result.getThroughput()
+				+ " megapixels/s");
+		return result;
+	}
+}
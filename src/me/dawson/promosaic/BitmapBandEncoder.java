@@ -0,0 +1,54 @@
+package me.dawson.promosaic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+
+// collects the rows into one image sized bitmap for the platform encoder,
+// for formats without a streaming writer, memory grows with the image
+public class BitmapBandEncoder implements ExportEngine.BandEncoder {
+	public static final String TAG = "BitmapBandEncoder";
+
+	private final CompressFormat mFormat;
+	private final int mQuality;
+
+	private OutputStream mOut;
+	private Bitmap bmImage;
+	private int mRow;
+
+	public BitmapBandEncoder(CompressFormat format, int quality) {
+		mFormat = format;
+		mQuality = quality;
+	}
+
+	@Override
+	public void begin(OutputStream out, int width, int height)
+			throws IOException {
+		mOut = out;
+		bmImage = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+		mRow = 0;
+	}
+
+	@Override
+	public void write(int[] pixels, int offset, int stride, int rows)
+			throws IOException {
+		bmImage.setPixels(pixels, offset, stride, 0, mRow, bmImage.getWidth(),
+				rows);
+		mRow += rows;
+	}
+
+	@Override
+	public void finish() throws IOException {
+		try {
+			if (!bmImage.compress(mFormat, mQuality, mOut)) {
+				throw new IOException("failed to compress " + mFormat);
+			}
+		} finally {
+			bmImage.recycle();
+			bmImage = null;
+		}
+	}
+}
@@ -1,11 +1,24 @@
 package me.dawson.promosaic;
 
+import java.io.IOException;
+
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Build;
+import android.util.Log;
 
 public class BitmapUtil {
+	public static final String TAG = "BitmapUtil";
+
+	// default box blur radius, in pixels
+	public static final int BLUR_RADIUS = 8;
+
+	// default box blur passes
+	public static final int BLUR_ITERATIONS = 1;
+
 	public static class Size {
 		public int width;
 		public int height;
@@ -21,6 +34,48 @@ public class BitmapUtil {
 		return bitmap;
 	}
 
+	// decode every sampleSize-th pixel, sampleSize should be a power of two
+	public static Bitmap getImage(String absPath, int sampleSize) {
+		Options options = new Options();
+		options.inSampleSize = sampleSize;
+		Bitmap bitmap = BitmapFactory.decodeFile(absPath, options);
+		return bitmap;
+	}
+
+	// largest power of two sample size which keeps the image covering the
+	// rect it is fitted to inside a reqWidth x reqHeight box, in either
+	// orientation, so long sides are compared to long and short to short
+	public static int getSampleSize(int width, int height, int reqWidth,
+			int reqHeight) {
+		int longSide = Math.max(width, height);
+		int shortSide = Math.min(width, height);
+		int reqLong = Math.max(reqWidth, reqHeight);
+		int reqShort = Math.min(reqWidth, reqHeight);
+
+		// fitted, the side that limits the scale is the one to cover
+		int sampleSize = 1;
+		while (longSide / (sampleSize * 2) >= reqLong
+				|| shortSide / (sampleSize * 2) >= reqShort) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	// random access decoder for image regions, null before API 10 or when
+	// the format is not supported
+	public static BitmapRegionDecoder getRegionDecoder(String absPath) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
+			return null;
+		}
+
+		try {
+			return BitmapRegionDecoder.newInstance(absPath, false);
+		} catch (IOException e) {
+			Log.w(TAG, "no region decoder for " + absPath);
+			return null;
+		}
+	}
+
 	public static Size getImageSize(String absPath) {
 		Options options = new Options();
 		options.inPreferredConfig = Config.ALPHA_8;
@@ -31,72 +86,32 @@ public class BitmapUtil {
 	}
 
 	public static Bitmap blur(Bitmap bitmap) {
-		int iterations = 1;
-		int radius = 8;
 		int width = bitmap.getWidth();
 		int height = bitmap.getHeight();
 		int[] inPixels = new int[width * height];
 		int[] outPixels = new int[width * height];
 		Bitmap blured = Bitmap.createBitmap(width, height,
 				Bitmap.Config.ARGB_8888);
-		bitmap.getPixels(inPixels, 0, width, 0, 0, width, height);
-		for (int i = 0; i < iterations; i++) {
-			blur(inPixels, outPixels, width, height, radius);
-			blur(outPixels, inPixels, height, width, radius);
-		}
-		blured.setPixels(inPixels, 0, width, 0, 0, width, height);
+		blur(bitmap, blured, inPixels, outPixels);
 		return blured;
 	}
 
-	private static void blur(int[] in, int[] out, int width, int height,
-			int radius) {
-		int widthMinus1 = width - 1;
-		int tableSize = 2 * radius + 1;
-		int divide[] = new int[256 * tableSize];
-
-		for (int index = 0; index < 256 * tableSize; index++) {
-			divide[index] = index / tableSize;
-		}
-
-		int inIndex = 0;
-
-		for (int y = 0; y < height; y++) {
-			int outIndex = y;
-			int ta = 0, tr = 0, tg = 0, tb = 0;
-
-			for (int i = -radius; i <= radius; i++) {
-				int rgb = in[inIndex + clamp(i, 0, width - 1)];
-				ta += (rgb >> 24) & 0xff;
-				tr += (rgb >> 16) & 0xff;
-				tg += (rgb >> 8) & 0xff;
-				tb += rgb & 0xff;
-			}
-
-			for (int x = 0; x < width; x++) {
-				out[outIndex] = (divide[ta] << 24) | (divide[tr] << 16)
-						| (divide[tg] << 8) | divide[tb];
-
-				int i1 = x + radius + 1;
-				if (i1 > widthMinus1)
-					i1 = widthMinus1;
-				int i2 = x - radius;
-				if (i2 < 0)
-					i2 = 0;
-				int rgb1 = in[inIndex + i1];
-				int rgb2 = in[inIndex + i2];
-
-				ta += ((rgb1 >> 24) & 0xff) - ((rgb2 >> 24) & 0xff);
-				tr += ((rgb1 & 0xff0000) - (rgb2 & 0xff0000)) >> 16;
-				tg += ((rgb1 & 0xff00) - (rgb2 & 0xff00)) >> 8;
-				tb += (rgb1 & 0xff) - (rgb2 & 0xff);
-				outIndex += height;
-			}
-			inIndex += width;
-		}
+	public static void blur(Bitmap bitmap, Bitmap blured, int[] inPixels,
+			int[] outPixels) {
+		blur(bitmap, blured, inPixels, outPixels, BLUR_RADIUS,
+				BLUR_ITERATIONS);
 	}
 
-	private static int clamp(int x, int a, int b) {
-		return (x < a) ? a : (x > b) ? b : x;
+	// blur into an existing bitmap with caller owned pixel buffers, each
+	// buffer must hold at least width * height pixels
+	public static void blur(Bitmap bitmap, Bitmap blured, int[] inPixels,
+			int[] outPixels, int radius, int iterations) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		bitmap.getPixels(inPixels, 0, width, 0, 0, width, height);
+		MosaicEngine.blur(inPixels, outPixels, width, height, radius,
+				iterations);
+		blured.setPixels(inPixels, 0, width, 0, 0, width, height);
 	}
 
 }
@@ -0,0 +1,134 @@
+package me.dawson.promosaic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+// cover tiles of every image and effect seen lately, so switching effects
+// back and forth does not blur or pixelate again, the least recently used
+// covers are dropped as a whole when the tiles of all are over budget
+public class CoverCache {
+	public static final String TAG = "CoverCache";
+
+	// tiles of one cover and the part of each tile which is rendered, only
+	// masked pixels are, the rest of a tile is left as the pool gave it
+	public static class Cover {
+		public final TiledLayer tiles;
+		private final Rect[] mRendered;
+
+		private Cover(TiledLayer tiles) {
+			this.tiles = tiles;
+			mRendered = new Rect[tiles.getTileCount()];
+			for (int index = 0; index < mRendered.length; ++index) {
+				mRendered[index] = new Rect();
+			}
+		}
+
+		// whether the resident tile has rect rendered, in layer pixels
+		public boolean isRendered(int index, Rect rect) {
+			return tiles.contains(index) && mRendered[index].contains(rect);
+		}
+
+		// rendered part of the tile, empty if it is not resident
+		public void getRendered(int index, Rect rect) {
+			if (tiles.contains(index)) {
+				rect.set(mRendered[index]);
+			} else {
+				rect.setEmpty();
+			}
+		}
+
+		public void setRendered(int index, Rect rect) {
+			mRendered[index].set(rect);
+		}
+	}
+
+	private final LayerPool mPool;
+	private final int mMaxTiles;
+
+	// covers by key, in access order
+	private final LinkedHashMap<String, Cover> mCovers;
+
+	public CoverCache(LayerPool pool, int maxTiles) {
+		mPool = pool;
+		mMaxTiles = maxTiles;
+		mCovers = new LinkedHashMap<String, Cover>(8, 0.75f, true);
+	}
+
+	// image and the parameters its effect depends on, params at the size
+	// of the layer
+	public static String getKey(String path, int width, int height,
+			EffectParams params) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(path).append('|').append(width).append('x')
+				.append(height).append('|').append(params.effect);
+		if (params.effect == Effect.GRID) {
+			builder.append('|').append(params.gridWidth).append('|')
+					.append(params.gridAverage);
+		} else if (params.effect == Effect.BLUR) {
+			builder.append('|').append(params.blurRadius).append('|')
+					.append(params.blurIterations);
+		} else {
+			builder.append('|').append(params.mosaicColor);
+		}
+		return builder.toString();
+	}
+
+	// cover of key, empty if it is not cached, it becomes the most recent
+	public Cover obtain(String key, int width, int height) {
+		Cover cover = mCovers.get(key);
+		if (cover == null) {
+			cover = new Cover(new TiledLayer(mPool, width, height, mMaxTiles));
+			mCovers.put(key, cover);
+		}
+		return cover;
+	}
+
+	public boolean contains(String key) {
+		return mCovers.containsKey(key);
+	}
+
+	public int getTileCount() {
+		int count = 0;
+		for (Cover cover : mCovers.values()) {
+			count += cover.tiles.size();
+		}
+		return count;
+	}
+
+	// also when the pool has no room, covers are only a cache
+	public boolean isFull() {
+		return getTileCount() >= mMaxTiles
+				|| !mPool.hasRoom(TiledLayer.TILE_BYTES);
+	}
+
+	// drop the least recently used covers but keep until the tiles of all
+	// fit in the budget
+	public void trim(Cover keep) {
+		int count = getTileCount();
+		Iterator<Map.Entry<String, Cover>> iterator = mCovers.entrySet()
+				.iterator();
+		while (count > mMaxTiles && iterator.hasNext()) {
+			Map.Entry<String, Cover> entry = iterator.next();
+			Cover cover = entry.getValue();
+			if (cover == keep) {
+				continue;
+			}
+
+			count -= cover.tiles.size();
+			cover.tiles.clear();
+			iterator.remove();
+			Log.d(TAG, "drop cover " + entry.getKey());
+		}
+	}
+
+	public void clear() {
+		for (Cover cover : mCovers.values()) {
+			cover.tiles.clear();
+		}
+		mCovers.clear();
+	}
+}
@@ -0,0 +1,149 @@
+package me.dawson.promosaic;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+// undo of strokes, every stroke keeps the mask tiles it changed as they
+// were before it, deflated, so undo costs the area of the stroke only, the
+// oldest strokes are dropped when over the memory budget, redo is only the
+// undone records and those stay with the view
+public class EditHistory {
+	public static final String TAG = "EditHistory";
+
+	// one mask tile as it was before a stroke
+	public static class TileDelta {
+		public final int index;
+		public final boolean covered;
+		private final byte[] mPacked;
+
+		TileDelta(int index, boolean covered, byte[] packed) {
+			this.index = index;
+			this.covered = covered;
+			this.mPacked = packed;
+		}
+	}
+
+	// everything needed to take one stroke back
+	public static class Delta {
+		public final Mode mode;
+
+		// size of the edit log before the stroke
+		public final int logSize;
+		public final List<TileDelta> tiles;
+		private long mBytes;
+
+		Delta(Mode mode, int logSize) {
+			this.mode = mode;
+			this.logSize = logSize;
+			this.tiles = new ArrayList<TileDelta>();
+		}
+	}
+
+	private final long mMaxBytes;
+	private final LinkedList<Delta> mUndo;
+	private long mBytes;
+
+	// deflated bytes ever kept, dropped strokes included
+	private long mBytesAllocated;
+
+	private final Deflater mDeflater;
+	private final Inflater mInflater;
+	private byte[] mBuffer;
+
+	public EditHistory(long maxBytes) {
+		mMaxBytes = maxBytes;
+		mUndo = new LinkedList<Delta>();
+		mDeflater = new Deflater(Deflater.BEST_SPEED);
+		mInflater = new Inflater();
+	}
+
+	public Delta begin(Mode mode, int logSize) {
+		return new Delta(mode, logSize);
+	}
+
+	// keep length bytes of alpha as the tile before the stroke
+	public void addTile(Delta delta, int index, boolean covered,
+			byte[] alpha, int length) {
+		byte[] packed = deflate(alpha, length);
+		delta.tiles.add(new TileDelta(index, covered, packed));
+		delta.mBytes += packed.length;
+		mBytesAllocated += packed.length;
+	}
+
+	// push a finished stroke, the oldest ones go when over budget
+	public void push(Delta delta) {
+		mUndo.add(delta);
+		mBytes += delta.mBytes;
+		while (mBytes > mMaxBytes && mUndo.size() > 1) {
+			Delta dropped = mUndo.removeFirst();
+			mBytes -= dropped.mBytes;
+			Log.d(TAG, "drop stroke of " + dropped.mBytes + " bytes");
+		}
+	}
+
+	// last stroke which still has its tiles, null if it was dropped
+	public Delta popUndo(int logSize) {
+		Delta delta = mUndo.peekLast();
+		if (delta == null || delta.logSize != logSize - 1) {
+			return null;
+		}
+
+		mUndo.removeLast();
+		mBytes -= delta.mBytes;
+		return delta;
+	}
+
+	public void clear() {
+		mUndo.clear();
+		mBytes = 0;
+	}
+
+	public long getByteCount() {
+		return mBytes;
+	}
+
+	public long getBytesAllocated() {
+		return mBytesAllocated;
+	}
+
+	// alpha of a tile delta, alpha has to hold the whole tile
+	public void inflate(TileDelta tile, byte[] alpha) {
+		mInflater.reset();
+		mInflater.setInput(tile.mPacked);
+		try {
+			mInflater.inflate(alpha);
+		} catch (DataFormatException e) {
+			// only ever fed with our own output
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] deflate(byte[] data, int length) {
+		if (mBuffer == null || mBuffer.length < length + 64) {
+			mBuffer = new byte[length + 64];
+		}
+
+		mDeflater.reset();
+		mDeflater.setInput(data, 0, length);
+		mDeflater.finish();
+		int size = 0;
+		while (!mDeflater.finished()) {
+			if (size == mBuffer.length) {
+				byte[] buffer = new byte[mBuffer.length * 2];
+				System.arraycopy(mBuffer, 0, buffer, 0, size);
+				mBuffer = buffer;
+			}
+			size += mDeflater.deflate(mBuffer, size, mBuffer.length - size);
+		}
+
+		byte[] packed = new byte[size];
+		System.arraycopy(mBuffer, 0, packed, 0, size);
+		return packed;
+	}
+}
@@ -0,0 +1,158 @@
+package me.dawson.promosaic;
+
+import java.util.Arrays;
+
+// uniform grid over the bounds of the records of an edit log, in image
+// pixels, every cell lists the records touching it in log order, queries
+// keep their state in a cursor so threads can share the index
+public class EditIndex {
+	public static final String TAG = "EditIndex";
+
+	// results and scratch of the queries of one thread
+	public static class Cursor {
+		// query of each record was last found in, so results are unique
+		private int[] mStamps = new int[16];
+		private int mStamp;
+
+		private int[] mResult = new int[16];
+		private final float[] mBounds = new float[4];
+
+		// records of the last query, in log order
+		public int[] getResult() {
+			return mResult;
+		}
+	}
+
+	// cells per side of the grid at most, and their smallest size
+	private static final int MAX_CELLS = 64;
+	private static final int MIN_CELL_SIZE = 64;
+
+	private static final int INITIAL_CELL_ENTRIES = 4;
+
+	private final EditLog mLog;
+	private final int mCellSize;
+	private final int mColumns;
+	private final int mRows;
+
+	private final int[][] mCells;
+	private final int[] mCellCounts;
+
+	private final float[] mBounds;
+
+	public EditIndex(EditLog log) {
+		mLog = log;
+		int side = Math.max(log.getWidth(), log.getHeight());
+		mCellSize = Math.max((side + MAX_CELLS - 1) / MAX_CELLS, MIN_CELL_SIZE);
+		mColumns = Math.max((log.getWidth() + mCellSize - 1) / mCellSize, 1);
+		mRows = Math.max((log.getHeight() + mCellSize - 1) / mCellSize, 1);
+		mCells = new int[mColumns * mRows][];
+		mCellCounts = new int[mColumns * mRows];
+		mBounds = new float[4];
+
+		for (int record = 0; record < log.size(); ++record) {
+			insert(record);
+		}
+	}
+
+	// add a record, or the cells its grown bounds now reach, records have
+	// to come in log order
+	public void insert(int record) {
+		mLog.getBounds(record, mBounds);
+		int left = getColumn(mBounds[0]);
+		int top = getRow(mBounds[1]);
+		int right = getColumn(mBounds[2]);
+		int bottom = getRow(mBounds[3]);
+		for (int row = top; row <= bottom; ++row) {
+			for (int column = left; column <= right; ++column) {
+				add(row * mColumns + column, record);
+			}
+		}
+	}
+
+	// records whose bounds may intersect left, top, right, bottom, in log
+	// order, read them from the result of cursor
+	public int query(Cursor cursor, float left, float top, float right,
+			float bottom) {
+		if (cursor.mStamps.length < mLog.size()) {
+			cursor.mStamps = grow(cursor.mStamps, Math.max(mLog.size(),
+					cursor.mStamps.length * 2));
+		}
+		if (++cursor.mStamp == Integer.MAX_VALUE) {
+			Arrays.fill(cursor.mStamps, 0);
+			cursor.mStamp = 1;
+		}
+
+		int[] stamps = cursor.mStamps;
+		int stamp = cursor.mStamp;
+		float[] bounds = cursor.mBounds;
+
+		int count = 0;
+		int fromColumn = getColumn(left);
+		int fromRow = getRow(top);
+		int toColumn = getColumn(right);
+		int toRow = getRow(bottom);
+		for (int row = fromRow; row <= toRow; ++row) {
+			for (int column = fromColumn; column <= toColumn; ++column) {
+				int cell = row * mColumns + column;
+				int[] entries = mCells[cell];
+				for (int entry = 0; entry < mCellCounts[cell]; ++entry) {
+					int record = entries[entry];
+					if (stamps[record] == stamp) {
+						continue;
+					}
+
+					stamps[record] = stamp;
+					mLog.getBounds(record, bounds);
+					if (bounds[0] > right || bounds[2] < left
+							|| bounds[1] > bottom || bounds[3] < top) {
+						continue;
+					}
+
+					if (count == cursor.mResult.length) {
+						cursor.mResult = grow(cursor.mResult, count * 2);
+					}
+					cursor.mResult[count++] = record;
+				}
+			}
+		}
+
+		// cells are in log order each, merged they are not
+		Arrays.sort(cursor.mResult, 0, count);
+		return count;
+	}
+
+	private void add(int cell, int record) {
+		int[] entries = mCells[cell];
+		int count = mCellCounts[cell];
+		if (count > 0 && entries[count - 1] == record) {
+			return;
+		}
+
+		if (entries == null) {
+			entries = new int[INITIAL_CELL_ENTRIES];
+			mCells[cell] = entries;
+		} else if (count == entries.length) {
+			entries = grow(entries, count * 2);
+			mCells[cell] = entries;
+		}
+		entries[count] = record;
+		mCellCounts[cell] = count + 1;
+	}
+
+	// Arrays.copyOf is not there before API 9
+	private static int[] grow(int[] array, int length) {
+		int[] grown = new int[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private int getColumn(float x) {
+		int column = (int) Math.floor(x / mCellSize);
+		return Math.max(0, Math.min(column, mColumns - 1));
+	}
+
+	private int getRow(float y) {
+		int row = (int) Math.floor(y / mCellSize);
+		return Math.max(0, Math.min(row, mRows - 1));
+	}
+}
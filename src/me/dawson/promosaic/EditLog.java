@@ -0,0 +1,647 @@
+package me.dawson.promosaic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// edits in image pixels packed into primitive arrays, a path is one record
+// with all of its points, the log is written as a compact binary stream and
+// can be replayed against any resolution of the image
+public class EditLog {
+	public static final String TAG = "EditLog";
+
+	public static final int TYPE_RECT = 0;
+	public static final int TYPE_PATH = 1;
+
+	// "PMEL", and the format version
+	private static final int MAGIC = 0x504d454c;
+	private static final int VERSION = 1;
+
+	// magic, version, size and counts
+	private static final int HEADER_BYTES = 24;
+
+	// ints of one record, flags, first point, point count, width bits
+	private static final int RECORD_INTS = 4;
+	private static final int FLAGS = 0;
+	private static final int START = 1;
+	private static final int COUNT = 2;
+	private static final int WIDTH = 3;
+
+	// flags hold the type in the low bits, then erase, then the effect
+	private static final int TYPE_MASK = 0x0f;
+	private static final int FLAG_ERASE = 0x10;
+	private static final int EFFECT_SHIFT = 8;
+
+	private static final int INITIAL_RECORDS = 16;
+	private static final int INITIAL_POINTS = 256;
+
+	public interface Replayer {
+		// left, top, right, bottom scaled to the target
+		public void onRect(float left, float top, float right, float bottom,
+				boolean erase);
+
+		// x, y pairs of length floats starting at offset, scaled to the
+		// target
+		public void onPath(float[] points, int offset, int length,
+				float width, boolean erase);
+	}
+
+	// size of the image the points are in
+	private final int mWidth;
+	private final int mHeight;
+
+	private int[] mRecords;
+	private int mRecordCount;
+
+	// x, y pairs of every path and left, top, right, bottom of rectangles
+	private float[] mPoints;
+	private int mPointCount;
+
+	// left, top, right, bottom of every record, paths grown by half of
+	// their width and a pixel of anti-aliasing
+	private float[] mBounds;
+
+	// built when first asked for, dropped when records are removed
+	private EditIndex mIndex;
+
+	// last path still takes segments which start at its end
+	private boolean mPathOpen;
+
+	// scaled points handed to a replayer
+	private float[] mScratch;
+
+	public EditLog(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mRecords = new int[INITIAL_RECORDS * RECORD_INTS];
+		mBounds = new float[INITIAL_RECORDS * 4];
+		mPoints = new float[INITIAL_POINTS];
+	}
+
+	public EditLog(EditLog other) {
+		mWidth = other.mWidth;
+		mHeight = other.mHeight;
+		mRecordCount = other.mRecordCount;
+		mPointCount = other.mPointCount;
+		mRecords = new int[Math.max(mRecordCount, INITIAL_RECORDS)
+				* RECORD_INTS];
+		mBounds = new float[Math.max(mRecordCount, INITIAL_RECORDS) * 4];
+		mPoints = new float[Math.max(mPointCount, INITIAL_POINTS)];
+		System.arraycopy(other.mRecords, 0, mRecords, 0, mRecordCount
+				* RECORD_INTS);
+		System.arraycopy(other.mBounds, 0, mBounds, 0, mRecordCount * 4);
+		System.arraycopy(other.mPoints, 0, mPoints, 0, mPointCount);
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int size() {
+		return mRecordCount;
+	}
+
+	public boolean isEmpty() {
+		return mRecordCount == 0;
+	}
+
+	// true if any edit reveals the effect rather than erasing it
+	public boolean hasMosaic() {
+		for (int index = 0; index < mRecordCount; ++index) {
+			if (!isErase(index)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void clear() {
+		mRecordCount = 0;
+		mPointCount = 0;
+		mPathOpen = false;
+		mIndex = null;
+	}
+
+	public void addRect(float left, float top, float right, float bottom,
+			boolean erase, Effect effect) {
+		mPathOpen = false;
+		int start = mPointCount;
+		ensurePoints(4);
+		mPoints[mPointCount++] = left;
+		mPoints[mPointCount++] = top;
+		mPoints[mPointCount++] = right;
+		mPoints[mPointCount++] = bottom;
+		addRecord(TYPE_RECT, erase, effect, start, 4, 0f);
+	}
+
+	// a segment which starts at the end of the open path with its width
+	// and erase flag extends it, anything else starts a new path
+	public void addLine(float startX, float startY, float stopX,
+			float stopY, float width, boolean erase, Effect effect) {
+		if (mPathOpen) {
+			int last = (mRecordCount - 1) * RECORD_INTS;
+			int flags = getFlags(TYPE_PATH, erase, effect);
+			if (mRecords[last + FLAGS] == flags
+					&& Float.intBitsToFloat(mRecords[last + WIDTH]) == width
+					&& mPoints[mPointCount - 2] == startX
+					&& mPoints[mPointCount - 1] == startY) {
+				ensurePoints(2);
+				mPoints[mPointCount++] = stopX;
+				mPoints[mPointCount++] = stopY;
+				mRecords[last + COUNT] += 2;
+				updateBounds(mRecordCount - 1);
+				return;
+			}
+		}
+
+		int start = mPointCount;
+		ensurePoints(4);
+		mPoints[mPointCount++] = startX;
+		mPoints[mPointCount++] = startY;
+		mPoints[mPointCount++] = stopX;
+		mPoints[mPointCount++] = stopY;
+		addRecord(TYPE_PATH, erase, effect, start, 4, width);
+		mPathOpen = true;
+	}
+
+	// the next segment starts a new path, called when the finger is up
+	public void endPath() {
+		mPathOpen = false;
+	}
+
+	// add the records of other, scaled from its image size to this one
+	public void append(EditLog other) {
+		append(other, 0, other.mRecordCount);
+	}
+
+	// add records from to to of other, scaled to the size of this log
+	public void append(EditLog other, int from, int to) {
+		float scale = other.getScale(mWidth);
+		mPathOpen = false;
+		ensureRecords(to - from);
+		if (to > from) {
+			ensurePoints(other.getPointOffset(to - 1)
+					+ other.getPointLength(to - 1)
+					- other.getPointOffset(from));
+		}
+		for (int index = from; index < to; ++index) {
+			int source = index * RECORD_INTS;
+			int record = mRecordCount * RECORD_INTS;
+			int offset = other.mRecords[source + START];
+			int length = other.mRecords[source + COUNT];
+			float width = Float.intBitsToFloat(other.mRecords[source + WIDTH]);
+			mRecords[record + FLAGS] = other.mRecords[source + FLAGS];
+			mRecords[record + START] = mPointCount;
+			mRecords[record + COUNT] = length;
+			mRecords[record + WIDTH] = Float.floatToIntBits(width * scale);
+			for (int point = 0; point < length; ++point) {
+				mPoints[mPointCount++] = other.mPoints[offset + point] * scale;
+			}
+			mRecordCount++;
+			updateBounds(mRecordCount - 1);
+		}
+	}
+
+	// drop every record from size on
+	public void truncate(int size) {
+		if (size >= mRecordCount) {
+			return;
+		}
+
+		mRecordCount = Math.max(size, 0);
+		mPointCount = mRecordCount > 0 ? getPointOffset(mRecordCount - 1)
+				+ getPointLength(mRecordCount - 1) : 0;
+		mPathOpen = false;
+		mIndex = null;
+	}
+
+	public int getType(int index) {
+		return mRecords[index * RECORD_INTS + FLAGS] & TYPE_MASK;
+	}
+
+	public boolean isErase(int index) {
+		return (mRecords[index * RECORD_INTS + FLAGS] & FLAG_ERASE) != 0;
+	}
+
+	// effect which was shown when the edit was made
+	public Effect getEffect(int index) {
+		int ordinal = mRecords[index * RECORD_INTS + FLAGS] >>> EFFECT_SHIFT;
+		Effect[] effects = Effect.values();
+		return ordinal < effects.length ? effects[ordinal] : null;
+	}
+
+	public float getPathWidth(int index) {
+		return Float.intBitsToFloat(mRecords[index * RECORD_INTS + WIDTH]);
+	}
+
+	// points of every record, read with getPointOffset and getPointLength
+	public float[] getPoints() {
+		return mPoints;
+	}
+
+	public int getPointOffset(int index) {
+		return mRecords[index * RECORD_INTS + START];
+	}
+
+	public int getPointLength(int index) {
+		return mRecords[index * RECORD_INTS + COUNT];
+	}
+
+	// left, top, right and bottom of the pixels a record may touch
+	public void getBounds(int index, float[] bounds) {
+		System.arraycopy(mBounds, index * 4, bounds, 0, 4);
+	}
+
+	// built once under the lock, queries from several threads need a
+	// cursor each
+	public synchronized EditIndex getIndex() {
+		if (mIndex == null) {
+			mIndex = new EditIndex(this);
+		}
+		return mIndex;
+	}
+
+	// last record of type under x, y, or -1, erase records count too
+	public int findEdit(float x, float y, int type) {
+		EditIndex.Cursor cursor = new EditIndex.Cursor();
+		int count = getIndex().query(cursor, x, y, x, y);
+		int[] result = cursor.getResult();
+		for (int entry = count - 1; entry >= 0; --entry) {
+			int record = result[entry];
+			if (getType(record) == type && contains(record, x, y, 0f)) {
+				return record;
+			}
+		}
+		return -1;
+	}
+
+	// copy without the edits which do not change the result, a mosaic edit
+	// erased entirely by a later erase of its type, and erases over no
+	// mosaic, exact at the resolution of this log
+	public EditLog compact() {
+		EditIndex index = getIndex();
+		EditIndex.Cursor cursor = new EditIndex.Cursor();
+		boolean[] keep = new boolean[mRecordCount];
+		float[] bounds = new float[4];
+		for (int record = 0; record < mRecordCount; ++record) {
+			keep[record] = true;
+			if (isErase(record)) {
+				continue;
+			}
+
+			getBounds(record, bounds);
+			int count = index.query(cursor, bounds[0], bounds[1], bounds[2],
+					bounds[3]);
+			int[] result = cursor.getResult();
+			for (int entry = count - 1; entry >= 0
+					&& result[entry] > record; --entry) {
+				int other = result[entry];
+				if (isErase(other) && getType(other) == getType(record)
+						&& covers(other, bounds)) {
+					keep[record] = false;
+					break;
+				}
+			}
+		}
+
+		for (int record = 0; record < mRecordCount; ++record) {
+			if (!isErase(record)) {
+				continue;
+			}
+
+			getBounds(record, bounds);
+			int count = index.query(cursor, bounds[0], bounds[1], bounds[2],
+					bounds[3]);
+			int[] result = cursor.getResult();
+			boolean needed = false;
+			for (int entry = 0; entry < count; ++entry) {
+				int other = result[entry];
+				if (other >= record) {
+					break;
+				}
+				if (keep[other] && !isErase(other)
+						&& getType(other) == getType(record)) {
+					needed = true;
+					break;
+				}
+			}
+			keep[record] = needed;
+		}
+
+		EditLog log = new EditLog(mWidth, mHeight);
+		for (int record = 0; record < mRecordCount; ++record) {
+			if (keep[record]) {
+				log.append(this, record, record + 1);
+			}
+		}
+		return log;
+	}
+
+	// scale from this log to an image width pixels wide
+	public float getScale(int width) {
+		return mWidth > 0 ? width / (float) mWidth : 1f;
+	}
+
+	// feed records from to to in order, scaled by scale
+	public void replay(Replayer replayer, int from, int to, float scale) {
+		for (int index = from; index < to; ++index) {
+			int offset = getPointOffset(index);
+			int length = getPointLength(index);
+			float[] points = mPoints;
+			if (scale != 1f) {
+				if (mScratch == null || mScratch.length < length) {
+					mScratch = new float[length];
+				}
+				for (int point = 0; point < length; ++point) {
+					mScratch[point] = mPoints[offset + point] * scale;
+				}
+				points = mScratch;
+				offset = 0;
+			}
+
+			if (getType(index) == TYPE_RECT) {
+				replayer.onRect(points[offset], points[offset + 1],
+						points[offset + 2], points[offset + 3],
+						isErase(index));
+			} else {
+				replayer.onPath(points, offset, length, getPathWidth(index)
+						* scale, isErase(index));
+			}
+		}
+	}
+
+	public void replay(Replayer replayer, float scale) {
+		replay(replayer, 0, mRecordCount, scale);
+	}
+
+	public void writeTo(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(mWidth);
+		out.writeInt(mHeight);
+		out.writeInt(mRecordCount);
+		out.writeInt(mPointCount);
+		for (int index = 0; index < mRecordCount * RECORD_INTS; ++index) {
+			out.writeInt(mRecords[index]);
+		}
+		for (int index = 0; index < mPointCount; ++index) {
+			out.writeFloat(mPoints[index]);
+		}
+		out.flush();
+	}
+
+	public static EditLog readFrom(InputStream stream) throws IOException {
+		return readFrom(stream, Long.MAX_VALUE);
+	}
+
+	// a log of at most length bytes, arrays grow with what is actually read
+	// so a corrupted header can not allocate more than the stream holds
+	private static EditLog readFrom(InputStream stream, long length)
+			throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not an edit log");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unknown edit log version " + version);
+		}
+
+		EditLog log = new EditLog(in.readInt(), in.readInt());
+		int records = in.readInt();
+		int points = in.readInt();
+		long bytes = HEADER_BYTES + records * 4L * RECORD_INTS + points * 4L;
+		if (records < 0 || points < 0
+				|| records > Integer.MAX_VALUE / RECORD_INTS
+				|| bytes > length) {
+			throw new IOException("corrupted edit log");
+		}
+
+		for (int index = 0; index < records; ++index) {
+			log.ensureRecords(1);
+			int record = log.mRecordCount * RECORD_INTS;
+			for (int field = 0; field < RECORD_INTS; ++field) {
+				log.mRecords[record + field] = in.readInt();
+			}
+			int type = log.mRecords[record + FLAGS] & TYPE_MASK;
+			if (type != TYPE_RECT && type != TYPE_PATH) {
+				throw new IOException("unknown edit type " + type);
+			}
+			log.mRecordCount++;
+		}
+		for (int index = 0; index < points; ++index) {
+			log.ensurePoints(1);
+			log.mPoints[log.mPointCount++] = in.readFloat();
+		}
+
+		// every record has to point inside the points
+		for (int index = 0; index < records; ++index) {
+			int offset = log.getPointOffset(index);
+			int count = log.getPointLength(index);
+			int type = log.getType(index);
+			if (offset < 0 || count < 0 || offset > points - count
+					|| count % 2 != 0 || (type == TYPE_RECT && count != 4)
+					|| (type == TYPE_PATH && count < 2)) {
+				throw new IOException("corrupted edit log");
+			}
+			log.updateBounds(index);
+		}
+		return log;
+	}
+
+	public byte[] toByteArray() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_BYTES
+				+ mRecordCount * RECORD_INTS * 4 + mPointCount * 4);
+		try {
+			writeTo(out);
+		} catch (IOException e) {
+			// not thrown by a byte array
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+
+	public static EditLog fromByteArray(byte[] bytes) throws IOException {
+		return readFrom(new ByteArrayInputStream(bytes), bytes.length);
+	}
+
+	private static int getFlags(int type, boolean erase, Effect effect) {
+		int flags = type;
+		if (erase) {
+			flags |= FLAG_ERASE;
+		}
+		if (effect != null) {
+			flags |= effect.ordinal() << EFFECT_SHIFT;
+		}
+		return flags;
+	}
+
+	private void addRecord(int type, boolean erase, Effect effect,
+			int start, int count, float width) {
+		ensureRecords(1);
+		int record = mRecordCount * RECORD_INTS;
+		mRecords[record + FLAGS] = getFlags(type, erase, effect);
+		mRecords[record + START] = start;
+		mRecords[record + COUNT] = count;
+		mRecords[record + WIDTH] = Float.floatToIntBits(width);
+		mRecordCount++;
+		updateBounds(mRecordCount - 1);
+	}
+
+	private void updateBounds(int record) {
+		int offset = getPointOffset(record);
+		int end = offset + getPointLength(record);
+		float left = Float.MAX_VALUE;
+		float top = Float.MAX_VALUE;
+		float right = -Float.MAX_VALUE;
+		float bottom = -Float.MAX_VALUE;
+		for (int index = offset; index + 1 < end; index += 2) {
+			left = Math.min(left, mPoints[index]);
+			top = Math.min(top, mPoints[index + 1]);
+			right = Math.max(right, mPoints[index]);
+			bottom = Math.max(bottom, mPoints[index + 1]);
+		}
+
+		float pad = 0f;
+		if (getType(record) == TYPE_PATH) {
+			pad = getPathWidth(record) / 2f + 1f;
+		} else {
+			// rectangles are stored as two corners in any order
+			left = Math.min(mPoints[offset], mPoints[offset + 2]);
+			top = Math.min(mPoints[offset + 1], mPoints[offset + 3]);
+			right = Math.max(mPoints[offset], mPoints[offset + 2]);
+			bottom = Math.max(mPoints[offset + 1], mPoints[offset + 3]);
+		}
+		int bounds = record * 4;
+		mBounds[bounds] = left - pad;
+		mBounds[bounds + 1] = top - pad;
+		mBounds[bounds + 2] = right + pad;
+		mBounds[bounds + 3] = bottom + pad;
+
+		if (mIndex != null) {
+			mIndex.insert(record);
+		}
+	}
+
+	// true if x, y is within distance inside of the shape of record
+	private boolean contains(int record, float x, float y, float inset) {
+		int offset = getPointOffset(record);
+		if (getType(record) == TYPE_RECT) {
+			float[] p = mPoints;
+			return x >= Math.min(p[offset], p[offset + 2]) + inset
+					&& x <= Math.max(p[offset], p[offset + 2]) - inset
+					&& y >= Math.min(p[offset + 1], p[offset + 3]) + inset
+					&& y <= Math.max(p[offset + 1], p[offset + 3]) - inset;
+		}
+
+		float radius = getPathWidth(record) / 2f - inset;
+		int end = offset + getPointLength(record);
+		float lastX = mPoints[offset];
+		float lastY = mPoints[offset + 1];
+		for (int index = offset; index + 1 < end; index += 2) {
+			float x0 = lastX;
+			float y0 = lastY;
+			lastX = mPoints[index];
+			lastY = mPoints[index + 1];
+			if (getDistance(x, y, x0, y0, lastX, lastY) <= radius) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the whole of bounds is cleared by erase, checked on its corners,
+	// rectangles are filled on whole pixels, a capsule is convex so its
+	// corners being inside one segment are enough
+	private boolean covers(int erase, float[] bounds) {
+		int offset = getPointOffset(erase);
+		float[] p = mPoints;
+		if (getType(erase) == TYPE_RECT) {
+			int left = Math.round(Math.min(p[offset], p[offset + 2]));
+			int top = Math.round(Math.min(p[offset + 1], p[offset + 3]));
+			int right = Math.round(Math.max(p[offset], p[offset + 2]));
+			int bottom = Math.round(Math.max(p[offset + 1], p[offset + 3]));
+			return left <= Math.round(bounds[0])
+					&& top <= Math.round(bounds[1])
+					&& right >= Math.round(bounds[2])
+					&& bottom >= Math.round(bounds[3]);
+		}
+
+		// anti-aliasing only erases fully half a pixel inside the edge
+		float radius = getPathWidth(erase) / 2f - 0.5f;
+		int end = offset + getPointLength(erase);
+		float lastX = p[offset];
+		float lastY = p[offset + 1];
+		for (int index = offset; index + 1 < end; index += 2) {
+			float x0 = lastX;
+			float y0 = lastY;
+			lastX = p[index];
+			lastY = p[index + 1];
+			if (getDistance(bounds[0], bounds[1], x0, y0, lastX,
+					lastY) <= radius
+					&& getDistance(bounds[2], bounds[1], x0, y0, lastX,
+							lastY) <= radius
+					&& getDistance(bounds[0], bounds[3], x0, y0, lastX,
+							lastY) <= radius
+					&& getDistance(bounds[2], bounds[3], x0, y0, lastX,
+							lastY) <= radius) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// distance of x, y to the segment from x0, y0 to x1, y1
+	private static float getDistance(float x, float y, float x0, float y0,
+			float x1, float y1) {
+		float dx = x1 - x0;
+		float dy = y1 - y0;
+		float length = dx * dx + dy * dy;
+		float t = 0f;
+		if (length > 0f) {
+			t = ((x - x0) * dx + (y - y0) * dy) / length;
+			t = t < 0f ? 0f : (t > 1f ? 1f : t);
+		}
+		float ox = x0 + t * dx - x;
+		float oy = y0 + t * dy - y;
+		return (float) Math.sqrt(ox * ox + oy * oy);
+	}
+
+	private void ensureRecords(int more) {
+		int length = (mRecordCount + more) * RECORD_INTS;
+		if (length > mRecords.length) {
+			int[] records = new int[Math.max(length, mRecords.length * 2)];
+			System.arraycopy(mRecords, 0, records, 0, mRecordCount
+					* RECORD_INTS);
+			mRecords = records;
+		}
+		ensureBounds();
+	}
+
+	private void ensureBounds() {
+		int length = mRecords.length / RECORD_INTS * 4;
+		if (length > mBounds.length) {
+			float[] bounds = new float[length];
+			System.arraycopy(mBounds, 0, bounds, 0, mRecordCount * 4);
+			mBounds = bounds;
+		}
+	}
+
+	private void ensurePoints(int more) {
+		int length = mPointCount + more;
+		if (length > mPoints.length) {
+			float[] points = new float[Math.max(length, mPoints.length * 2)];
+			System.arraycopy(mPoints, 0, points, 0, mPointCount);
+			mPoints = points;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package me.dawson.promosaic;
+
+// edits with the effect they reveal, independent of any view so that it
+// can be applied in batch, images of another size get the edits scaled by
+// their width
+public class EditSpec {
+	// only edits of the mode are applied, like in the editor
+	public Mode mode;
+	public EffectParams params;
+	public final EditLog log;
+
+	public EditSpec(Mode mode, EffectParams params, EditLog log) {
+		this.mode = mode;
+		this.params = params;
+		this.log = log;
+	}
+
+	// deep copy, for a worker that must not share the log or its index
+	public EditSpec(EditSpec other) {
+		this.mode = other.mode;
+		this.params = new EffectParams(other.params);
+		this.log = new EditLog(other.log);
+	}
+
+	public int getType() {
+		return mode == Mode.GRID ? EditLog.TYPE_RECT : EditLog.TYPE_PATH;
+	}
+}
@@ -0,0 +1,7 @@
+package me.dawson.promosaic;
+
+// how the masked pixels are covered, shared by the engine, the renderer
+// and the view
+public enum Effect {
+	GRID, COLOR, BLUR,
+}
@@ -0,0 +1,30 @@
+package me.dawson.promosaic;
+
+// an effect and the sizes and color it is applied with, in pixels of the
+// image it is applied to
+public class EffectParams {
+	public Effect effect;
+	public int gridWidth;
+	public boolean gridAverage;
+
+	// image pixels per pixel of the layer the params are applied to, grid
+	// cells stay gridWidth image pixels wide, so their edges fall at
+	// round(k * gridWidth / gridSample) there
+	public int gridSample = 1;
+	public int blurRadius;
+	public int blurIterations;
+	public int mosaicColor;
+
+	public EffectParams() {
+	}
+
+	public EffectParams(EffectParams other) {
+		this.effect = other.effect;
+		this.gridWidth = other.gridWidth;
+		this.gridAverage = other.gridAverage;
+		this.gridSample = other.gridSample;
+		this.blurRadius = other.blurRadius;
+		this.blurIterations = other.blurIterations;
+		this.mosaicColor = other.mosaicColor;
+	}
+}
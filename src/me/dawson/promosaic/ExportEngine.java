@@ -0,0 +1,484 @@
+package me.dawson.promosaic;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import me.dawson.promosaic.BitmapUtil.Size;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+// renders the edits at full resolution in horizontal bands and streams
+// every band to the encoder, so memory is bounded by the band size and
+// not by the image size
+public class ExportEngine {
+	public static final String TAG = "ExportEngine";
+
+	// pixels of one band, about 4MB per ARGB buffer
+	private static final int BAND_PIXELS = 1024 * 1024;
+
+	// band rows are whole jpeg block rows
+	private static final int BAND_ALIGN = 16;
+
+	// rows kept from the first pass to estimate the size of other
+	// qualities, about 8MB
+	private static final int SAMPLE_PIXELS = 2 * BAND_PIXELS;
+
+	// quality dropped per pass when an estimate was short
+	private static final int QUALITY_STEP = 5;
+
+	// suffix of the file a save writes before it is renamed
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	public interface ProgressListener {
+		// called after every band with progress from 0 to 1, return false
+		// to stop the export
+		public boolean onProgress(float progress);
+	}
+
+	public interface BandEncoder {
+		public void begin(OutputStream out, int width, int height)
+				throws IOException;
+
+		// rows of width pixels, the first one starting at offset
+		public void write(int[] pixels, int offset, int stride, int rows)
+				throws IOException;
+
+		public void finish() throws IOException;
+	}
+
+	// discards the output, only counts it
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			count += length;
+		}
+	}
+
+	// passes bands on to an encoder and keeps rows of them spread over
+	// the image, the size of another encoding is estimated from those
+	// without rendering again
+	private class SamplingEncoder implements BandEncoder {
+		private final BandEncoder mEncoder;
+		private int mWidth;
+		private int mHeight;
+		private int[] mSamples;
+		private int mCapacity;
+		private int mBandRows;
+		private int mStep;
+		private int mBand;
+		private int mRows;
+
+		SamplingEncoder(BandEncoder encoder) {
+			mEncoder = encoder;
+		}
+
+		@Override
+		public void begin(OutputStream out, int width, int height)
+				throws IOException {
+			mEncoder.begin(out, width, height);
+			mWidth = width;
+			mHeight = height;
+			mCapacity = Math.min(Math.max(SAMPLE_PIXELS / width, BAND_ALIGN),
+					height);
+			mSamples = mLayerPool.obtainPixels(LayerPool.PIXELS_SAMPLE,
+					mCapacity * width);
+
+			// every row when they fit, else whole jpeg block rows from
+			// every step-th band
+			int bandHeight = getBandHeight(width, height);
+			int bands = (height + bandHeight - 1) / bandHeight;
+			if (mCapacity == height) {
+				mBandRows = bandHeight;
+				mStep = 1;
+			} else {
+				mBandRows = Math.min(Math.max(mCapacity / bands / BAND_ALIGN
+						* BAND_ALIGN, BAND_ALIGN), bandHeight);
+				mStep = Math.max((bands * mBandRows + mCapacity - 1)
+						/ mCapacity, 1);
+			}
+			mBand = 0;
+			mRows = 0;
+		}
+
+		@Override
+		public void write(int[] pixels, int offset, int stride, int rows)
+				throws IOException {
+			mEncoder.write(pixels, offset, stride, rows);
+			int copy = Math.min(Math.min(rows, mBandRows), mCapacity - mRows);
+			if (mBand++ % mStep == 0 && copy > 0) {
+				for (int row = 0; row < copy; ++row) {
+					System.arraycopy(pixels, offset + row * stride, mSamples,
+							(mRows + row) * mWidth, mWidth);
+				}
+				mRows += copy;
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			mEncoder.finish();
+		}
+
+		// bytes encoder would write for the whole image, -1 if failed
+		long estimate(BandEncoder encoder) {
+			CountingOutputStream counter = new CountingOutputStream();
+			long time = System.nanoTime();
+			try {
+				encoder.begin(counter, mWidth, mRows);
+				encoder.write(mSamples, 0, mWidth, mRows);
+				encoder.finish();
+			} catch (IOException e) {
+				e.printStackTrace();
+				Log.e(TAG, "failed to encode samples");
+				return -1;
+			} finally {
+				mEncodeNanos += System.nanoTime() - time;
+			}
+			return counter.count * mHeight / mRows;
+		}
+	}
+
+	private final LayerPool mLayerPool;
+	private final MosaicEngine mEngine;
+	private final BitmapFactory.Options mOptions;
+
+	// time spent in the encoder by the passes of current export
+	private long mEncodeNanos;
+
+	public ExportEngine(LayerPool pool) {
+		mLayerPool = pool;
+		mEngine = new MosaicEngine();
+		mOptions = new BitmapFactory.Options();
+		mOptions.inPreferredConfig = Config.ARGB_8888;
+	}
+
+	// jpeg and png are streamed, webp needs the platform encoder and the
+	// whole image, it falls back to jpeg before API 14
+	public static BandEncoder getEncoder(CompressFormat format, int quality) {
+		if (format == CompressFormat.PNG) {
+			return new PngBandEncoder();
+		} else if (format == CompressFormat.WEBP
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES
+						.ICE_CREAM_SANDWICH) {
+			return new BitmapBandEncoder(format, quality);
+		}
+		return new JpegBandEncoder(quality);
+	}
+
+	public static CompressFormat getEncodedFormat(CompressFormat format) {
+		if (format == CompressFormat.WEBP
+				&& Build.VERSION.SDK_INT < Build.VERSION_CODES
+						.ICE_CREAM_SANDWICH) {
+			return CompressFormat.JPEG;
+		}
+		return format;
+	}
+
+	public static int getBandHeight(int width, int height) {
+		int rows = BAND_PIXELS / Math.max(width, 1) / BAND_ALIGN * BAND_ALIGN;
+		return Math.min(Math.max(rows, BAND_ALIGN), height);
+	}
+
+	// apply spec to the image at inPath and write it to outPath, through a
+	// temporary file renamed when complete, returns null if failed or
+	// cancelled
+	public ExportMetrics exportFile(String inPath, EditSpec spec,
+			ExportOptions options, String outPath, ProgressListener progress) {
+		Size size = BitmapUtil.getImageSize(inPath);
+		if (size.width <= 0 || size.height <= 0) {
+			Log.w(TAG, "failed to read size of " + inPath);
+			return null;
+		}
+
+		BitmapRegionDecoder decoder = BitmapUtil.getRegionDecoder(inPath);
+		Bitmap full = null;
+		if (decoder == null) {
+			full = BitmapUtil.getImage(inPath);
+			if (full == null) {
+				Log.w(TAG, "failed to decode " + inPath);
+				return null;
+			}
+		}
+
+		// the temporary file has no meaningful extension
+		ExportOptions resolved = new ExportOptions(options);
+		if (resolved.format == null) {
+			resolved.format = ExportOptions.getFormat(outPath);
+		}
+
+		File target = new File(outPath);
+		File temp = new File(outPath + TEMP_SUFFIX);
+		ExportMetrics metrics = null;
+		try {
+			metrics = export(decoder, full, size.width, size.height, spec,
+					resolved, temp.getPath(), progress);
+			if (metrics != null && !temp.renameTo(target)) {
+				Log.w(TAG, "failed to rename " + temp + " to " + target);
+				metrics = null;
+			}
+		} finally {
+			if (metrics == null) {
+				temp.delete();
+			}
+			if (decoder != null) {
+				decoder.recycle();
+			}
+			if (full != null) {
+				full.recycle();
+			}
+		}
+		return metrics;
+	}
+
+	// write the image to outPath, source pixels come from the region
+	// decoder, or from the fully decoded image when there is none,
+	// progress may be null, returns null if failed or cancelled
+	public ExportMetrics export(BitmapRegionDecoder decoder, Bitmap full,
+			int width, int height, EditSpec spec, ExportOptions options,
+			String outPath,
+			ProgressListener progress) {
+		if (decoder == null && full == null) {
+			return null;
+		}
+
+		long start = System.nanoTime();
+		mEncodeNanos = 0;
+		CompressFormat format = options.format != null ? options.format
+				: ExportOptions.getFormat(outPath);
+		format = getEncodedFormat(format);
+		int quality = Math.max(ExportOptions.MIN_QUALITY,
+				Math.min(options.quality, 100));
+		boolean search = options.maxBytes > 0 && format != CompressFormat.PNG;
+
+		// a search usually renders twice, once at the requested quality and
+		// once at the one that fits, used to spread the progress
+		PassProgress pass = new PassProgress(progress, search ? 2 : 1);
+
+		BandEncoder encoder = getEncoder(format, quality);
+		SamplingEncoder sampler = null;
+		if (search) {
+			sampler = new SamplingEncoder(encoder);
+			encoder = sampler;
+		}
+		long bytes = write(decoder, full, width, height, spec, encoder,
+				outPath, pass);
+		if (bytes < 0) {
+			return null;
+		}
+
+		// binary search for the best quality which fits, on sizes estimated
+		// from the rows sampled by the first pass, then write that one and
+		// step down while the estimate was short
+		if (search && bytes > options.maxBytes) {
+			int low = ExportOptions.MIN_QUALITY;
+			int high = quality - 1;
+			int best = ExportOptions.MIN_QUALITY;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long estimate = sampler.estimate(getEncoder(format, mid));
+				if (estimate < 0) {
+					return null;
+				}
+
+				if (estimate <= options.maxBytes) {
+					best = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+
+			quality = best;
+			while (true) {
+				pass.next();
+				bytes = write(decoder, full, width, height, spec,
+						getEncoder(format, quality), outPath, pass);
+				if (bytes < 0) {
+					return null;
+				}
+				if (bytes <= options.maxBytes
+						|| quality == ExportOptions.MIN_QUALITY) {
+					break;
+				}
+				quality = Math.max(quality - QUALITY_STEP,
+						ExportOptions.MIN_QUALITY);
+			}
+			if (bytes > options.maxBytes) {
+				Log.w(TAG, "no quality fits in " + options.maxBytes + " bytes");
+			}
+		}
+
+		ExportMetrics metrics = new ExportMetrics();
+		metrics.format = format;
+		metrics.quality = quality;
+		metrics.bytes = bytes;
+		metrics.passes = pass.getPass() + 1;
+		metrics.encodeMillis = mEncodeNanos / 1000000;
+		metrics.totalMillis = (System.nanoTime() - start) / 1000000;
+		return metrics;
+	}
+
+	// progress of one pass scaled into the progress of the export
+	private static class PassProgress implements ProgressListener {
+		private final ProgressListener mListener;
+		private final int mPasses;
+		private int mPass;
+
+		PassProgress(ProgressListener listener, int passes) {
+			mListener = listener;
+			mPasses = passes;
+		}
+
+		void next() {
+			mPass++;
+		}
+
+		int getPass() {
+			return mPass;
+		}
+
+		@Override
+		public boolean onProgress(float progress) {
+			if (mListener == null) {
+				return true;
+			}
+			float done = Math.min((mPass + progress) / mPasses, 1f);
+			return mListener.onProgress(done);
+		}
+	}
+
+	// one pass into a file, returns its size or -1
+	private long write(BitmapRegionDecoder decoder, Bitmap full, int width,
+			int height, EditSpec spec, BandEncoder encoder, String outPath,
+			ProgressListener progress) {
+		File file = new File(outPath);
+		OutputStream out = null;
+		boolean succeed = false;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			succeed = render(decoder, full, width, height, spec, encoder,
+					out, progress);
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e(TAG, "failed to write image content");
+			succeed = false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					Log.w(TAG, "failed to close " + outPath);
+					succeed = false;
+				}
+			}
+		}
+		return succeed ? file.length() : -1;
+	}
+
+	// render every band and feed it to the encoder, false if failed or
+	// cancelled
+	private boolean render(BitmapRegionDecoder decoder, Bitmap full,
+			int width, int height, EditSpec spec, BandEncoder encoder,
+			OutputStream out, ProgressListener progress) {
+		int bandHeight = getBandHeight(width, height);
+		int[] source = new int[4];
+		float scale = spec.log.getScale(width);
+		try {
+			long time = System.nanoTime();
+			encoder.begin(out, width, height);
+			mEncodeNanos += System.nanoTime() - time;
+			for (int top = 0; top < height; top += bandHeight) {
+				int bottom = Math.min(top + bandHeight, height);
+				int rows = bottom - top;
+
+				boolean touched = mEngine.rasterize(spec, scale, top, bottom,
+						width);
+				source[0] = 0;
+				source[1] = top;
+				source[2] = width;
+				source[3] = bottom;
+				if (touched) {
+					MosaicEngine.getEffectSource(spec.params, source, width,
+							height);
+				}
+
+				// bands span the whole width, the source only grows
+				// vertically
+				int sourceRows = source[3] - source[1];
+				int[] pixels = mLayerPool.obtainPixels(LayerPool.PIXELS_IN,
+						width * sourceRows);
+				readSource(decoder, full, source, pixels);
+				int offset = (top - source[1]) * width;
+				if (touched) {
+					int[] base = mLayerPool.obtainPixels(LayerPool.PIXELS_OUT,
+							width * rows);
+					System.arraycopy(pixels, offset, base, 0, width * rows);
+					mEngine.applyEffect(spec.params, pixels, 0, source[1],
+							width, sourceRows);
+					mEngine.composite(base, 0, pixels, offset, width, rows);
+					pixels = base;
+					offset = 0;
+				}
+				time = System.nanoTime();
+				encoder.write(pixels, offset, width, rows);
+				mEncodeNanos += System.nanoTime() - time;
+
+				if (progress != null
+						&& !progress.onProgress(bottom / (float) height)) {
+					Log.d(TAG, "export cancelled at row " + bottom);
+					return false;
+				}
+			}
+
+			time = System.nanoTime();
+			encoder.finish();
+			mEncodeNanos += System.nanoTime() - time;
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e(TAG, "failed to encode image content");
+			return false;
+		}
+		return true;
+	}
+
+	// full resolution pixels of left, top, right, bottom in bounds, with
+	// the width of bounds as stride
+	private void readSource(BitmapRegionDecoder decoder, Bitmap full,
+			int[] bounds, int[] pixels) {
+		int width = bounds[2] - bounds[0];
+		int height = bounds[3] - bounds[1];
+		if (full != null) {
+			full.getPixels(pixels, 0, width, bounds[0], bounds[1], width,
+					height);
+			return;
+		}
+
+		Rect rect = new Rect(bounds[0], bounds[1], bounds[2], bounds[3]);
+		Bitmap region = decoder.decodeRegion(rect, mOptions);
+		if (region == null) {
+			Log.w(TAG, "failed to decode region " + rect);
+			Arrays.fill(pixels, 0, width * height, 0);
+			return;
+		}
+		region.getPixels(pixels, 0, width, 0, 0, width, height);
+		region.recycle();
+	}
+}
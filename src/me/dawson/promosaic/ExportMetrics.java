@@ -0,0 +1,26 @@
+package me.dawson.promosaic;
+
+import android.graphics.Bitmap.CompressFormat;
+
+// what one save produced and what it took
+public class ExportMetrics {
+	public CompressFormat format;
+	public int quality;
+
+	// size of the written file
+	public long bytes;
+
+	// number of full encodes, more than one when searching for maxBytes
+	public int passes;
+
+	// time spent in the encoder, and for the whole save
+	public long encodeMillis;
+	public long totalMillis;
+
+	@Override
+	public String toString() {
+		return format + " quality " + quality + " bytes " + bytes
+				+ " passes " + passes + " encode " + encodeMillis
+				+ "ms total " + totalMillis + "ms";
+	}
+}
@@ -0,0 +1,39 @@
+package me.dawson.promosaic;
+
+import android.graphics.Bitmap.CompressFormat;
+
+// how a save is encoded, quality is ignored for png
+public class ExportOptions {
+	public static final int DEFAULT_QUALITY = 90;
+
+	// lowest quality the search for maxBytes goes down to
+	public static final int MIN_QUALITY = 10;
+
+	// null picks the format from the extension of the output path
+	public CompressFormat format;
+	public int quality;
+
+	// largest output in bytes, the quality is lowered until it fits, 0 for
+	// no limit
+	public long maxBytes;
+
+	public ExportOptions() {
+		this.quality = DEFAULT_QUALITY;
+	}
+
+	public ExportOptions(ExportOptions other) {
+		this.format = other.format;
+		this.quality = other.quality;
+		this.maxBytes = other.maxBytes;
+	}
+
+	public static CompressFormat getFormat(String path) {
+		String lower = path.toLowerCase();
+		if (lower.endsWith(".png")) {
+			return CompressFormat.PNG;
+		} else if (lower.endsWith(".webp")) {
+			return CompressFormat.WEBP;
+		}
+		return CompressFormat.JPEG;
+	}
+}
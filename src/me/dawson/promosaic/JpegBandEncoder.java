@@ -0,0 +1,564 @@
+package me.dawson.promosaic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// baseline jpeg writer fed with rows of pixels, only one row of 16x16
+// units is held in memory, chroma is subsampled 2x2 like the platform
+// encoder does, blocks go through the integer aan dct
+public class JpegBandEncoder implements ExportEngine.BandEncoder {
+	public static final String TAG = "JpegBandEncoder";
+
+	// largest dimension a baseline frame header can hold
+	private static final int MAX_SIZE = 65535;
+
+	private static final int[] ZIGZAG = { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24,
+			32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,
+			6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23,
+			30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54,
+			47, 55, 62, 63, };
+
+	private static final int[] LUMINANCE_QUANT = { 16, 11, 10, 16, 24, 40,
+			51, 61, 12, 12, 14, 19, 26, 58, 60, 55, 14, 13, 16, 24, 40, 57,
+			69, 56, 14, 17, 22, 29, 51, 87, 80, 62, 18, 22, 37, 56, 68, 109,
+			103, 77, 24, 35, 55, 64, 81, 104, 113, 92, 49, 64, 78, 87, 103,
+			121, 120, 101, 72, 92, 95, 98, 112, 100, 103, 99, };
+
+	private static final int[] CHROMINANCE_QUANT = { 17, 18, 24, 47, 99, 99,
+			99, 99, 18, 21, 26, 66, 99, 99, 99, 99, 24, 26, 56, 99, 99, 99,
+			99, 99, 47, 66, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99, 99, 99, 99, 99, };
+
+	// standard huffman tables, code counts per length then symbols
+	private static final int[] DC_LUMINANCE_BITS = { 0, 1, 5, 1, 1, 1, 1, 1,
+			1, 0, 0, 0, 0, 0, 0, 0, };
+	private static final int[] DC_CHROMINANCE_BITS = { 0, 3, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 0, 0, 0, 0, 0, };
+	private static final int[] DC_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9,
+			10, 11, };
+
+	private static final int[] AC_LUMINANCE_BITS = { 0, 2, 1, 3, 3, 2, 4, 3,
+			5, 5, 4, 4, 0, 0, 1, 0x7d, };
+	private static final int[] AC_LUMINANCE_VALUES = { 0x01, 0x02, 0x03,
+			0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+			0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23,
+			0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72,
+			0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27,
+			0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43,
+			0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+			0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+			0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84,
+			0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+			0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8,
+			0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+			0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3,
+			0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4,
+			0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5,
+			0xf6, 0xf7, 0xf8, 0xf9, 0xfa, };
+
+	private static final int[] AC_CHROMINANCE_BITS = { 0, 2, 1, 2, 4, 4, 3,
+			4, 7, 5, 4, 4, 0, 1, 2, 0x77, };
+	private static final int[] AC_CHROMINANCE_VALUES = { 0x00, 0x01, 0x02,
+			0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+			0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1,
+			0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1,
+			0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a,
+			0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a,
+			0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55,
+			0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+			0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82,
+			0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94,
+			0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6,
+			0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8,
+			0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca,
+			0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3,
+			0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5,
+			0xf6, 0xf7, 0xf8, 0xf9, 0xfa, };
+
+	// constants of the aan dct, 8 fraction bits
+	private static final int FIX_0_382683433 = 98;
+	private static final int FIX_0_541196100 = 139;
+	private static final int FIX_0_707106781 = 181;
+	private static final int FIX_1_306562965 = 334;
+
+	// luminance rows and columns of a minimum coded unit, which holds four
+	// luminance blocks and one block of each chroma
+	private static final int MCU_SIZE = 16;
+
+	// entropy coded bytes collected before they go to the stream
+	private static final int BYTE_BUFFER_SIZE = 8192;
+
+	// the aan dct leaves its output u scaled by sqrt(2) * cos(u * pi / 16),
+	// and by 1 for u = 0, the quantizers take the scale out
+	private static final double[] AAN_SCALES = new double[8];
+
+	static {
+		AAN_SCALES[0] = 1.0;
+		for (int u = 1; u < 8; ++u) {
+			AAN_SCALES[u] = Math.sqrt(2) * Math.cos(u * Math.PI / 16);
+		}
+	}
+
+	private final int mQuality;
+
+	// quantizers in zigzag order, luminance then chrominance, as written
+	// to the header, and the same with the scale of the dct folded in
+	private final int[][] mQuant;
+	private final int[][] mDivisors;
+
+	// huffman codes and lengths by symbol, luminance then chrominance
+	private final int[][] mDcCodes;
+	private final int[][] mDcLengths;
+	private final int[][] mAcCodes;
+	private final int[][] mAcLengths;
+
+	private OutputStream mOut;
+	private int mWidth;
+	private int mHeight;
+
+	// one row of coded units, y, cb and cr of 16 rows each, centered on
+	// zero, chroma is averaged over 2x2 when its blocks are coded
+	private int mPaddedWidth;
+	private int[] mLuma;
+	private int[] mCb;
+	private int[] mCr;
+	private int mBufferedRows;
+
+	private final int[] mBlock;
+	private final int[] mCoefficients;
+	private final int[] mLastDc;
+
+	// bits not yet written, the oldest first, and whole bytes waiting for
+	// the stream with zeros stuffed after 0xff
+	private long mBitBuffer;
+	private int mBitCount;
+	private final byte[] mBytes;
+	private int mByteCount;
+
+	public JpegBandEncoder(int quality) {
+		mQuality = Math.max(1, Math.min(quality, 100));
+		mQuant = new int[][] { scaleQuant(LUMINANCE_QUANT, mQuality),
+				scaleQuant(CHROMINANCE_QUANT, mQuality), };
+		mDivisors = new int[][] { getDivisors(mQuant[0]),
+				getDivisors(mQuant[1]), };
+
+		mDcCodes = new int[2][];
+		mDcLengths = new int[2][];
+		mAcCodes = new int[2][];
+		mAcLengths = new int[2][];
+		buildCodes(DC_LUMINANCE_BITS, DC_VALUES, mDcCodes, mDcLengths, 0);
+		buildCodes(DC_CHROMINANCE_BITS, DC_VALUES, mDcCodes, mDcLengths, 1);
+		buildCodes(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES, mAcCodes,
+				mAcLengths, 0);
+		buildCodes(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES, mAcCodes,
+				mAcLengths, 1);
+
+		mBlock = new int[64];
+		mCoefficients = new int[64];
+		mLastDc = new int[3];
+		mBytes = new byte[BYTE_BUFFER_SIZE];
+	}
+
+	public int getQuality() {
+		return mQuality;
+	}
+
+	@Override
+	public void begin(OutputStream out, int width, int height)
+			throws IOException {
+		if (width > MAX_SIZE || height > MAX_SIZE) {
+			throw new IOException("image too large for jpeg " + width + "x"
+					+ height);
+		}
+
+		mOut = out;
+		mWidth = width;
+		mHeight = height;
+		mPaddedWidth = (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+		mLuma = new int[mPaddedWidth * MCU_SIZE];
+		mCb = new int[mPaddedWidth * MCU_SIZE];
+		mCr = new int[mPaddedWidth * MCU_SIZE];
+		mBufferedRows = 0;
+		mLastDc[0] = mLastDc[1] = mLastDc[2] = 0;
+		mBitBuffer = 0;
+		mBitCount = 0;
+		mByteCount = 0;
+
+		writeHeaders();
+	}
+
+	@Override
+	public void write(int[] pixels, int offset, int stride, int rows)
+			throws IOException {
+		for (int row = 0; row < rows; ++row) {
+			putRow(pixels, offset + row * stride);
+			if (mBufferedRows == MCU_SIZE) {
+				encodeUnitRow();
+			}
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		// repeat the last row into the incomplete unit row
+		if (mBufferedRows > 0) {
+			int last = (mBufferedRows - 1) * mPaddedWidth;
+			for (int row = mBufferedRows; row < MCU_SIZE; ++row) {
+				int start = row * mPaddedWidth;
+				System.arraycopy(mLuma, last, mLuma, start, mPaddedWidth);
+				System.arraycopy(mCb, last, mCb, start, mPaddedWidth);
+				System.arraycopy(mCr, last, mCr, start, mPaddedWidth);
+			}
+			mBufferedRows = MCU_SIZE;
+			encodeUnitRow();
+		}
+
+		// pad the last byte with ones
+		int padding = (8 - (mBitCount & 7)) & 7;
+		if (padding > 0) {
+			writeBits((1 << padding) - 1, padding);
+		}
+		while (mBitCount >= 8) {
+			mBitCount -= 8;
+			putByte((int) (mBitBuffer >>> mBitCount) & 0xff);
+		}
+		flushBytes();
+
+		mOut.write(0xff);
+		mOut.write(0xd9);
+		mLuma = null;
+		mCb = null;
+		mCr = null;
+	}
+
+	// fixed point conversion of the independent jpeg group, columns past
+	// the image repeat its last one
+	private void putRow(int[] pixels, int offset) {
+		int start = mBufferedRows * mPaddedWidth;
+		int[] ys = mLuma;
+		int[] cbs = mCb;
+		int[] crs = mCr;
+		for (int x = 0; x < mWidth; ++x) {
+			int rgb = pixels[offset + x];
+			int r = (rgb >> 16) & 0xff;
+			int g = (rgb >> 8) & 0xff;
+			int b = rgb & 0xff;
+			ys[start + x] = ((19595 * r + 38470 * g + 7471 * b + 32768) >> 16)
+					- 128;
+			cbs[start + x] = (-11059 * r - 21709 * g + 32768 * b + 32768)
+					>> 16;
+			crs[start + x] = (32768 * r - 27439 * g - 5329 * b + 32768)
+					>> 16;
+		}
+		int last = start + mWidth - 1;
+		for (int x = start + mWidth; x < start + mPaddedWidth; ++x) {
+			ys[x] = ys[last];
+			cbs[x] = cbs[last];
+			crs[x] = crs[last];
+		}
+		mBufferedRows++;
+	}
+
+	private void encodeUnitRow() throws IOException {
+		for (int left = 0; left < mPaddedWidth; left += MCU_SIZE) {
+			loadBlock(mLuma, left, 0);
+			encodeBlock(0, 0);
+			loadBlock(mLuma, left + 8, 0);
+			encodeBlock(0, 0);
+			loadBlock(mLuma, left, 8);
+			encodeBlock(0, 0);
+			loadBlock(mLuma, left + 8, 8);
+			encodeBlock(0, 0);
+			loadChromaBlock(mCb, left);
+			encodeBlock(1, 1);
+			loadChromaBlock(mCr, left);
+			encodeBlock(2, 1);
+		}
+		mBufferedRows = 0;
+	}
+
+	private void loadBlock(int[] plane, int left, int top) {
+		for (int y = 0; y < 8; ++y) {
+			System.arraycopy(plane, (top + y) * mPaddedWidth + left, mBlock,
+					y * 8, 8);
+		}
+	}
+
+	// the 16x16 chroma of a unit averaged down to one block
+	private void loadChromaBlock(int[] plane, int left) {
+		int stride = mPaddedWidth;
+		int[] block = mBlock;
+		for (int y = 0; y < 8; ++y) {
+			int index = y * 2 * stride + left;
+			for (int x = 0; x < 8; ++x) {
+				block[y * 8 + x] = (plane[index] + plane[index + 1]
+						+ plane[index + stride] + plane[index + stride + 1]
+						+ 2) >> 2;
+				index += 2;
+			}
+		}
+	}
+
+	// forward dct, quantization and entropy coding of mBlock
+	private void encodeBlock(int component, int table) throws IOException {
+		int[] block = mBlock;
+		for (int row = 0; row < 64; row += 8) {
+			transform(block, row, 1);
+		}
+		for (int column = 0; column < 8; ++column) {
+			transform(block, column, 8);
+		}
+
+		// rounded to nearest, halves away from zero
+		int[] divisors = mDivisors[table];
+		int[] coefficients = mCoefficients;
+		for (int index = 0; index < 64; ++index) {
+			int value = block[ZIGZAG[index]];
+			int divisor = divisors[index];
+			int half = divisor >> 1;
+			coefficients[index] = value < 0 ? -((half - value) / divisor)
+					: (value + half) / divisor;
+		}
+
+		int dc = coefficients[0];
+		int diff = dc - mLastDc[component];
+		mLastDc[component] = dc;
+		int category = getCategory(diff);
+		writeBits((mDcCodes[table][category] << category)
+				| getBits(diff, category), mDcLengths[table][category]
+				+ category);
+
+		int[] acCodes = mAcCodes[table];
+		int[] acLengths = mAcLengths[table];
+		int run = 0;
+		for (int index = 1; index < 64; ++index) {
+			int ac = coefficients[index];
+			if (ac == 0) {
+				run++;
+				continue;
+			}
+
+			while (run > 15) {
+				writeBits(acCodes[0xf0], acLengths[0xf0]);
+				run -= 16;
+			}
+			category = getCategory(ac);
+			int symbol = (run << 4) | category;
+			writeBits((acCodes[symbol] << category) | getBits(ac, category),
+					acLengths[symbol] + category);
+			run = 0;
+		}
+		if (run > 0) {
+			writeBits(acCodes[0x00], acLengths[0x00]);
+		}
+	}
+
+	// one pass of the aan dct over 8 values step apart, in place, the
+	// outputs are left scaled by 8 over both passes and by AAN_SCALES
+	private static void transform(int[] data, int offset, int step) {
+		int p0 = offset;
+		int p1 = p0 + step;
+		int p2 = p1 + step;
+		int p3 = p2 + step;
+		int p4 = p3 + step;
+		int p5 = p4 + step;
+		int p6 = p5 + step;
+		int p7 = p6 + step;
+
+		int tmp0 = data[p0] + data[p7];
+		int tmp7 = data[p0] - data[p7];
+		int tmp1 = data[p1] + data[p6];
+		int tmp6 = data[p1] - data[p6];
+		int tmp2 = data[p2] + data[p5];
+		int tmp5 = data[p2] - data[p5];
+		int tmp3 = data[p3] + data[p4];
+		int tmp4 = data[p3] - data[p4];
+
+		// even part
+		int tmp10 = tmp0 + tmp3;
+		int tmp13 = tmp0 - tmp3;
+		int tmp11 = tmp1 + tmp2;
+		int tmp12 = tmp1 - tmp2;
+		data[p0] = tmp10 + tmp11;
+		data[p4] = tmp10 - tmp11;
+		int z1 = ((tmp12 + tmp13) * FIX_0_707106781) >> 8;
+		data[p2] = tmp13 + z1;
+		data[p6] = tmp13 - z1;
+
+		// odd part
+		tmp10 = tmp4 + tmp5;
+		tmp11 = tmp5 + tmp6;
+		tmp12 = tmp6 + tmp7;
+		int z5 = ((tmp10 - tmp12) * FIX_0_382683433) >> 8;
+		int z2 = ((tmp10 * FIX_0_541196100) >> 8) + z5;
+		int z4 = ((tmp12 * FIX_1_306562965) >> 8) + z5;
+		int z3 = (tmp11 * FIX_0_707106781) >> 8;
+		int z11 = tmp7 + z3;
+		int z13 = tmp7 - z3;
+		data[p5] = z13 + z2;
+		data[p3] = z13 - z2;
+		data[p1] = z11 + z4;
+		data[p7] = z11 - z4;
+	}
+
+	private static int getCategory(int value) {
+		int magnitude = value < 0 ? -value : value;
+		return 32 - Integer.numberOfLeadingZeros(magnitude);
+	}
+
+	// the category low bits of value, negative values as value - 1
+	private static int getBits(int value, int category) {
+		if (value < 0) {
+			value--;
+		}
+		return value & ((1 << category) - 1);
+	}
+
+	// count is at most 27, a code and its value, so the buffer never holds
+	// more than 58 bits, they leave it as a word of four bytes
+	private void writeBits(int bits, int count) throws IOException {
+		mBitBuffer = (mBitBuffer << count) | bits;
+		mBitCount += count;
+		if (mBitCount >= 32) {
+			mBitCount -= 32;
+			int word = (int) (mBitBuffer >>> mBitCount);
+			if (mByteCount + 8 > mBytes.length) {
+				flushBytes();
+			}
+			putByte(word >>> 24);
+			putByte((word >>> 16) & 0xff);
+			putByte((word >>> 8) & 0xff);
+			putByte(word & 0xff);
+		}
+	}
+
+	// a data byte 0xff is followed by a stuffed zero
+	private void putByte(int value) throws IOException {
+		if (mByteCount + 2 > mBytes.length) {
+			flushBytes();
+		}
+		mBytes[mByteCount++] = (byte) value;
+		if (value == 0xff) {
+			mBytes[mByteCount++] = 0;
+		}
+	}
+
+	private void flushBytes() throws IOException {
+		mOut.write(mBytes, 0, mByteCount);
+		mByteCount = 0;
+	}
+
+	private void writeHeaders() throws IOException {
+		// start of image
+		mOut.write(0xff);
+		mOut.write(0xd8);
+
+		// jfif application segment
+		writeMarker(0xe0, 16);
+		mOut.write(new byte[] { 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1,
+				0, 0 });
+
+		// quantization tables
+		writeMarker(0xdb, 2 + 65 * 2);
+		for (int table = 0; table < 2; ++table) {
+			mOut.write(table);
+			for (int index = 0; index < 64; ++index) {
+				mOut.write(mQuant[table][index]);
+			}
+		}
+
+		// frame, luminance sampled twice as often as chroma both ways
+		writeMarker(0xc0, 17);
+		mOut.write(8);
+		writeShort(mHeight);
+		writeShort(mWidth);
+		mOut.write(3);
+		for (int component = 0; component < 3; ++component) {
+			mOut.write(component + 1);
+			mOut.write(component == 0 ? 0x22 : 0x11);
+			mOut.write(component == 0 ? 0 : 1);
+		}
+
+		// huffman tables
+		writeMarker(0xc4, 2 + 4 * 17 + DC_VALUES.length * 2
+				+ AC_LUMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+		writeTable(0x00, DC_LUMINANCE_BITS, DC_VALUES);
+		writeTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+		writeTable(0x01, DC_CHROMINANCE_BITS, DC_VALUES);
+		writeTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+		// start of scan
+		writeMarker(0xda, 12);
+		mOut.write(3);
+		for (int component = 0; component < 3; ++component) {
+			mOut.write(component + 1);
+			mOut.write(component == 0 ? 0x00 : 0x11);
+		}
+		mOut.write(0);
+		mOut.write(63);
+		mOut.write(0);
+	}
+
+	private void writeMarker(int marker, int length) throws IOException {
+		mOut.write(0xff);
+		mOut.write(marker);
+		writeShort(length);
+	}
+
+	private void writeShort(int value) throws IOException {
+		mOut.write((value >> 8) & 0xff);
+		mOut.write(value & 0xff);
+	}
+
+	private void writeTable(int id, int[] bits, int[] values)
+			throws IOException {
+		mOut.write(id);
+		for (int length = 0; length < 16; ++length) {
+			mOut.write(bits[length]);
+		}
+		for (int index = 0; index < values.length; ++index) {
+			mOut.write(values[index]);
+		}
+	}
+
+	// the quality scaling of the independent jpeg group
+	private static int[] scaleQuant(int[] base, int quality) {
+		int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+		int[] quant = new int[64];
+		for (int index = 0; index < 64; ++index) {
+			int value = (base[ZIGZAG[index]] * scale + 50) / 100;
+			quant[index] = Math.max(1, Math.min(value, 255));
+		}
+		return quant;
+	}
+
+	// quantizers in zigzag order times the scale the dct leaves on each
+	// coefficient
+	private static int[] getDivisors(int[] quant) {
+		int[] divisors = new int[64];
+		for (int index = 0; index < 64; ++index) {
+			int natural = ZIGZAG[index];
+			double scale = AAN_SCALES[natural >> 3] * AAN_SCALES[natural & 7]
+					* 8;
+			divisors[index] = (int) Math.round(quant[index] * scale);
+		}
+		return divisors;
+	}
+
+	private static void buildCodes(int[] bits, int[] values, int[][] codes,
+			int[][] lengths, int table) {
+		codes[table] = new int[256];
+		lengths[table] = new int[256];
+		int code = 0;
+		int index = 0;
+		for (int length = 1; length <= 16; ++length) {
+			for (int count = 0; count < bits[length - 1]; ++count) {
+				int symbol = values[index++];
+				codes[table][symbol] = code++;
+				lengths[table][symbol] = length;
+			}
+			code <<= 1;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package me.dawson.promosaic;
+
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Color;
+import android.util.Log;
+
+public class LayerPool {
+	public static final String TAG = "LayerPool";
+
+	public static final int LAYER_TOUCH = 0;
+	private static final int LAYER_COUNT = 1;
+
+	public static final int PIXELS_IN = 0;
+	public static final int PIXELS_OUT = 1;
+	public static final int PIXELS_SAMPLE = 2;
+	private static final int PIXELS_COUNT = 3;
+
+	// free tiles kept around for reuse, the rest are recycled
+	private static final int MAX_FREE_TILES = 32;
+
+	private final Bitmap[] mLayers;
+	private final int[][] mPixels;
+	private final LinkedList<Bitmap> mFreeTiles;
+
+	// tiles taken out of a layer the ui draws, a display list of the frame
+	// being drawn may still hold them, they come back to the pool once a
+	// draw which started after them is done
+	private final LinkedList<RetiredTile> mRetiredTiles;
+
+	// draws started and done, counted on the ui thread
+	private volatile int mDrawsStarted;
+	private volatile int mDrawsDone;
+
+	// one budget for what is cached from the pool, resident tiles of every
+	// layer and the tables and history of the renderer, 0 for no limit
+	private final long mMaxBytes;
+	private long mReservedBytes;
+
+	private int mAllocations;
+	private int mReuses;
+	private long mBytesAvoided;
+	private long mBytesAllocated;
+
+	public LayerPool() {
+		this(0);
+	}
+
+	public LayerPool(long maxBytes) {
+		mMaxBytes = maxBytes;
+		mLayers = new Bitmap[LAYER_COUNT];
+		mPixels = new int[PIXELS_COUNT][];
+		mFreeTiles = new LinkedList<Bitmap>();
+		mRetiredTiles = new LinkedList<RetiredTile>();
+	}
+
+	// return the layer bitmap, only allocating when size or config changed
+	public Bitmap obtain(int layer, int width, int height, Config config) {
+		Bitmap bitmap = mLayers[layer];
+		if (matches(bitmap, width, height, config)) {
+			mReuses++;
+			mBytesAvoided += getByteCount(bitmap);
+			return bitmap;
+		}
+
+		if (bitmap != null) {
+			bitmap.recycle();
+		}
+		bitmap = Bitmap.createBitmap(width, height, config);
+		mLayers[layer] = bitmap;
+		mAllocations++;
+		mBytesAllocated += getByteCount(bitmap);
+		Log.d(TAG, "allocate layer " + layer + " " + width + "x" + height);
+		return bitmap;
+	}
+
+	// same as obtain, but the content is cleared to transparent
+	public Bitmap obtainClean(int layer, int width, int height, Config config) {
+		Bitmap bitmap = obtain(layer, width, height, config);
+		bitmap.eraseColor(Color.TRANSPARENT);
+		return bitmap;
+	}
+
+	// square ARGB_8888 tile of TiledLayer.TILE_SIZE, content is undefined
+	public Bitmap obtainTile() {
+		releaseRetired();
+		Bitmap tile = mFreeTiles.poll();
+		if (tile != null) {
+			mReuses++;
+			mBytesAvoided += getByteCount(tile);
+			return tile;
+		}
+
+		mAllocations++;
+		tile = Bitmap.createBitmap(TiledLayer.TILE_SIZE, TiledLayer.TILE_SIZE,
+				Config.ARGB_8888);
+		mBytesAllocated += getByteCount(tile);
+		return tile;
+	}
+
+	public void recycleTile(Bitmap tile) {
+		if (tile.isRecycled()) {
+			return;
+		}
+
+		if (mFreeTiles.size() < MAX_FREE_TILES) {
+			mFreeTiles.add(tile);
+		} else {
+			tile.recycle();
+		}
+	}
+
+	// done with a tile which may have been drawn
+	public void retireTile(Bitmap tile) {
+		mRetiredTiles.add(new RetiredTile(tile, mDrawsStarted));
+	}
+
+	public void onDrawStarted() {
+		mDrawsStarted++;
+	}
+
+	public void onDrawDone() {
+		mDrawsDone++;
+	}
+
+	// retired tiles no frame can draw any more back to the pool
+	private void releaseRetired() {
+		int done = mDrawsDone;
+		while (!mRetiredTiles.isEmpty()
+				&& done - mRetiredTiles.peek().draw > 0) {
+			recycleTile(mRetiredTiles.poll().tile);
+		}
+	}
+
+	public int[] obtainPixels(int buffer, int length) {
+		int[] pixels = mPixels[buffer];
+		if (pixels != null && pixels.length >= length) {
+			mReuses++;
+			mBytesAvoided += pixels.length * 4L;
+			return pixels;
+		}
+
+		pixels = new int[length];
+		mPixels[buffer] = pixels;
+		mAllocations++;
+		mBytesAllocated += length * 4L;
+		return pixels;
+	}
+
+	// take bytes of the budget, false if they do not fit
+	public synchronized boolean reserveBytes(long bytes) {
+		if (mMaxBytes > 0 && mReservedBytes + bytes > mMaxBytes) {
+			return false;
+		}
+		mReservedBytes += bytes;
+		return true;
+	}
+
+	public synchronized void releaseBytes(long bytes) {
+		mReservedBytes = Math.max(mReservedBytes - bytes, 0);
+	}
+
+	public synchronized boolean hasRoom(long bytes) {
+		return mMaxBytes <= 0 || mReservedBytes + bytes <= mMaxBytes;
+	}
+
+	public long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	public synchronized long getReservedBytes() {
+		return mReservedBytes;
+	}
+
+	public void release() {
+		for (int index = 0; index < LAYER_COUNT; ++index) {
+			if (mLayers[index] != null) {
+				mLayers[index].recycle();
+				mLayers[index] = null;
+			}
+		}
+		for (int index = 0; index < PIXELS_COUNT; ++index) {
+			mPixels[index] = null;
+		}
+		for (Bitmap tile : mFreeTiles) {
+			tile.recycle();
+		}
+		mFreeTiles.clear();
+		for (RetiredTile retired : mRetiredTiles) {
+			retired.tile.recycle();
+		}
+		mRetiredTiles.clear();
+	}
+
+	public int getAllocations() {
+		return mAllocations;
+	}
+
+	public int getReuses() {
+		return mReuses;
+	}
+
+	public long getBytesAvoided() {
+		return mBytesAvoided;
+	}
+
+	public long getBytesAllocated() {
+		return mBytesAllocated;
+	}
+
+	private static class RetiredTile {
+		final Bitmap tile;
+
+		// draws started when it was retired
+		final int draw;
+
+		RetiredTile(Bitmap tile, int draw) {
+			this.tile = tile;
+			this.draw = draw;
+		}
+	}
+
+	private static boolean matches(Bitmap bitmap, int width, int height,
+			Config config) {
+		return bitmap != null && !bitmap.isRecycled() && bitmap.isMutable()
+				&& bitmap.getWidth() == width && bitmap.getHeight() == height
+				&& bitmap.getConfig() == config;
+	}
+
+	private static long getByteCount(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,6 @@
+package me.dawson.promosaic;
+
+// how edits shape the mask, free paths or grid aligned rectangles
+public enum Mode {
+	GRID, PATH,
+}
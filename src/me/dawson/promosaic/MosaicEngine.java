@@ -0,0 +1,555 @@
+package me.dawson.promosaic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// effect and masking logic on plain int[] pixels, nothing here depends on
+// a view or a bitmap, one instance per thread for its scratch buffers
+public class MosaicEngine {
+	public static final String TAG = "MosaicEngine";
+
+	// rows below this are not worth splitting across threads
+	private static final int MIN_STRIPE_ROWS = 64;
+
+	private static final int THREAD_COUNT = Runtime.getRuntime()
+			.availableProcessors();
+
+	private static ExecutorService sBlurExecutor;
+
+	// divide lookup tables, keyed by blur radius
+	private static final Map<Integer, int[]> sDivideTables =
+			new HashMap<Integer, int[]>();
+
+	// blur scratch, index cursor, and coverage of the last rasterize
+	private int[] mScratch;
+	private final EditIndex.Cursor mCursor = new EditIndex.Cursor();
+	private byte[] mCoverage;
+	private int mCoverageLength;
+
+	// pixels the effect reads to compute bounds of a width x height image,
+	// bounds holds left, top, right and bottom and is grown in place
+	public static void getEffectSource(EffectParams params, int[] bounds,
+			int width, int height) {
+		if (params.effect == Effect.GRID) {
+			// align to the grid of the whole image
+			if (!hasGrid(params)) {
+				return;
+			}
+			int[] columns = getCellEdges(params, bounds[0], bounds[2], width);
+			int[] rows = getCellEdges(params, bounds[1], bounds[3], height);
+			bounds[0] = columns[0];
+			bounds[1] = rows[0];
+			bounds[2] = columns[columns.length - 1];
+			bounds[3] = rows[rows.length - 1];
+		} else if (params.effect == Effect.BLUR) {
+			// every pass spreads by the radius in both directions
+			int halo = params.blurRadius * params.blurIterations;
+			bounds[0] = Math.max(bounds[0] - halo, 0);
+			bounds[1] = Math.max(bounds[1] - halo, 0);
+			bounds[2] = Math.min(bounds[2] + halo, width);
+			bounds[3] = Math.min(bounds[3] + halo, height);
+		}
+	}
+
+	// turn width x height source pixels into cover pixels in place
+	public void applyEffect(EffectParams params, int[] pixels, int width,
+			int height) {
+		applyEffect(params, pixels, 0, 0, width, height);
+	}
+
+	// same for source pixels at left, top of the image, grid cells are
+	// aligned to the image
+	public void applyEffect(EffectParams params, int[] pixels, int left,
+			int top, int width, int height) {
+		if (params.effect == Effect.GRID) {
+			if (hasGrid(params)) {
+				pixelate(pixels, width, height,
+						getBufferEdges(params, left, width),
+						getBufferEdges(params, top, height),
+						params.gridAverage);
+			}
+		} else if (params.effect == Effect.BLUR) {
+			if (mScratch == null || mScratch.length < width * height) {
+				mScratch = new int[width * height];
+			}
+			blur(pixels, mScratch, width, height, params.blurRadius,
+					params.blurIterations);
+		} else if (params.effect == Effect.COLOR) {
+			Arrays.fill(pixels, 0, width * height, params.mosaicColor);
+		}
+	}
+
+	// coverage of the edits of spec over rows top to bottom of a width
+	// wide image, the edits are scaled by scale first, false if no mosaic
+	// was added there
+	public boolean rasterize(EditSpec spec, float scale, int top,
+			int bottom, int width) {
+		int length = width * (bottom - top);
+		if (mCoverage == null || mCoverage.length < length) {
+			mCoverage = new byte[length];
+		}
+		Arrays.fill(mCoverage, 0, length, (byte) 0);
+		mCoverageLength = length;
+
+		// only edits whose bounds reach the band, a target pixel of
+		// anti-aliasing is more than one log pixel when scaled down
+		EditLog log = spec.log;
+		EditIndex index = log.getIndex();
+		float margin = 1f / scale;
+		int count = index.query(mCursor, -margin, top / scale - margin, width
+				/ scale + margin, bottom / scale + margin);
+		int[] edits = mCursor.getResult();
+
+		float[] points = log.getPoints();
+		int type = spec.getType();
+		boolean touched = false;
+		for (int entry = 0; entry < count; ++entry) {
+			int edit = edits[entry];
+			if (log.getType(edit) != type) {
+				continue;
+			}
+
+			boolean hit = false;
+			boolean erase = log.isErase(edit);
+			int offset = log.getPointOffset(edit);
+			int end = offset + log.getPointLength(edit);
+			if (type == EditLog.TYPE_RECT) {
+				hit = fillRect(points[offset] * scale, points[offset + 1]
+						* scale, points[offset + 2] * scale,
+						points[offset + 3] * scale, erase, top, bottom, width);
+			} else {
+				float strokeWidth = log.getPathWidth(edit) * scale;
+				float lastX = points[offset] * scale;
+				float lastY = points[offset + 1] * scale;
+				if (end - offset == 2) {
+					hit = drawSegment(lastX, lastY, lastX, lastY, strokeWidth,
+							erase, top, bottom, width);
+				}
+				for (int point = offset + 2; point + 1 < end; point += 2) {
+					float x = points[point] * scale;
+					float y = points[point + 1] * scale;
+					hit |= drawSegment(lastX, lastY, x, y, strokeWidth, erase,
+							top, bottom, width);
+					lastX = x;
+					lastY = y;
+				}
+			}
+			touched |= hit && !erase;
+		}
+		return touched;
+	}
+
+	// blend cover over base by the coverage of the last rasterize, in place
+	// in base, both hold rows of width pixels
+	public void composite(int[] base, int baseOffset, int[] cover,
+			int coverOffset, int width, int rows) {
+		byte[] coverage = mCoverage;
+		int length = Math.min(width * rows, mCoverageLength);
+		for (int index = 0; index < length; ++index) {
+			int alpha = coverage[index] & 0xff;
+			if (alpha == 0) {
+				continue;
+			}
+
+			int c = cover[coverOffset + index];
+			if (alpha == 255) {
+				base[baseOffset + index] = c;
+				continue;
+			}
+
+			int b = base[baseOffset + index];
+			int result = 0;
+			for (int shift = 0; shift < 32; shift += 8) {
+				int bc = (b >>> shift) & 0xff;
+				int cc = (c >>> shift) & 0xff;
+				result |= (bc + ((cc - bc) * alpha + 127) / 255) << shift;
+			}
+			base[baseOffset + index] = result;
+		}
+	}
+
+	private boolean fillRect(float l, float t, float r, float b,
+			boolean erase, int top, int bottom, int width) {
+		// edges go to the nearest pixel, corners may come in any order
+		int left = Math.max(Math.round(Math.min(l, r)), 0);
+		int right = Math.min(Math.round(Math.max(l, r)), width);
+		int from = Math.max(Math.round(Math.min(t, b)), top);
+		int to = Math.min(Math.round(Math.max(t, b)), bottom);
+		if (right <= left || to <= from) {
+			return false;
+		}
+
+		byte value = erase ? 0 : (byte) 255;
+		for (int y = from; y < to; ++y) {
+			int start = (y - top) * width;
+			Arrays.fill(mCoverage, start + left, start + right, value);
+		}
+		return true;
+	}
+
+	// anti-aliased capsule, coverage falls off over one pixel at the edge
+	private boolean drawSegment(float startX, float startY, float stopX,
+			float stopY, float strokeWidth, boolean erase, int top,
+			int bottom, int width) {
+		float half = strokeWidth / 2f;
+		int left = Math.max((int) Math.floor(Math.min(startX, stopX) - half
+				- 1f), 0);
+		int right = Math.min((int) Math.ceil(Math.max(startX, stopX) + half
+				+ 1f), width);
+		int from = Math.max((int) Math.floor(Math.min(startY, stopY) - half
+				- 1f), top);
+		int to = Math.min((int) Math.ceil(Math.max(startY, stopY) + half
+				+ 1f), bottom);
+		if (right <= left || to <= from) {
+			return false;
+		}
+
+		float dx = stopX - startX;
+		float dy = stopY - startY;
+		float length = dx * dx + dy * dy;
+		byte[] coverage = mCoverage;
+		for (int y = from; y < to; ++y) {
+			float py = y + 0.5f;
+			int start = (y - top) * width;
+			for (int x = left; x < right; ++x) {
+				float px = x + 0.5f;
+				float t = 0f;
+				if (length > 0f) {
+					t = ((px - startX) * dx + (py - startY) * dy) / length;
+					t = t < 0f ? 0f : (t > 1f ? 1f : t);
+				}
+				float ox = startX + t * dx - px;
+				float oy = startY + t * dy - py;
+				float alpha = half + 0.5f
+						- (float) Math.sqrt(ox * ox + oy * oy);
+				if (alpha <= 0f) {
+					continue;
+				}
+
+				int value = alpha >= 1f ? 255 : (int) (alpha * 255f);
+				int old = coverage[start + x] & 0xff;
+				if (erase) {
+					coverage[start + x] = (byte) (old * (255 - value) / 255);
+				} else if (value > old) {
+					coverage[start + x] = (byte) value;
+				}
+			}
+		}
+		return true;
+	}
+
+	// separable box blur, the result ends up in pixels again
+	public static void blur(int[] pixels, int[] scratch, int width,
+			int height, int radius, int iterations) {
+		blur(pixels, scratch, width, height, radius, iterations, THREAD_COUNT);
+	}
+
+	// same, split in no more than threads stripes per pass
+	public static void blur(int[] pixels, int[] scratch, int width,
+			int height, int radius, int iterations, int threads) {
+		if (radius <= 0) {
+			return;
+		}
+
+		int[] divide = getDivideTable(radius);
+		for (int i = 0; i < iterations; i++) {
+			blurStripes(pixels, scratch, width, height, radius, divide,
+					threads);
+			blurStripes(scratch, pixels, height, width, radius, divide,
+					threads);
+		}
+	}
+
+	// one transposing pass, rows are split into stripes across the pool
+	private static void blurStripes(final int[] in, final int[] out,
+			final int width, final int height, final int radius,
+			final int[] divide, int threads) {
+		int stripes = Math.min(Math.min(threads, THREAD_COUNT), height
+				/ MIN_STRIPE_ROWS);
+		if (stripes <= 1) {
+			blur(in, out, width, height, radius, divide, 0, height);
+			return;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(stripes);
+		int rows = (height + stripes - 1) / stripes;
+		for (int start = 0; start < height; start += rows) {
+			final int top = start;
+			final int bottom = Math.min(start + rows, height);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					blur(in, out, width, height, radius, divide, top, bottom);
+					return null;
+				}
+			});
+		}
+
+		try {
+			List<Future<Void>> futures = getBlurExecutor().invokeAll(tasks);
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			// finish on the caller thread
+			Thread.currentThread().interrupt();
+			blur(in, out, width, height, radius, divide, 0, height);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static synchronized ExecutorService getBlurExecutor() {
+		if (sBlurExecutor == null) {
+			sBlurExecutor = Executors.newFixedThreadPool(THREAD_COUNT,
+					new ThreadFactory() {
+						private int mCount;
+
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "blur-"
+									+ mCount++);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return sBlurExecutor;
+	}
+
+	private static int[] getDivideTable(int radius) {
+		synchronized (sDivideTables) {
+			int[] divide = sDivideTables.get(radius);
+			if (divide == null) {
+				int tableSize = 2 * radius + 1;
+				divide = new int[256 * tableSize];
+				for (int index = 0; index < 256 * tableSize; index++) {
+					divide[index] = index / tableSize;
+				}
+				sDivideTables.put(radius, divide);
+			}
+			return divide;
+		}
+	}
+
+	// whether grid cells are wider than a pixel of the layer
+	public static boolean hasGrid(EffectParams params) {
+		return params.gridWidth > Math.max(params.gridSample, 1);
+	}
+
+	// edges of the grid cells over from to to of an axis of a layer size
+	// pixels long, the first edge is at or before from, the last one at or
+	// after to but not past size
+	public static int[] getCellEdges(EffectParams params, int from, int to,
+			int size) {
+		int grid = params.gridWidth;
+		int sample = Math.max(params.gridSample, 1);
+		int first = getCell(grid, sample, from);
+		int last = getCell(grid, sample, Math.max(to - 1, from)) + 1;
+		int[] edges = new int[last - first + 1];
+		for (int cell = first; cell <= last; ++cell) {
+			edges[cell - first] = Math.min(getCellEdge(grid, sample, cell),
+					size);
+		}
+		return edges;
+	}
+
+	// edges of the cells over length pixels from origin, relative to origin
+	// and clipped to them
+	private static int[] getBufferEdges(EffectParams params, int origin,
+			int length) {
+		int[] edges = getCellEdges(params, origin, origin + length, origin
+				+ length);
+		for (int index = 0; index < edges.length; ++index) {
+			edges[index] = Math.max(edges[index] - origin, 0);
+		}
+		return edges;
+	}
+
+	// left edge of cell, in layer pixels, grid image pixels are sample
+	// layer pixels
+	private static int getCellEdge(int grid, int sample, int cell) {
+		return (int) ((2L * cell * grid + sample) / (2L * sample));
+	}
+
+	// cell of a layer pixel, cells are at least a pixel wide
+	private static int getCell(int grid, int sample, int x) {
+		int cell = (int) ((long) Math.max(x, 0) * sample / grid);
+		while (getCellEdge(grid, sample, cell + 1) <= x) {
+			cell++;
+		}
+		while (cell > 0 && getCellEdge(grid, sample, cell) > x) {
+			cell--;
+		}
+		return cell;
+	}
+
+	// pixelate in place, every grid cell is filled with the color of its
+	// top-left pixel, or with the mean color of the cell when average is set,
+	// one pass over the pixels, cheaper than a table which is used once
+	public static void pixelate(int[] pixels, int width, int height,
+			int grid, boolean average) {
+		if (grid <= 1) {
+			return;
+		}
+
+		EffectParams params = new EffectParams();
+		params.gridWidth = grid;
+		pixelate(pixels, width, height, getBufferEdges(params, 0, width),
+				getBufferEdges(params, 0, height), average);
+	}
+
+	// same with cells between the edges of columns and rows, which start at
+	// 0 and end at width and height
+	public static void pixelate(int[] pixels, int width, int height,
+			int[] columns, int[] rows, boolean average) {
+		int horCount = columns.length - 1;
+		int[] colors = new int[horCount];
+		int[] sums = average ? new int[horCount * 4] : null;
+
+		for (int row = 0; row + 1 < rows.length; ++row) {
+			int top = rows[row];
+			int bottom = rows[row + 1];
+			if (bottom <= top) {
+				continue;
+			}
+			int rowStart = top * width;
+
+			if (average) {
+				cellAverages(pixels, width, top, bottom, columns, sums, colors);
+			} else {
+				for (int horIndex = 0; horIndex < horCount; ++horIndex) {
+					colors[horIndex] = pixels[rowStart
+							+ Math.min(columns[horIndex], width - 1)];
+				}
+			}
+
+			// fill the first row of the band, then copy it downwards
+			for (int horIndex = 0; horIndex < horCount; ++horIndex) {
+				int l = columns[horIndex];
+				int r = columns[horIndex + 1];
+				int color = colors[horIndex];
+				for (int x = l; x < r; ++x) {
+					pixels[rowStart + x] = color;
+				}
+			}
+			for (int y = top + 1; y < bottom; ++y) {
+				System.arraycopy(pixels, rowStart, pixels, y * width, width);
+			}
+		}
+	}
+
+	// same with the mean colors of table, which is built over pixels first
+	// and can then pixelate them again at any grid width in O(1) per cell
+	public static void pixelate(int[] pixels, int width, int height,
+			int grid, SummedAreaTable table) {
+		if (grid <= 1) {
+			return;
+		}
+
+		table.build(pixels, width, height);
+		table.pixelate(grid, pixels, 0, 0, width, height);
+	}
+
+	private static void cellAverages(int[] pixels, int width, int top,
+			int bottom, int[] columns, int[] sums, int[] colors) {
+		int horCount = colors.length;
+		for (int index = 0; index < sums.length; ++index) {
+			sums[index] = 0;
+		}
+
+		for (int y = top; y < bottom; ++y) {
+			int rowStart = y * width;
+			for (int horIndex = 0; horIndex < horCount; ++horIndex) {
+				int l = columns[horIndex];
+				int r = columns[horIndex + 1];
+				int ta = 0, tr = 0, tg = 0, tb = 0;
+				for (int x = l; x < r; ++x) {
+					int rgb = pixels[rowStart + x];
+					ta += rgb >>> 24;
+					tr += (rgb >> 16) & 0xff;
+					tg += (rgb >> 8) & 0xff;
+					tb += rgb & 0xff;
+				}
+				int cell = horIndex << 2;
+				sums[cell] += ta;
+				sums[cell + 1] += tr;
+				sums[cell + 2] += tg;
+				sums[cell + 3] += tb;
+			}
+		}
+
+		int rows = bottom - top;
+		for (int horIndex = 0; horIndex < horCount; ++horIndex) {
+			int count = (columns[horIndex + 1] - columns[horIndex]) * rows;
+			if (count <= 0) {
+				continue;
+			}
+			int cell = horIndex << 2;
+			colors[horIndex] = (getMean(sums[cell], count) << 24)
+					| (getMean(sums[cell + 1], count) << 16)
+					| (getMean(sums[cell + 2], count) << 8)
+					| getMean(sums[cell + 3], count);
+		}
+	}
+
+	// rounded mean of one channel, every averaged grid goes through here so
+	// preview and export pick the same colors
+	static int getMean(long sum, long count) {
+		return (int) ((sum + count / 2) / count);
+	}
+
+	private static void blur(int[] in, int[] out, int width, int height,
+			int radius, int[] divide, int top, int bottom) {
+		int widthMinus1 = width - 1;
+		int inIndex = top * width;
+
+		for (int y = top; y < bottom; y++) {
+			int outIndex = y;
+			int ta = 0, tr = 0, tg = 0, tb = 0;
+
+			for (int i = -radius; i <= radius; i++) {
+				int rgb = in[inIndex + clamp(i, 0, width - 1)];
+				ta += (rgb >> 24) & 0xff;
+				tr += (rgb >> 16) & 0xff;
+				tg += (rgb >> 8) & 0xff;
+				tb += rgb & 0xff;
+			}
+
+			for (int x = 0; x < width; x++) {
+				out[outIndex] = (divide[ta] << 24) | (divide[tr] << 16)
+						| (divide[tg] << 8) | divide[tb];
+
+				int i1 = x + radius + 1;
+				if (i1 > widthMinus1)
+					i1 = widthMinus1;
+				int i2 = x - radius;
+				if (i2 < 0)
+					i2 = 0;
+				int rgb1 = in[inIndex + i1];
+				int rgb2 = in[inIndex + i2];
+
+				ta += ((rgb1 >> 24) & 0xff) - ((rgb2 >> 24) & 0xff);
+				tr += ((rgb1 & 0xff0000) - (rgb2 & 0xff0000)) >> 16;
+				tg += ((rgb1 & 0xff00) - (rgb2 & 0xff00)) >> 8;
+				tb += (rgb1 & 0xff) - (rgb2 & 0xff);
+				outIndex += height;
+			}
+			inIndex += width;
+		}
+	}
+
+	private static int clamp(int x, int a, int b) {
+		return (x < a) ? a : (x > b) ? b : x;
+	}
+}
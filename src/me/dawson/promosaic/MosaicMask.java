@@ -0,0 +1,299 @@
+package me.dawson.promosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+// coverage of the mosaic over the image, only the alpha of it is used
+public abstract class MosaicMask {
+	protected final int mWidth;
+	protected final int mHeight;
+
+	protected MosaicMask(int width, int height) {
+		this.mWidth = width;
+		this.mHeight = height;
+	}
+
+	// anti-aliased strokes need an alpha channel, rectangles are hard edged
+	public static MosaicMask create(Mode mode, LayerPool pool, int width,
+			int height) {
+		if (mode == Mode.GRID) {
+			return new BitsetMask(width, height);
+		}
+		return new AlphaMask(pool, width, height);
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public abstract void clear();
+
+	public abstract void fillRect(Rect rect, boolean erase);
+
+	public abstract void drawLine(float startX, float startY, float stopX,
+			float stopY, float width, boolean erase);
+
+	// mosaic = cover DST_IN mask over bounds, cover and mosaic are tiles
+	// whose top-left pixel is at the top-left of bounds
+	public abstract void composite(Bitmap cover, Bitmap mosaic, Rect bounds);
+
+	public abstract long getByteCount();
+
+	// coverage of bounds as one byte per pixel, bounds.width() per row
+	public abstract void readAlpha(Rect bounds, byte[] alpha);
+
+	// replace the coverage of bounds, which is at most a tile
+	public abstract void writeAlpha(Rect bounds, byte[] alpha);
+
+	// 8 bits per pixel, backed by an ALPHA_8 bitmap from the layer pool
+	public static class AlphaMask extends MosaicMask {
+		private final LayerPool mPool;
+		private final Bitmap bmMask;
+		private final Canvas mCanvas;
+		private final Paint mStrokePaint;
+		private final Paint mErasePaint;
+		private final Paint mMaskPaint;
+		private final Paint mCopyPaint;
+		private int[] mPixels;
+
+		public AlphaMask(LayerPool pool, int width, int height) {
+			super(width, height);
+			mPool = pool;
+			bmMask = pool.obtainClean(LayerPool.LAYER_TOUCH, width, height,
+					Config.ALPHA_8);
+			mCanvas = new Canvas(bmMask);
+
+			mStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+			mStrokePaint.setStrokeJoin(Paint.Join.ROUND);
+			mStrokePaint.setStrokeCap(Paint.Cap.ROUND);
+			mStrokePaint.setColor(Color.BLACK);
+
+			mErasePaint = new Paint(mStrokePaint);
+			mErasePaint.setColor(Color.TRANSPARENT);
+			mErasePaint.setXfermode(new PorterDuffXfermode(
+					PorterDuff.Mode.CLEAR));
+
+			mMaskPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+			mMaskPaint.setXfermode(new PorterDuffXfermode(
+					PorterDuff.Mode.DST_IN));
+
+			mCopyPaint = new Paint();
+			mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+		}
+
+		public void clear() {
+			bmMask.eraseColor(Color.TRANSPARENT);
+		}
+
+		public void fillRect(Rect rect, boolean erase) {
+			Paint paint = erase ? mErasePaint : mStrokePaint;
+			paint.setStyle(Paint.Style.FILL);
+			mCanvas.drawRect(rect, paint);
+		}
+
+		public void drawLine(float startX, float startY, float stopX,
+				float stopY, float width, boolean erase) {
+			Paint paint = erase ? mErasePaint : mStrokePaint;
+			paint.setStyle(Paint.Style.STROKE);
+			paint.setStrokeWidth(width);
+			mCanvas.drawLine(startX, startY, stopX, stopY, paint);
+		}
+
+		public void composite(Bitmap cover, Bitmap mosaic, Rect bounds) {
+			Canvas canvas = new Canvas(mosaic);
+			canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+			canvas.save();
+			canvas.clipRect(0, 0, bounds.width(), bounds.height());
+			canvas.drawBitmap(cover, 0, 0, null);
+			canvas.drawBitmap(bmMask, -bounds.left, -bounds.top, mMaskPaint);
+			canvas.restore();
+		}
+
+		public long getByteCount() {
+			return (long) bmMask.getRowBytes() * bmMask.getHeight();
+		}
+
+		public void readAlpha(Rect bounds, byte[] alpha) {
+			int length = bounds.width() * bounds.height();
+			int[] pixels = getPixels(length);
+			bmMask.getPixels(pixels, 0, bounds.width(), bounds.left,
+					bounds.top, bounds.width(), bounds.height());
+			for (int index = 0; index < length; ++index) {
+				alpha[index] = (byte) (pixels[index] >>> 24);
+			}
+		}
+
+		// setPixels does not take ALPHA_8 on every version, the alpha goes
+		// through an ARGB tile drawn over the mask instead
+		public void writeAlpha(Rect bounds, byte[] alpha) {
+			int length = bounds.width() * bounds.height();
+			int[] pixels = getPixels(length);
+			for (int index = 0; index < length; ++index) {
+				pixels[index] = (alpha[index] & 0xff) << 24;
+			}
+
+			Bitmap tile = mPool.obtainTile();
+			tile.setPixels(pixels, 0, bounds.width(), 0, 0, bounds.width(),
+					bounds.height());
+			mCanvas.save();
+			mCanvas.clipRect(bounds);
+			mCanvas.drawBitmap(tile, bounds.left, bounds.top, mCopyPaint);
+			mCanvas.restore();
+			mPool.recycleTile(tile);
+		}
+
+		private int[] getPixels(int length) {
+			if (mPixels == null || mPixels.length < length) {
+				mPixels = new int[length];
+			}
+			return mPixels;
+		}
+	}
+
+	// 1 bit per pixel, rows padded to 64 bits
+	public static class BitsetMask extends MosaicMask {
+		private final long[] mBits;
+		private final int mStride;
+		private int[] mRow;
+
+		public BitsetMask(int width, int height) {
+			super(width, height);
+			mStride = (width + 63) >> 6;
+			mBits = new long[mStride * height];
+		}
+
+		public void clear() {
+			for (int index = 0; index < mBits.length; ++index) {
+				mBits[index] = 0L;
+			}
+		}
+
+		public boolean get(int x, int y) {
+			long word = mBits[y * mStride + (x >> 6)];
+			return (word & (1L << (x & 63))) != 0;
+		}
+
+		public void fillRect(Rect rect, boolean erase) {
+			int left = Math.max(rect.left, 0);
+			int top = Math.max(rect.top, 0);
+			int right = Math.min(rect.right, mWidth);
+			int bottom = Math.min(rect.bottom, mHeight);
+			for (int y = top; y < bottom; ++y) {
+				fillSpan(y, left, right, erase);
+			}
+		}
+
+		// stroke is rasterized as a capsule, pixel centers within half of
+		// the width to the segment are covered
+		public void drawLine(float startX, float startY, float stopX,
+				float stopY, float width, boolean erase) {
+			float half = width / 2f;
+			int left = Math.max((int) Math.floor(Math.min(startX, stopX)
+					- half), 0);
+			int top = Math.max((int) Math.floor(Math.min(startY, stopY)
+					- half), 0);
+			int right = Math.min((int) Math.ceil(Math.max(startX, stopX)
+					+ half), mWidth);
+			int bottom = Math.min((int) Math.ceil(Math.max(startY, stopY)
+					+ half), mHeight);
+
+			float dx = stopX - startX;
+			float dy = stopY - startY;
+			float length = dx * dx + dy * dy;
+			float limit = half * half;
+			for (int y = top; y < bottom; ++y) {
+				float py = y + 0.5f;
+				for (int x = left; x < right; ++x) {
+					float px = x + 0.5f;
+					float t = 0f;
+					if (length > 0f) {
+						t = ((px - startX) * dx + (py - startY) * dy) / length;
+						t = t < 0f ? 0f : (t > 1f ? 1f : t);
+					}
+					float ox = startX + t * dx - px;
+					float oy = startY + t * dy - py;
+					if (ox * ox + oy * oy <= limit) {
+						fillSpan(y, x, x + 1, erase);
+					}
+				}
+			}
+		}
+
+		public void composite(Bitmap cover, Bitmap mosaic, Rect bounds) {
+			int left = bounds.left;
+			int top = bounds.top;
+			int right = bounds.right;
+			int bottom = bounds.bottom;
+			int width = right - left;
+			if (width <= 0 || bottom <= top) {
+				return;
+			}
+
+			if (mRow == null || mRow.length < width) {
+				mRow = new int[width];
+			}
+			for (int y = top; y < bottom; ++y) {
+				cover.getPixels(mRow, 0, width, 0, y - top, width, 1);
+				int base = y * mStride;
+				for (int x = left; x < right; ++x) {
+					if ((mBits[base + (x >> 6)] & (1L << (x & 63))) == 0) {
+						mRow[x - left] = Color.TRANSPARENT;
+					}
+				}
+				mosaic.setPixels(mRow, 0, width, 0, y - top, width, 1);
+			}
+		}
+
+		public long getByteCount() {
+			return mBits.length * 8L;
+		}
+
+		public void readAlpha(Rect bounds, byte[] alpha) {
+			int index = 0;
+			for (int y = bounds.top; y < bounds.bottom; ++y) {
+				for (int x = bounds.left; x < bounds.right; ++x) {
+					alpha[index++] = get(x, y) ? (byte) 255 : 0;
+				}
+			}
+		}
+
+		public void writeAlpha(Rect bounds, byte[] alpha) {
+			int index = 0;
+			for (int y = bounds.top; y < bounds.bottom; ++y) {
+				for (int x = bounds.left; x < bounds.right; ++x) {
+					fillSpan(y, x, x + 1, alpha[index++] == 0);
+				}
+			}
+		}
+
+		private void fillSpan(int y, int left, int right, boolean erase) {
+			if (right <= left) {
+				return;
+			}
+
+			int base = y * mStride;
+			int first = left >> 6;
+			int last = (right - 1) >> 6;
+			for (int word = first; word <= last; ++word) {
+				int from = word == first ? left & 63 : 0;
+				int to = word == last ? ((right - 1) & 63) + 1 : 64;
+				long bits = (to == 64 ? -1L : (1L << to) - 1) & (-1L << from);
+				if (erase) {
+					mBits[base + word] &= ~bits;
+				} else {
+					mBits[base + word] |= bits;
+				}
+			}
+		}
+	}
+}
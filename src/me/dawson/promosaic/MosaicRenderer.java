@@ -0,0 +1,1879 @@
+package me.dawson.promosaic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import me.dawson.promosaic.BitmapUtil.Size;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+// owns the image layers and does all mosaic work on its own thread, the ui
+// thread only posts commands and draws the last published tiles
+public class MosaicRenderer implements Handler.Callback {
+	public static final String TAG = "MosaicRenderer";
+
+	public interface Listener {
+		// called on the render thread after new tiles were published
+		public void onFrameReady();
+	}
+
+	public interface SaveListener {
+		// called on the export thread, progress goes from 0 to 1
+		public void onSaveProgress(SaveTask task, float progress);
+
+		public void onSaveComplete(SaveTask task, boolean succeed);
+	}
+
+	// handle of one save, the image is written to a temporary file and
+	// renamed over the output path when complete
+	public static class SaveTask {
+		private final String mOutPath;
+		private final SaveListener mListener;
+		private final CountDownLatch mDone;
+		private final ExportOptions mOptions;
+		private volatile boolean mCancelled;
+		private volatile boolean mSucceed;
+		private volatile ExportMetrics mMetrics;
+
+		SaveTask(String outPath, ExportOptions options, SaveListener listener) {
+			this.mOutPath = outPath;
+			this.mOptions = new ExportOptions(options);
+			this.mListener = listener;
+			this.mDone = new CountDownLatch(1);
+		}
+
+		public String getOutPath() {
+			return mOutPath;
+		}
+
+		// stop after the current band, the output path is left untouched
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		public boolean isDone() {
+			return mDone.getCount() == 0;
+		}
+
+		// encode size and timing, null until the save succeeded
+		public ExportMetrics getMetrics() {
+			return mMetrics;
+		}
+
+		// block until the save is done, false if it failed or was cancelled
+		public boolean await() {
+			try {
+				mDone.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return mSucceed;
+		}
+
+		void progress(float progress) {
+			if (mListener != null) {
+				mListener.onSaveProgress(this, progress);
+			}
+		}
+
+		void complete(boolean succeed) {
+			mSucceed = succeed;
+			mDone.countDown();
+			if (mListener != null) {
+				mListener.onSaveComplete(this, succeed);
+			}
+		}
+	}
+
+	// share of the heap for everything the renderer caches, one budget
+	// held by its pool, the layers, tables and history below draw from it
+	private static final int MEMORY_DIVISOR = 2;
+
+	// most of the budget the tiles of base, and of cover, mosaic and detail
+	// each, may take, the pool still bounds them all together
+	private static final int BASE_MEMORY_DIVISOR = 4;
+	private static final int LAYER_MEMORY_DIVISOR = 8;
+
+	// most of the budget the summed area table of the proxy may take
+	private static final int TABLE_MEMORY_DIVISOR = 4;
+
+	// share of the budget for the mask tiles kept to undo strokes
+	private static final int HISTORY_MEMORY_DIVISOR = 16;
+
+	// lower bound of the tile budget of each layer
+	private static final int MIN_TILES = 16;
+
+	// coarser levels over the proxy, and the share of the budget of a layer
+	// each of them gets
+	private static final int PYRAMID_LEVELS = 4;
+	private static final int PYRAMID_TILE_DIVISOR = 4;
+
+	private static final int MSG_FLUSH = 1;
+	private static final int MSG_QUIT = 2;
+
+	private static final int CMD_LOAD = 0;
+	private static final int CMD_RESET = 1;
+	private static final int CMD_EFFECT = 2;
+	private static final int CMD_MODE = 3;
+	private static final int CMD_LINE = 4;
+	private static final int CMD_RECT = 5;
+	private static final int CMD_CLEAR = 6;
+	private static final int CMD_SAVE = 7;
+	private static final int CMD_FETCH = 8;
+	private static final int CMD_END_PATH = 9;
+	private static final int CMD_REPLAY = 10;
+	private static final int CMD_UNDO = 11;
+	private static final int CMD_REDO = 12;
+	private static final int CMD_VIEWPORT = 13;
+	private static final int CMD_PRECOMPUTE = 14;
+
+	// detail tiles decoded by one flush, the rest follow in later ones so
+	// that edits are not held up
+	private static final int MAX_DETAIL_FETCH = 8;
+
+	// cover tiles of other effects rendered ahead by one flush
+	private static final int MAX_PRECOMPUTE = 4;
+
+	// mosaic tiles off screen recomposed by one flush after a change of
+	// the effect, the visible ones come first and all at once
+	private static final int MAX_REFINE = 8;
+
+	private static class Command {
+		int type;
+		String path;
+		int maxWidth;
+		int maxHeight;
+		Mode mode;
+		EffectParams params;
+		// line start and stop, or rectangle bounds, in image pixels
+		float left;
+		float top;
+		float right;
+		float bottom;
+		float width;
+		boolean erase;
+		SaveTask save;
+		EditLog log;
+		// touch event behind an edit, System.nanoTime based
+		long time;
+	}
+
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	private final Listener mListener;
+	private final RenderMetrics mMetrics;
+
+	// time of the touch event the next edits come from, ui thread only
+	private long mInputTime;
+
+	// saves run here with their own buffers, the render thread only takes
+	// a snapshot of the edits
+	private final HandlerThread mExportThread;
+	private final Handler mExportHandler;
+	private final LayerPool mExportPool;
+	private final ExportEngine mExportEngine;
+
+	// commands from the ui thread, drained in order by one flush
+	private List<Command> mPending;
+	private List<Command> mDraining;
+	private boolean mFlushPosted;
+	private volatile boolean mFetchPosted;
+
+	// published layers, guarded by mFrameLock
+	private final Object mFrameLock;
+	private TiledLayer mFrontBase;
+	private TiledLayer mFrontDetail;
+	private TiledLayer mFrontMosaic;
+	private TiledLayer mFrontBaseLevel;
+	private TiledLayer mFrontMosaicLevel;
+
+	// everything below is only touched on the render thread
+	private final LayerPool mLayerPool;
+	private final MosaicEngine mEngine;
+
+	// full resolution image
+	private String mSourcePath;
+	private int mSourceWidth;
+	private int mSourceHeight;
+
+	// layers and masks hold a proxy subsampled by mSampleSize, edits are
+	// logged in image pixels and replayed at full resolution on save
+	private int mSampleSize;
+	private int mImageWidth;
+	private int mImageHeight;
+	private EditLog mEditLog;
+
+	// mask tiles of current stroke are kept as they were before it, each
+	// tile once, so that the stroke can be undone
+	private EditHistory mHistory;
+	private EditHistory.Delta mStroke;
+	private boolean[] mCaptured;
+	private final byte[] mAlpha;
+
+	// feeds logged edits through the masks, recorded or not
+	private final EditLog.Replayer mRecorder;
+	private final EditLog.Replayer mApplier;
+
+	// source of base tiles, the subsampled image only when regions can not
+	// be decoded on this platform
+	private BitmapRegionDecoder mDecoder;
+	private Bitmap bmSource;
+	private final BitmapFactory.Options mDecodeOptions;
+
+	private TiledLayer mBaseTiles;
+
+	// cover of current effect, taken from the cache which keeps the ones of
+	// other effects and images too
+	private final CoverCache mCoverCache;
+	private CoverCache.Cover mCover;
+	private String mCoverKey;
+	private boolean mPrecomputePosted;
+
+	// sums of the whole proxy, averaged grid covers of any grid width come
+	// from it without reading base again, null until the grid width changes
+	// under an averaged grid or if too big
+	private SummedAreaTable mGridTable;
+	private long mGridTableBytes;
+
+	// part of the pool budget held for the history of current image
+	private long mHistoryBytes;
+	private boolean mRegrid;
+	private TiledLayer mMosaicTiles;
+
+	// base and mosaic halved per level, the level closest to the viewport
+	// is drawn while zoomed out past the proxy
+	private TilePyramid mBasePyramid;
+	private TilePyramid mMosaicPyramid;
+	private int mPyramidLevel;
+
+	// base decoded finer than the proxy around the viewport, only while
+	// zoomed in past the proxy and regions can be decoded
+	private TiledLayer mDetailTiles;
+	private int mDetailSample;
+	private final BitmapFactory.Options mDetailOptions;
+
+	// visible image pixels, and image pixels per screen pixel
+	private final float[] mViewport;
+	private float mViewportDensity;
+	private boolean mViewportChanged;
+
+	private MosaicMask mPathMask;
+	private MosaicMask mGridMask;
+
+	// tiles touched by edits of each mode
+	private boolean[] mPathTiles;
+	private boolean[] mGridTiles;
+
+	// part of each tile edits of each mode drew into, covers are rendered
+	// there only, it grows until the masks are cleared
+	private Rect[] mPathMasked;
+	private Rect[] mGridMasked;
+
+	private Mode mMode;
+	private EffectParams mParams;
+	private EffectParams mProxyParams;
+
+	private final Rect mDirtyRect;
+	private final Rect mStrokeRect;
+	private final Rect mRange;
+	private final Rect mBounds;
+	private final Rect mDecodeRect;
+	private final Rect mTileRect;
+	private final Rect mDstRect;
+	private final Rect mCoverRect;
+	private final Rect mRenderedRect;
+
+	// scratch of renderCoverTile and readBase, which run for every tile,
+	// and of viewport updates
+	private final Rect mCoverBounds;
+	private final Rect mSourceRect;
+	private final int[] mSource;
+	private final Rect mReadRange;
+	private final Rect mReadBounds;
+	private final Rect mVisibleRect;
+	private final Paint mCopyPaint;
+
+	public MosaicRenderer(Listener listener) {
+		mListener = listener;
+		mMetrics = new RenderMetrics();
+
+		mPending = new ArrayList<Command>();
+		mDraining = new ArrayList<Command>();
+		mFrameLock = new Object();
+
+		mLayerPool = new LayerPool(Runtime.getRuntime().maxMemory()
+				/ MEMORY_DIVISOR);
+		mEngine = new MosaicEngine();
+		mDecodeOptions = new BitmapFactory.Options();
+		mDecodeOptions.inPreferredConfig = Config.ARGB_8888;
+		mDetailOptions = new BitmapFactory.Options();
+		mDetailOptions.inPreferredConfig = Config.ARGB_8888;
+		mViewport = new float[4];
+		mCoverCache = new CoverCache(mLayerPool,
+				getMaxTiles(LAYER_MEMORY_DIVISOR));
+		mExportPool = new LayerPool();
+		mExportEngine = new ExportEngine(mExportPool);
+
+		mDirtyRect = new Rect();
+		mStrokeRect = new Rect();
+		mRange = new Rect();
+		mBounds = new Rect();
+		mDecodeRect = new Rect();
+		mTileRect = new Rect();
+		mDstRect = new Rect();
+		mCoverRect = new Rect();
+		mRenderedRect = new Rect();
+		mCoverBounds = new Rect();
+		mSourceRect = new Rect();
+		mSource = new int[4];
+		mReadRange = new Rect();
+		mReadBounds = new Rect();
+		mVisibleRect = new Rect();
+		mAlpha = new byte[TiledLayer.TILE_SIZE * TiledLayer.TILE_SIZE];
+		mRecorder = new EditReplayer(true);
+		mApplier = new EditReplayer(false);
+
+		mCopyPaint = new Paint();
+		mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+
+		mMode = Mode.PATH;
+		mSampleSize = 1;
+
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DEFAULT);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper(), this);
+
+		mExportThread = new HandlerThread(TAG + "Export",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		mExportThread.start();
+		mExportHandler = new Handler(mExportThread.getLooper());
+	}
+
+	// edit a proxy at least maxWidth x maxHeight instead of the full image
+	public void load(String absPath, EffectParams params, Mode mode,
+			int maxWidth, int maxHeight) {
+		Command command = new Command();
+		command.type = CMD_LOAD;
+		command.path = absPath;
+		command.maxWidth = maxWidth;
+		command.maxHeight = maxHeight;
+		command.params = new EffectParams(params);
+		command.mode = mode;
+		post(command);
+	}
+
+	public void reset() {
+		Command command = new Command();
+		command.type = CMD_RESET;
+		post(command);
+	}
+
+	public void setEffect(EffectParams params) {
+		Command command = new Command();
+		command.type = CMD_EFFECT;
+		command.params = new EffectParams(params);
+		post(command);
+	}
+
+	public void setMode(Mode mode) {
+		Command command = new Command();
+		command.type = CMD_MODE;
+		command.mode = mode;
+		post(command);
+	}
+
+	public void drawLine(float startX, float startY, float stopX,
+			float stopY, float width, boolean erase) {
+		Command command = new Command();
+		command.type = CMD_LINE;
+		command.left = startX;
+		command.top = startY;
+		command.right = stopX;
+		command.bottom = stopY;
+		command.width = width;
+		command.erase = erase;
+		command.time = getInputTime();
+		post(command);
+	}
+
+	// rectangle in image pixels
+	public void fillRect(float left, float top, float right, float bottom,
+			boolean erase) {
+		Command command = new Command();
+		command.type = CMD_RECT;
+		command.left = left;
+		command.top = top;
+		command.right = right;
+		command.bottom = bottom;
+		command.erase = erase;
+		command.time = getInputTime();
+		post(command);
+	}
+
+	// edits posted from now on come from a touch event at nanos, on the
+	// System.nanoTime clock, 0 to take the time they are posted
+	public void setInputTime(long nanos) {
+		mInputTime = nanos;
+	}
+
+	private long getInputTime() {
+		return mInputTime != 0 ? mInputTime : System.nanoTime();
+	}
+
+	// the next line starts a new path
+	public void endPath() {
+		Command command = new Command();
+		command.type = CMD_END_PATH;
+		post(command);
+	}
+
+	// apply the edits of log on top of current ones, log may have been
+	// recorded against another resolution of the image
+	public void replay(EditLog log) {
+		Command command = new Command();
+		command.type = CMD_REPLAY;
+		command.log = new EditLog(log);
+		post(command);
+	}
+
+	// image pixels from left, top to right, bottom are on screen, with
+	// density image pixels per screen pixel, decides the detail level
+	public void setViewport(float left, float top, float right,
+			float bottom, float density) {
+		Command command = new Command();
+		command.type = CMD_VIEWPORT;
+		command.left = left;
+		command.top = top;
+		command.right = right;
+		command.bottom = bottom;
+		command.width = density;
+		post(command);
+	}
+
+	// take the last edit back, or put the last undone one back
+	public void undo() {
+		Command command = new Command();
+		command.type = CMD_UNDO;
+		post(command);
+	}
+
+	// records are the undone edit, handed over by the caller
+	public void redo(EditLog records) {
+		Command command = new Command();
+		command.type = CMD_REDO;
+		command.log = records;
+		post(command);
+	}
+
+	public void clear() {
+		Command command = new Command();
+		command.type = CMD_CLEAR;
+		post(command);
+	}
+
+	// blocks the caller until the image is written
+	public boolean save(String outPath, ExportOptions options) {
+		return saveAsync(outPath, options, null).await();
+	}
+
+	// saves every edit posted before it, later edits do not wait for the
+	// save to finish
+	public SaveTask saveAsync(String outPath, ExportOptions options,
+			SaveListener listener) {
+		SaveTask task = new SaveTask(outPath, options, listener);
+		Command command = new Command();
+		command.type = CMD_SAVE;
+		command.save = task;
+		post(command);
+		return task;
+	}
+
+	// free all buffers and stop the render and export threads, a running
+	// save is finished first
+	public void release() {
+		synchronized (mPending) {
+			mPending.clear();
+		}
+		mHandler.sendEmptyMessage(MSG_QUIT);
+		mExportHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				mExportPool.release();
+				mExportThread.quit();
+			}
+		});
+	}
+
+	public boolean hasCover() {
+		synchronized (mFrameLock) {
+			return mFrontBase != null;
+		}
+	}
+
+	public LayerPool getLayerPool() {
+		return mLayerPool;
+	}
+
+	public RenderMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	// draw the published tiles inside clip, dst may reach far outside of
+	// it when zoomed in, called on the ui thread, endDraw follows once the
+	// frame is recorded
+	public void draw(Canvas canvas, Rect dst, Rect clip) {
+		int missing = 0;
+		synchronized (mFrameLock) {
+			mLayerPool.onDrawStarted();
+			if (mFrontBase != null) {
+				missing += drawLevel(canvas, dst, clip, mFrontBase,
+						mFrontBaseLevel);
+			}
+
+			// finer tiles over the proxy where they are ready
+			if (mFrontDetail != null) {
+				missing += mFrontDetail.draw(canvas, dst, clip, null);
+			}
+
+			if (mFrontMosaic != null) {
+				missing += drawLevel(canvas, dst, clip, mFrontMosaic,
+						mFrontMosaicLevel);
+			}
+		}
+
+		// evicted tiles came back on screen
+		if (missing > 0 && !mFetchPosted) {
+			postFetch();
+		}
+	}
+
+	// tiles the render thread dropped before this frame may be reused now
+	public void endDraw() {
+		mLayerPool.onDrawDone();
+	}
+
+	private void postFetch() {
+		mFetchPosted = true;
+		Command command = new Command();
+		command.type = CMD_FETCH;
+		post(command);
+	}
+
+	// the coarser level once it has every visible tile, else the layer
+	private static int drawLevel(Canvas canvas, Rect dst, Rect clip,
+			TiledLayer layer, TiledLayer level) {
+		if (level == null) {
+			return layer.draw(canvas, dst, clip, null);
+		}
+
+		int missing = level.countMissing(dst, clip);
+		if (missing == 0) {
+			return level.draw(canvas, dst, clip, null);
+		}
+		return missing + layer.draw(canvas, dst, clip, null);
+	}
+
+	private void post(Command command) {
+		synchronized (mPending) {
+			mPending.add(command);
+			if (mFlushPosted) {
+				return;
+			}
+			mFlushPosted = true;
+		}
+		mHandler.sendEmptyMessage(MSG_FLUSH);
+	}
+
+	@Override
+	public boolean handleMessage(Message msg) {
+		if (msg.what == MSG_FLUSH) {
+			flush();
+		} else if (msg.what == MSG_QUIT) {
+			doReset();
+			mCoverCache.clear();
+			mLayerPool.release();
+			mThread.quit();
+		}
+		return true;
+	}
+
+	// run every pending command, consecutive edits share one composite
+	private void flush() {
+		List<Command> commands;
+		synchronized (mPending) {
+			commands = mPending;
+			mPending = mDraining;
+			mDraining = commands;
+			mFlushPosted = false;
+		}
+
+		long time = System.nanoTime();
+		long allocated = getBytesAllocated();
+		long inputTime = Long.MAX_VALUE;
+		int edits = 0;
+
+		// a slider posts effects faster than covers render, only the last
+		// one of a flush gets its cover
+		Command effect = null;
+		for (Command command : commands) {
+			if (command.type == CMD_EFFECT) {
+				effect = command;
+			}
+		}
+
+		for (Command command : commands) {
+			if (command.type == CMD_LINE || command.type == CMD_RECT) {
+				inputTime = Math.min(inputTime, command.time);
+			}
+
+			switch (command.type) {
+			case CMD_LOAD:
+				doLoad(command.path, command.params, command.mode,
+						command.maxWidth, command.maxHeight);
+				break;
+			case CMD_RESET:
+				doReset();
+				break;
+			case CMD_EFFECT:
+				mParams = command.params;
+				if (command != effect) {
+					break;
+				}
+				EffectParams previous = mProxyParams;
+				mProxyParams = getProxyParams(mParams);
+				mRegrid |= isRegrid(previous, mProxyParams);
+				if (mCover != null) {
+					updateCover();
+					postPrecompute();
+				}
+				invalidateAll();
+				break;
+			case CMD_MODE:
+				mMode = command.mode;
+				updateExpected();
+				invalidateAll();
+				break;
+			case CMD_LINE:
+				long start = System.nanoTime();
+				doLine(command.left, command.top, command.right,
+						command.bottom, command.width, command.erase);
+				mMetrics.recordStage(RenderMetrics.STAGE_MASK,
+						System.nanoTime() - start);
+				edits++;
+				break;
+			case CMD_RECT:
+				start = System.nanoTime();
+				doRect(command.left, command.top, command.right,
+						command.bottom, command.erase);
+				mMetrics.recordStage(RenderMetrics.STAGE_MASK,
+						System.nanoTime() - start);
+				edits++;
+				break;
+			case CMD_END_PATH:
+				doEndPath();
+				break;
+			case CMD_REPLAY:
+				// replayed records are not edits, nor is what they allocate
+				long replayed = getBytesAllocated();
+				doReplay(command.log);
+				allocated += getBytesAllocated() - replayed;
+				break;
+			case CMD_UNDO:
+				doUndo();
+				break;
+			case CMD_REDO:
+				doRedo(command.log);
+				break;
+			case CMD_PRECOMPUTE:
+				doPrecompute();
+				break;
+			case CMD_VIEWPORT:
+				// only the last one of a flush matters
+				mViewport[0] = command.left;
+				mViewport[1] = command.top;
+				mViewport[2] = command.right;
+				mViewport[3] = command.bottom;
+				mViewportDensity = command.width;
+				mViewportChanged = true;
+				break;
+			case CMD_CLEAR:
+				doClear();
+				break;
+			case CMD_SAVE:
+				publish();
+				postExport(command.save);
+				break;
+			case CMD_FETCH:
+				mFetchPosted = false;
+				doFetch();
+				break;
+			}
+		}
+		commands.clear();
+
+		if (mViewportChanged) {
+			mViewportChanged = false;
+			doViewport();
+		}
+		publish();
+		if (edits > 0) {
+			long now = System.nanoTime();
+			mMetrics.recordEdits(edits);
+			mMetrics.recordAllocated(Math.max(getBytesAllocated()
+					- allocated, 0));
+			if (inputTime != Long.MAX_VALUE) {
+				mMetrics.touchLatency.record(now - inputTime);
+			}
+			if (mMetrics.isLogging()) {
+				Log.d(TAG, "flushed " + edits + " edits in " + (now - time)
+						/ 1000 + "us");
+			}
+		}
+	}
+
+	// buffers and undo tiles allocated so far
+	private long getBytesAllocated() {
+		long bytes = mLayerPool.getBytesAllocated();
+		if (mHistory != null) {
+			bytes += mHistory.getBytesAllocated();
+		}
+		return bytes;
+	}
+
+	private void doLoad(String absPath, EffectParams params, Mode mode,
+			int maxWidth, int maxHeight) {
+		doReset();
+
+		Size size = BitmapUtil.getImageSize(absPath);
+		if (size.width <= 0 || size.height <= 0) {
+			Log.w(TAG, "failed to read size of " + absPath);
+			return;
+		}
+
+		int sampleSize = BitmapUtil.getSampleSize(size.width, size.height,
+				maxWidth, maxHeight);
+		mDecodeOptions.inSampleSize = sampleSize;
+		mDecoder = BitmapUtil.getRegionDecoder(absPath);
+		if (mDecoder == null) {
+			bmSource = BitmapUtil.getImage(absPath, sampleSize);
+			if (bmSource == null) {
+				Log.w(TAG, "failed to decode " + absPath);
+				return;
+			}
+		}
+
+		mSourcePath = absPath;
+		mSourceWidth = size.width;
+		mSourceHeight = size.height;
+		mSampleSize = sampleSize;
+		mImageWidth = (size.width + sampleSize - 1) / sampleSize;
+		mImageHeight = (size.height + sampleSize - 1) / sampleSize;
+		mParams = params;
+		mProxyParams = getProxyParams(params);
+		mMode = mode;
+		mEditLog = new EditLog(size.width, size.height);
+		Log.d(TAG, "proxy " + mImageWidth + "x" + mImageHeight
+				+ " sample size " + sampleSize);
+
+		int baseTiles = getMaxTiles(BASE_MEMORY_DIVISOR);
+		int layerTiles = getMaxTiles(LAYER_MEMORY_DIVISOR);
+		mBaseTiles = new TiledLayer(mLayerPool, mImageWidth, mImageHeight,
+				baseTiles);
+		updateCover();
+		mMosaicTiles = new TiledLayer(mLayerPool, mImageWidth, mImageHeight,
+				layerTiles);
+		int levelTiles = Math.max(layerTiles / PYRAMID_TILE_DIVISOR,
+				MIN_TILES);
+		mBasePyramid = new TilePyramid(mLayerPool, mBaseTiles,
+				new TilePyramid.Source() {
+
+					@Override
+					public Bitmap obtainTile(int index) {
+						return getBaseTile(index);
+					}
+
+					@Override
+					public void releaseTile(int index, Bitmap tile) {
+						MosaicRenderer.this.releaseTile(mBaseTiles, index,
+								tile);
+					}
+				}, PYRAMID_LEVELS, levelTiles);
+		mMosaicPyramid = new TilePyramid(mLayerPool, mMosaicTiles,
+				new TilePyramid.Source() {
+
+					@Override
+					public Bitmap obtainTile(int index) {
+						if (!mMosaicTiles.contains(index)) {
+							composeTile(index);
+						}
+						return mMosaicTiles.get(index);
+					}
+
+					@Override
+					public void releaseTile(int index, Bitmap tile) {
+					}
+				}, PYRAMID_LEVELS, levelTiles);
+		mPyramidLevel = 0;
+
+		int count = mBaseTiles.getTileCount();
+		for (int index = 0; index < count; ++index) {
+			mBaseTiles.setExpected(index, true);
+		}
+		mPathTiles = new boolean[count];
+		mGridTiles = new boolean[count];
+		mPathMasked = newRects(count);
+		mGridMasked = newRects(count);
+		mCaptured = new boolean[count];
+		long historyBytes = mLayerPool.getMaxBytes() / HISTORY_MEMORY_DIVISOR;
+		if (!mLayerPool.reserveBytes(historyBytes)) {
+			// only the cover cache outlives an image, and it is smaller
+			Log.w(TAG, "no room for undo history of " + historyBytes);
+			historyBytes = 0;
+		}
+		mHistoryBytes = historyBytes;
+		mHistory = new EditHistory(historyBytes);
+
+		synchronized (mFrameLock) {
+			mFrontBase = mBaseTiles;
+			mFrontMosaic = mMosaicTiles;
+		}
+		doFetch();
+		postPrecompute();
+	}
+
+	// drop the layers of current image, the buffers stay in the pool so the
+	// next image does not allocate again
+	private void doReset() {
+		synchronized (mFrameLock) {
+			mFrontBase = null;
+			mFrontMosaic = null;
+			mFrontBaseLevel = null;
+			mFrontMosaicLevel = null;
+		}
+		dropDetail();
+
+		if (mBaseTiles != null) {
+			mBasePyramid.clear();
+			mMosaicPyramid.clear();
+			mBasePyramid = null;
+			mMosaicPyramid = null;
+			// the cover stays cached in case the image comes back
+			mBaseTiles.clear();
+			mMosaicTiles.clear();
+			mBaseTiles = null;
+			mCover = null;
+			mCoverKey = null;
+			mGridTable = null;
+			mLayerPool.releaseBytes(mGridTableBytes);
+			mGridTableBytes = 0;
+			mRegrid = false;
+			mMosaicTiles = null;
+		}
+
+		if (mDecoder != null) {
+			mDecoder.recycle();
+			mDecoder = null;
+		}
+		if (bmSource != null) {
+			bmSource.recycle();
+			bmSource = null;
+		}
+
+		mPathMask = null;
+		mGridMask = null;
+		mPathTiles = null;
+		mGridTiles = null;
+		mPathMasked = null;
+		mGridMasked = null;
+		mCaptured = null;
+		mHistory = null;
+		mLayerPool.releaseBytes(mHistoryBytes);
+		mHistoryBytes = 0;
+		mStroke = null;
+		mEditLog = null;
+		mSourcePath = null;
+		mSourceWidth = 0;
+		mSourceHeight = 0;
+		mSampleSize = 1;
+		mImageWidth = 0;
+		mImageHeight = 0;
+		mDirtyRect.setEmpty();
+	}
+
+	private void doClear() {
+		if (mMosaicTiles == null) {
+			return;
+		}
+
+		if (mPathMask != null) {
+			mPathMask.clear();
+		}
+		if (mGridMask != null) {
+			mGridMask.clear();
+		}
+		for (int index = 0; index < mPathTiles.length; ++index) {
+			mPathTiles[index] = false;
+			mGridTiles[index] = false;
+			mPathMasked[index].setEmpty();
+			mGridMasked[index].setEmpty();
+			mCaptured[index] = false;
+		}
+		mEditLog.clear();
+		mHistory.clear();
+		mStroke = null;
+		mMosaicTiles.clear();
+		mMosaicPyramid.clear();
+		updateExpected();
+		mDirtyRect.setEmpty();
+		mListener.onFrameReady();
+	}
+
+	private void doLine(float startX, float startY, float stopX,
+			float stopY, float width, boolean erase) {
+		if (getMask(Mode.PATH) == null) {
+			return;
+		}
+
+		getLineBounds(startX, startY, stopX, stopY, width, mStrokeRect);
+		captureStroke(Mode.PATH, mStrokeRect);
+		mEditLog.addLine(startX, startY, stopX, stopY, width, erase,
+				mParams.effect);
+		applyLine(startX, startY, stopX, stopY, width, erase);
+	}
+
+	private void doRect(float left, float top, float right, float bottom,
+			boolean erase) {
+		if (getMask(Mode.GRID) == null) {
+			return;
+		}
+
+		getRectBounds(left, top, right, bottom, mStrokeRect);
+		captureStroke(Mode.GRID, mStrokeRect);
+		mEditLog.addRect(left, top, right, bottom, erase, mParams.effect);
+		applyRect(left, top, right, bottom, erase);
+		endStroke();
+	}
+
+	private void applyLine(float startX, float startY, float stopX,
+			float stopY, float width, boolean erase) {
+		float scale = 1f / mSampleSize;
+		getMask(Mode.PATH).drawLine(startX * scale, startY * scale, stopX
+				* scale, stopY * scale, width * scale, erase);
+		getLineBounds(startX, startY, stopX, stopY, width, mStrokeRect);
+		markTiles(Mode.PATH, mStrokeRect, erase);
+	}
+
+	private void applyRect(float left, float top, float right,
+			float bottom, boolean erase) {
+		getRectBounds(left, top, right, bottom, mStrokeRect);
+		getMask(Mode.GRID).fillRect(mStrokeRect, erase);
+		markTiles(Mode.GRID, mStrokeRect, erase);
+	}
+
+	private void doEndPath() {
+		if (mEditLog != null) {
+			mEditLog.endPath();
+		}
+		endStroke();
+	}
+
+	// keep the mask tiles rect is about to change, the first time current
+	// stroke touches them
+	private void captureStroke(Mode mode, Rect rect) {
+		if (mHistory == null) {
+			return;
+		}
+
+		if (mStroke == null) {
+			mStroke = mHistory.begin(mode, mEditLog.size());
+		}
+		MosaicMask mask = getMask(mode);
+		boolean[] covered = mode == Mode.GRID ? mGridTiles : mPathTiles;
+		mMosaicTiles.getTileRange(rect, mRange);
+		for (int row = mRange.top; row < mRange.bottom; ++row) {
+			for (int column = mRange.left; column < mRange.right; ++column) {
+				int index = mMosaicTiles.getIndex(column, row);
+				if (mCaptured[index]) {
+					continue;
+				}
+
+				mCaptured[index] = true;
+				mMosaicTiles.getBounds(index, mTileRect);
+				mask.readAlpha(mTileRect, mAlpha);
+				mHistory.addTile(mStroke, index, covered[index], mAlpha,
+						mTileRect.width() * mTileRect.height());
+			}
+		}
+	}
+
+	private void endStroke() {
+		if (mStroke == null) {
+			return;
+		}
+
+		for (EditHistory.TileDelta tile : mStroke.tiles) {
+			mCaptured[tile.index] = false;
+		}
+		if (mEditLog.size() > mStroke.logSize) {
+			mHistory.push(mStroke);
+			// covers of the other effects follow the mask
+			postPrecompute();
+		}
+		mStroke = null;
+	}
+
+	// restore the tiles the last stroke changed, or rebuild the masks from
+	// the log when its tiles were dropped for memory
+	private void doUndo() {
+		if (mEditLog == null || mEditLog.isEmpty()) {
+			return;
+		}
+
+		endStroke();
+		int size = mEditLog.size();
+		EditHistory.Delta delta = mHistory.popUndo(size);
+		mEditLog.truncate(size - 1);
+		if (delta == null) {
+			Log.d(TAG, "undo beyond history, rebuild masks");
+			rebuildMasks();
+			return;
+		}
+
+		MosaicMask mask = getMask(delta.mode);
+		boolean[] covered = delta.mode == Mode.GRID ? mGridTiles : mPathTiles;
+		for (EditHistory.TileDelta tile : delta.tiles) {
+			mMosaicTiles.getBounds(tile.index, mTileRect);
+			mHistory.inflate(tile, mAlpha);
+			mask.writeAlpha(mTileRect, mAlpha);
+			covered[tile.index] = tile.covered;
+			if (delta.mode == mMode) {
+				mMosaicTiles.setExpected(tile.index, tile.covered);
+				mDirtyRect.union(mTileRect);
+			}
+		}
+	}
+
+	// draw the last undone edit again, it is recorded like a new one
+	private void doRedo(EditLog records) {
+		if (mEditLog == null) {
+			return;
+		}
+
+		endStroke();
+		records.replay(mRecorder, 1f);
+	}
+
+	// masks from the edit log alone
+	private void rebuildMasks() {
+		if (mPathMask != null) {
+			mPathMask.clear();
+		}
+		if (mGridMask != null) {
+			mGridMask.clear();
+		}
+		Arrays.fill(mPathTiles, false);
+		Arrays.fill(mGridTiles, false);
+		for (int index = 0; index < mPathMasked.length; ++index) {
+			mPathMasked[index].setEmpty();
+			mGridMasked[index].setEmpty();
+		}
+		mEditLog.replay(mApplier, 1f);
+		updateExpected();
+		invalidateAll();
+	}
+
+	// feed the edits of log through the masks as if they were drawn now,
+	// returns the number of edits
+	private void doReplay(EditLog log) {
+		if (mEditLog == null) {
+			return;
+		}
+
+		endStroke();
+		log.replay(mRecorder, log.getScale(mSourceWidth));
+	}
+
+	// draws logged edits, adding them to the log and history when recorded
+	private class EditReplayer implements EditLog.Replayer {
+		private final boolean mRecord;
+
+		EditReplayer(boolean record) {
+			mRecord = record;
+		}
+
+		@Override
+		public void onRect(float left, float top, float right, float bottom,
+				boolean erase) {
+			if (mRecord) {
+				doRect(left, top, right, bottom, erase);
+			} else {
+				applyRect(left, top, right, bottom, erase);
+			}
+		}
+
+		@Override
+		public void onPath(float[] points, int offset, int length,
+				float width, boolean erase) {
+			int end = offset + length;
+			float lastX = points[offset];
+			float lastY = points[offset + 1];
+			if (length == 2) {
+				line(lastX, lastY, lastX, lastY, width, erase);
+			}
+			for (int index = offset + 2; index + 1 < end; index += 2) {
+				line(lastX, lastY, points[index], points[index + 1], width,
+						erase);
+				lastX = points[index];
+				lastY = points[index + 1];
+			}
+			if (mRecord) {
+				doEndPath();
+			}
+		}
+
+		private void line(float startX, float startY, float stopX,
+				float stopY, float width, boolean erase) {
+			if (mRecord) {
+				doLine(startX, startY, stopX, stopY, width, erase);
+			} else {
+				applyLine(startX, startY, stopX, stopY, width, erase);
+			}
+		}
+	}
+
+	// proxy pixels of a rectangle, edges go to the nearest pixel like on
+	// export
+	private void getRectBounds(float left, float top, float right,
+			float bottom, Rect bounds) {
+		float scale = 1f / mSampleSize;
+		bounds.set(Math.round(Math.min(left, right) * scale),
+				Math.round(Math.min(top, bottom) * scale),
+				Math.round(Math.max(left, right) * scale),
+				Math.round(Math.max(top, bottom) * scale));
+	}
+
+	// pixels a line may touch in the proxy, half of the stroke plus one
+	// proxy pixel of anti-aliasing
+	private void getLineBounds(float startX, float startY, float stopX,
+			float stopY, float width, Rect bounds) {
+		getEditBounds(startX, startY, stopX, stopY, width / 2f,
+				1f / mSampleSize, bounds);
+	}
+
+	// pixels of the bounds of two points grown by pad, scaled from image
+	// pixels, and one more pixel after scaling for anti-aliasing
+	private static void getEditBounds(float startX, float startY,
+			float stopX, float stopY, float pad, float scale, Rect bounds) {
+		bounds.set(
+				(int) Math.floor((Math.min(startX, stopX) - pad) * scale) - 1,
+				(int) Math.floor((Math.min(startY, stopY) - pad) * scale) - 1,
+				(int) Math.ceil((Math.max(startX, stopX) + pad) * scale) + 1,
+				(int) Math.ceil((Math.max(startY, stopY) + pad) * scale) + 1);
+	}
+
+	// remember which tiles an edit touched and invalidate them
+	private void markTiles(Mode mode, Rect rect, boolean erase) {
+		boolean[] covered = mode == Mode.GRID ? mGridTiles : mPathTiles;
+		Rect[] masked = mode == Mode.GRID ? mGridMasked : mPathMasked;
+		if (!erase) {
+			mMosaicTiles.getTileRange(rect, mRange);
+			for (int row = mRange.top; row < mRange.bottom; ++row) {
+				for (int column = mRange.left; column < mRange.right;
+						++column) {
+					int index = mMosaicTiles.getIndex(column, row);
+					covered[index] = true;
+					mMosaicTiles.getBounds(index, mTileRect);
+					if (mTileRect.intersect(rect)) {
+						masked[index].union(mTileRect);
+					}
+					if (mode == mMode) {
+						mMosaicTiles.setExpected(index, true);
+					}
+				}
+			}
+		}
+
+		if (mode == mMode) {
+			mDirtyRect.union(rect);
+		}
+	}
+
+	private void updateExpected() {
+		if (mMosaicTiles == null) {
+			return;
+		}
+
+		boolean[] covered = getCovered();
+		for (int index = 0; index < covered.length; ++index) {
+			mMosaicTiles.setExpected(index, covered[index]);
+		}
+	}
+
+	private void invalidateAll() {
+		mDirtyRect.set(0, 0, mImageWidth, mImageHeight);
+	}
+
+	// recompose the mosaic tiles in the dirty rectangle, each tile is
+	// rendered aside and swapped in, so the ui never sees a partial tile
+	private void publish() {
+		if (mMosaicTiles == null || mDirtyRect.isEmpty()) {
+			mDirtyRect.setEmpty();
+			return;
+		}
+
+		long start = System.nanoTime();
+		boolean[] covered = getCovered();
+		boolean deferred = false;
+		mMosaicTiles.getTileRange(mDirtyRect, mRange);
+		for (int row = mRange.top; row < mRange.bottom; ++row) {
+			for (int column = mRange.left; column < mRange.right; ++column) {
+				int index = mMosaicTiles.getIndex(column, row);
+				if (covered[index] && isVisible(index)) {
+					composeTile(index);
+				} else {
+					// off screen tiles are refined by later fetches
+					mMosaicTiles.remove(index);
+					deferred |= covered[index];
+				}
+			}
+		}
+		if (deferred && !mFetchPosted) {
+			postFetch();
+		}
+
+		long composed = System.nanoTime();
+		mMetrics.recordStage(RenderMetrics.STAGE_COMPOSE, composed - start);
+
+		// levels above follow right away so the frame stays 1:1
+		mMosaicPyramid.invalidate(mDirtyRect);
+		mMosaicPyramid.update();
+		mMetrics.recordStage(RenderMetrics.STAGE_PYRAMID, System.nanoTime()
+				- composed);
+
+		mDirtyRect.setEmpty();
+		mListener.onFrameReady();
+	}
+
+	// bring evicted tiles which are expected on screen back
+	private void doFetch() {
+		if (mBaseTiles == null) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		int fetched = 0;
+		for (int index : mBaseTiles.getMissing()) {
+			if (!mBaseTiles.reserve()) {
+				Log.w(TAG, "base tile budget exhausted");
+				break;
+			}
+			Bitmap tile = mLayerPool.obtainTile();
+			decodeTile(index, tile);
+			mBaseTiles.put(index, tile);
+			fetched++;
+		}
+
+		int refined = 0;
+		for (int index : mMosaicTiles.getMissing()) {
+			boolean visible = isVisible(index);
+			if (!visible && refined == MAX_REFINE) {
+				if (!mFetchPosted) {
+					postFetch();
+				}
+				continue;
+			}
+			if (!composeTile(index)) {
+				break;
+			}
+			if (!visible) {
+				refined++;
+			}
+			fetched++;
+		}
+
+		if (mDetailTiles != null) {
+			int decoded = 0;
+			for (int index : mDetailTiles.getMissing()) {
+				if (decoded == MAX_DETAIL_FETCH) {
+					// come back for the rest after pending edits
+					postFetch();
+					break;
+				}
+				if (!mDetailTiles.reserve()) {
+					break;
+				}
+				Bitmap tile = mLayerPool.obtainTile();
+				decodeDetailTile(index, tile);
+				mDetailTiles.put(index, tile);
+				decoded++;
+			}
+			fetched += decoded;
+		}
+
+		long built = System.nanoTime();
+		fetched += mBasePyramid.update();
+		fetched += mMosaicPyramid.update();
+		long now = System.nanoTime();
+		mMetrics.recordStage(RenderMetrics.STAGE_PYRAMID, now - built);
+		mMetrics.recordStage(RenderMetrics.STAGE_FETCH, now - start);
+
+		// nothing fetched means over budget, do not ask for another frame
+		// which would only fetch again
+		if (fetched > 0) {
+			mListener.onFrameReady();
+		}
+	}
+
+	private boolean composeTile(int index) {
+		MosaicMask mask = getMask(mMode);
+		if (mask == null || mProxyParams == null) {
+			return false;
+		}
+
+		if (!mMosaicTiles.contains(index) && !mMosaicTiles.reserve()) {
+			Log.w(TAG, "mosaic tile budget exhausted");
+			return false;
+		}
+
+		Bitmap cover = getCoverTile(index);
+		Bitmap tile = mLayerPool.obtainTile();
+		mMosaicTiles.getBounds(index, mBounds);
+		mask.composite(cover, tile, mBounds);
+		mMosaicTiles.put(index, tile);
+		releaseTile(mCover.tiles, index, cover);
+		return true;
+	}
+
+	// resident cover tile, or a temporary one when over budget
+	private Bitmap getCoverTile(int index) {
+		boolean resident = mCover.tiles.contains(index);
+		Bitmap tile = renderMasked(mCover, mProxyParams, index);
+		if (!resident) {
+			mCoverCache.trim(mCover);
+		}
+		return tile;
+	}
+
+	// cover tile with the masked part of the tile rendered, a resident tile
+	// grows in place, a new one is kept if the cover has room for it
+	private Bitmap renderMasked(CoverCache.Cover cover, EffectParams params,
+			int index) {
+		getMasked(index, mCoverRect);
+		Bitmap tile = cover.tiles.get(index);
+		if (tile != null) {
+			if (!cover.isRendered(index, mCoverRect)) {
+				// the mask grew, render again around the old and new part
+				cover.getRendered(index, mRenderedRect);
+				mCoverRect.union(mRenderedRect);
+				renderCoverTile(params, index, mCoverRect, tile);
+				cover.setRendered(index, mCoverRect);
+			}
+			return tile;
+		}
+
+		tile = mLayerPool.obtainTile();
+		renderCoverTile(params, index, mCoverRect, tile);
+		if (cover.tiles.reserve()) {
+			cover.tiles.put(index, tile);
+			cover.setRendered(index, mCoverRect);
+		}
+		return tile;
+	}
+
+	// masked part of the tile for current mode, the whole tile if edits
+	// left no trace of where they were
+	private void getMasked(int index, Rect rect) {
+		Rect[] masked = mMode == Mode.GRID ? mGridMasked : mPathMasked;
+		rect.set(masked[index]);
+		if (rect.isEmpty()) {
+			mMosaicTiles.getBounds(index, rect);
+		}
+	}
+
+	// tiles a layer may keep with divisor as its share of the budget
+	private int getMaxTiles(int divisor) {
+		return (int) Math.max(mLayerPool.getMaxBytes() / divisor
+				/ TiledLayer.TILE_BYTES, MIN_TILES);
+	}
+
+	private static Rect[] newRects(int count) {
+		Rect[] rects = new Rect[count];
+		for (int index = 0; index < count; ++index) {
+			rects[index] = new Rect();
+		}
+		return rects;
+	}
+
+	// resident base tile, or a temporary one when over budget
+	private Bitmap getBaseTile(int index) {
+		Bitmap tile = mBaseTiles.get(index);
+		if (tile != null) {
+			return tile;
+		}
+
+		tile = mLayerPool.obtainTile();
+		decodeTile(index, tile);
+		if (mBaseTiles.reserve()) {
+			mBaseTiles.put(index, tile);
+		}
+		return tile;
+	}
+
+	private void releaseTile(TiledLayer layer, int index, Bitmap tile) {
+		if (layer.get(index) != tile) {
+			mLayerPool.recycleTile(tile);
+		}
+	}
+
+	private void decodeTile(int index, Bitmap tile) {
+		mBaseTiles.getBounds(index, mTileRect);
+		mDstRect.set(0, 0, mTileRect.width(), mTileRect.height());
+		Canvas canvas = new Canvas(tile);
+		if (mDecoder != null) {
+			// the region in image pixels, the decoder subsamples it
+			mDecodeRect.set(mTileRect.left * mSampleSize, mTileRect.top
+					* mSampleSize, Math.min(mTileRect.right * mSampleSize,
+					mSourceWidth), Math.min(mTileRect.bottom * mSampleSize,
+					mSourceHeight));
+			Bitmap region = mDecoder.decodeRegion(mDecodeRect,
+					mDecodeOptions);
+			if (region != null) {
+				canvas.drawBitmap(region, null, mDstRect, mCopyPaint);
+				region.recycle();
+			}
+		} else if (bmSource != null) {
+			// decoders round subsampled sizes differently, scale to fit
+			float scaleX = bmSource.getWidth() / (float) mImageWidth;
+			float scaleY = bmSource.getHeight() / (float) mImageHeight;
+			mDecodeRect.set(Math.round(mTileRect.left * scaleX),
+					Math.round(mTileRect.top * scaleY),
+					Math.round(mTileRect.right * scaleX),
+					Math.round(mTileRect.bottom * scaleY));
+			canvas.drawBitmap(bmSource, mDecodeRect, mDstRect, mCopyPaint);
+		}
+	}
+
+	private void doViewport() {
+		if (mBaseTiles == null) {
+			return;
+		}
+
+		updateLevel();
+		updateDetail();
+		doFetch();
+	}
+
+	// whether the proxy tile is in the viewport, all are before one is set
+	private boolean isVisible(int index) {
+		if (mViewportDensity <= 0) {
+			return true;
+		}
+
+		mBaseTiles.getBounds(index, mTileRect);
+		return mTileRect.right * mSampleSize > mViewport[0]
+				&& mTileRect.left * mSampleSize < mViewport[2]
+				&& mTileRect.bottom * mSampleSize > mViewport[1]
+				&& mTileRect.top * mSampleSize < mViewport[3];
+	}
+
+	// pick the pyramid level of the viewport, the coarsest one which still
+	// has a pixel per screen pixel
+	private void updateLevel() {
+		int level = 0;
+		float density = mViewportDensity / mSampleSize;
+		while (level < mBasePyramid.getLevelCount()
+				&& (2 << level) <= density) {
+			level++;
+		}
+
+		mBounds.set((int) Math.floor(mViewport[0] / mSampleSize),
+				(int) Math.floor(mViewport[1] / mSampleSize),
+				(int) Math.ceil(mViewport[2] / mSampleSize),
+				(int) Math.ceil(mViewport[3] / mSampleSize));
+		mBasePyramid.setVisible(level, mBounds);
+		mMosaicPyramid.setVisible(level, mBounds);
+		if (level != mPyramidLevel) {
+			Log.d(TAG, "pyramid level " + level);
+		}
+		mPyramidLevel = level;
+
+		synchronized (mFrameLock) {
+			mFrontBaseLevel = level > 0 ? mBasePyramid.getLevel(level) : null;
+			mFrontMosaicLevel = level > 0 ? mMosaicPyramid.getLevel(level)
+					: null;
+		}
+	}
+
+	// pick the detail level of the viewport, the finest power of two
+	// subsample which still has a pixel per screen pixel, and expect the
+	// visible tiles of it
+	private void updateDetail() {
+		int sample = 1;
+		while (sample * 2 <= mViewportDensity) {
+			sample *= 2;
+		}
+		if (mDecoder == null || sample >= mSampleSize) {
+			dropDetail();
+			return;
+		}
+
+		if (mDetailTiles == null || mDetailSample != sample) {
+			dropDetail();
+			int maxTiles = getMaxTiles(LAYER_MEMORY_DIVISOR);
+			mDetailSample = sample;
+			mDetailOptions.inSampleSize = sample;
+			mDetailTiles = new TiledLayer(mLayerPool, (mSourceWidth + sample
+					- 1) / sample, (mSourceHeight + sample - 1) / sample,
+					maxTiles);
+			synchronized (mFrameLock) {
+				mFrontDetail = mDetailTiles;
+			}
+			Log.d(TAG, "detail level sample size " + sample);
+		}
+
+		float scale = 1f / sample;
+		mVisibleRect.set((int) Math.floor(mViewport[0] * scale),
+				(int) Math.floor(mViewport[1] * scale),
+				(int) Math.ceil(mViewport[2] * scale),
+				(int) Math.ceil(mViewport[3] * scale));
+		mDetailTiles.getTileRange(mVisibleRect, mRange);
+		int count = mDetailTiles.getTileCount();
+		int columns = mDetailTiles.getColumns();
+		for (int index = 0; index < count; ++index) {
+			int column = index % columns;
+			int row = index / columns;
+			mDetailTiles.setExpected(index, column >= mRange.left
+					&& column < mRange.right && row >= mRange.top
+					&& row < mRange.bottom);
+		}
+	}
+
+	private void dropDetail() {
+		if (mDetailTiles == null) {
+			return;
+		}
+
+		synchronized (mFrameLock) {
+			mFrontDetail = null;
+		}
+		mDetailTiles.clear();
+		mDetailTiles = null;
+		mDetailSample = 0;
+	}
+
+	private void decodeDetailTile(int index, Bitmap tile) {
+		mDetailTiles.getBounds(index, mTileRect);
+		int sample = mDetailSample;
+		mDecodeRect.set(mTileRect.left * sample, mTileRect.top * sample,
+				Math.min(mTileRect.right * sample, mSourceWidth),
+				Math.min(mTileRect.bottom * sample, mSourceHeight));
+		mDstRect.set(0, 0, mTileRect.width(), mTileRect.height());
+		Bitmap region = mDecoder.decodeRegion(mDecodeRect, mDetailOptions);
+		if (region != null) {
+			new Canvas(tile).drawBitmap(region, null, mDstRect, mCopyPaint);
+			region.recycle();
+		}
+	}
+
+	// copy base pixels of rect into pixels, with rect.width() as stride
+	private void readBase(int[] pixels, Rect rect) {
+		Rect range = mReadRange;
+		Rect bounds = mReadBounds;
+		mBaseTiles.getTileRange(rect, range);
+		int stride = rect.width();
+		for (int row = range.top; row < range.bottom; ++row) {
+			for (int column = range.left; column < range.right; ++column) {
+				int index = mBaseTiles.getIndex(column, row);
+				Bitmap tile = getBaseTile(index);
+				mBaseTiles.getBounds(index, bounds);
+				int l = Math.max(rect.left, bounds.left);
+				int t = Math.max(rect.top, bounds.top);
+				int r = Math.min(rect.right, bounds.right);
+				int b = Math.min(rect.bottom, bounds.bottom);
+				tile.getPixels(pixels, (t - rect.top) * stride
+						+ (l - rect.left), stride, l - bounds.left, t
+						- bounds.top, r - l, b - t);
+				releaseTile(mBaseTiles, index, tile);
+			}
+		}
+	}
+
+	// cover of region of a tile, computed from the base around it so that
+	// the result matches the effect applied to the whole image, the rest
+	// of the tile is left alone
+	private void renderCoverTile(EffectParams params, int index,
+			Rect region, Bitmap tile) {
+		if (params.effect == Effect.COLOR) {
+			tile.eraseColor(params.mosaicColor);
+			return;
+		}
+
+		long start = System.nanoTime();
+		Rect bounds = mCoverBounds;
+		mBaseTiles.getBounds(index, bounds);
+		int x = region.left - bounds.left;
+		int y = region.top - bounds.top;
+		SummedAreaTable table = params.effect == Effect.GRID
+				&& params.gridAverage && MosaicEngine.hasGrid(params)
+				? getGridTable() : null;
+		if (table != null) {
+			int width = region.width();
+			int height = region.height();
+			int[] pixels = mLayerPool.obtainPixels(LayerPool.PIXELS_IN, width
+					* height);
+			table.pixelate(MosaicEngine.getCellEdges(params, region.left,
+					region.right, mImageWidth), MosaicEngine.getCellEdges(
+					params, region.top, region.bottom, mImageHeight), pixels,
+					region.left, region.top, width, height);
+			tile.setPixels(pixels, 0, width, x, y, width, height);
+			mMetrics.recordStage(RenderMetrics.STAGE_COVER,
+					System.nanoTime() - start);
+			return;
+		}
+
+		int[] source = mSource;
+		source[0] = region.left;
+		source[1] = region.top;
+		source[2] = region.right;
+		source[3] = region.bottom;
+		MosaicEngine.getEffectSource(params, source, mImageWidth,
+				mImageHeight);
+		Rect rect = mSourceRect;
+		rect.set(source[0], source[1], source[2], source[3]);
+		int width = rect.width();
+		int height = rect.height();
+		int[] pixels = mLayerPool.obtainPixels(LayerPool.PIXELS_IN, width
+				* height);
+		readBase(pixels, rect);
+		mEngine.applyEffect(params, pixels, rect.left, rect.top, width,
+				height);
+
+		int offset = (region.top - rect.top) * width
+				+ (region.left - rect.left);
+		tile.setPixels(pixels, offset, width, x, y, region.width(),
+				region.height());
+		mMetrics.recordStage(RenderMetrics.STAGE_COVER, System.nanoTime()
+				- start);
+	}
+
+	// sums of the whole proxy, built band by band from the base tiles once
+	// the grid width changes, until then covers read only the base around
+	// the masked tiles, null when they do not fit in the budget
+	private SummedAreaTable getGridTable() {
+		if (mGridTable != null || !mRegrid) {
+			return mGridTable;
+		}
+
+		long bytes = (mImageWidth + 1L) * (mImageHeight + 1L) * 16L;
+		if (bytes > mLayerPool.getMaxBytes() / TABLE_MEMORY_DIVISOR
+				|| !mLayerPool.reserveBytes(bytes)) {
+			return null;
+		}
+
+		long start = System.nanoTime();
+		SummedAreaTable table = new SummedAreaTable();
+		table.reset(mImageWidth, mImageHeight);
+		Rect band = new Rect();
+		for (int top = 0; top < mImageHeight; top += TiledLayer.TILE_SIZE) {
+			band.set(0, top, mImageWidth, Math.min(top + TiledLayer.TILE_SIZE,
+					mImageHeight));
+			int[] pixels = mLayerPool.obtainPixels(LayerPool.PIXELS_IN,
+					band.width() * band.height());
+			readBase(pixels, band);
+			table.addRows(pixels, 0, band.height());
+		}
+		mGridTable = table;
+		mGridTableBytes = bytes;
+		mRegrid = false;
+		Log.d(TAG, "grid table of " + bytes + " bytes in "
+				+ (System.nanoTime() - start) / 1000000 + "ms");
+		return table;
+	}
+
+	// switch to the cover of current effect, cached tiles are reused
+	private void updateCover() {
+		mCoverKey = CoverCache.getKey(mSourcePath, mImageWidth,
+				mImageHeight, mProxyParams);
+		mCover = mCoverCache.obtain(mCoverKey, mImageWidth, mImageHeight);
+	}
+
+	// an averaged grid only changing its width, every masked cell has to be
+	// averaged again
+	private static boolean isRegrid(EffectParams previous,
+			EffectParams params) {
+		return previous != null && previous.effect == Effect.GRID
+				&& previous.gridAverage && params.effect == Effect.GRID
+				&& params.gridAverage && previous.gridWidth != params.gridWidth;
+	}
+
+	private void postPrecompute() {
+		if (mPrecomputePosted) {
+			return;
+		}
+
+		mPrecomputePosted = true;
+		Command command = new Command();
+		command.type = CMD_PRECOMPUTE;
+		post(command);
+	}
+
+	// render the covers of the other effects ahead for the masked tiles, a
+	// few tiles per flush so edits are not held up, and only into room the
+	// cache has left
+	private void doPrecompute() {
+		mPrecomputePosted = false;
+		if (mBaseTiles == null) {
+			return;
+		}
+
+		boolean[] covered = getCovered();
+		int rendered = 0;
+		for (Effect effect : Effect.values()) {
+			// a color cover is only a fill
+			if (effect == mParams.effect || effect == Effect.COLOR) {
+				continue;
+			}
+
+			EffectParams params = new EffectParams(mParams);
+			params.effect = effect;
+			EffectParams proxy = getProxyParams(params);
+			CoverCache.Cover cover = mCoverCache.obtain(CoverCache.getKey(
+					mSourcePath, mImageWidth, mImageHeight, proxy),
+					mImageWidth, mImageHeight);
+			for (int index = 0; index < covered.length; ++index) {
+				if (rendered == MAX_PRECOMPUTE || mCoverCache.isFull()) {
+					break;
+				}
+				if (!covered[index]) {
+					continue;
+				}
+				getMasked(index, mCoverRect);
+				if (cover.isRendered(index, mCoverRect)) {
+					continue;
+				}
+
+				Bitmap tile = renderMasked(cover, proxy, index);
+				releaseTile(cover.tiles, index, tile);
+				rendered++;
+			}
+		}
+
+		// current cover stays the most recent one
+		mCoverCache.obtain(mCoverKey, mImageWidth, mImageHeight);
+		if (rendered == MAX_PRECOMPUTE && !mCoverCache.isFull()) {
+			postPrecompute();
+		}
+	}
+
+	// grid and blur sizes are in image pixels, shrink them with the proxy
+	// so the preview looks like the saved image, grid cells keep their
+	// fractional width there so their edges stay on the saved ones
+	private EffectParams getProxyParams(EffectParams params) {
+		EffectParams proxy = new EffectParams(params);
+		proxy.gridSample = mSampleSize;
+		if (params.blurRadius > 0) {
+			proxy.blurRadius = Math.max(params.blurRadius / mSampleSize, 1);
+		}
+		return proxy;
+	}
+
+	// hand a snapshot of the edits to the export thread
+	private void postExport(final SaveTask task) {
+		if (mSourcePath == null || mParams == null) {
+			task.complete(false);
+			return;
+		}
+
+		final String path = mSourcePath;
+		final EditSpec spec = getEditSpec();
+		mExportHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				task.complete(doExport(task, path, spec));
+			}
+		});
+	}
+
+	// the logged edits with current mode and effect, in image pixels,
+	// without the ones erased entirely
+	private EditSpec getEditSpec() {
+		EditLog log = mEditLog.compact();
+		if (log.size() < mEditLog.size()) {
+			Log.d(TAG, "compact " + mEditLog.size() + " edits to "
+					+ log.size());
+		}
+		return new EditSpec(mMode, mParams, log);
+	}
+
+	// stream the edits at full resolution band by band, runs on the
+	// export thread
+	private boolean doExport(final SaveTask task, String path, EditSpec spec) {
+		if (task.isCancelled()) {
+			return false;
+		}
+
+		ExportMetrics metrics = mExportEngine.exportFile(path, spec,
+				task.mOptions, task.getOutPath(),
+				new ExportEngine.ProgressListener() {
+
+					@Override
+					public boolean onProgress(float progress) {
+						task.progress(progress);
+						return !task.isCancelled();
+					}
+				});
+		if (metrics == null) {
+			return false;
+		}
+
+		Log.d(TAG, "saved " + task.getOutPath() + " " + metrics);
+		task.mMetrics = metrics;
+		return true;
+	}
+
+	private boolean[] getCovered() {
+		return mMode == Mode.GRID ? mGridTiles : mPathTiles;
+	}
+
+	// grid rectangles use a bitset, finger paths keep anti-aliased alpha
+	private MosaicMask getMask(Mode mode) {
+		if (mImageWidth <= 0 || mImageHeight <= 0) {
+			return null;
+		}
+
+		if (mode == Mode.GRID) {
+			if (mGridMask == null) {
+				mGridMask = MosaicMask.create(mode, mLayerPool, mImageWidth,
+						mImageHeight);
+			}
+			return mGridMask;
+		}
+
+		if (mPathMask == null) {
+			mPathMask = MosaicMask.create(mode, mLayerPool, mImageWidth,
+					mImageHeight);
+		}
+		return mPathMask;
+	}
+}
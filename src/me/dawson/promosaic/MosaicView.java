@@ -1,26 +1,18 @@
 package me.dawson.promosaic;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import me.dawson.promosaic.BitmapUtil.Size;
 import android.content.Context;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.CornerPathEffect;
 import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.Point;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
+import android.graphics.PointF;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.MotionEvent;
@@ -29,14 +21,6 @@ import android.view.ViewGroup;
 public class MosaicView extends ViewGroup {
 	public static final String TAG = "MosaicView";
 
-	public static enum Effect {
-		GRID, COLOR, BLUR,
-	};
-
-	public static enum Mode {
-		GRID, PATH,
-	}
-
 	// default image inner padding, in dip pixels
 	private static final int INNER_PADDING = 6;
 
@@ -52,18 +36,34 @@ public class MosaicView extends ViewGroup {
 	// default stroke width, in pixels
 	private static final int STROKE_WIDTH = 6;
 
+	// touch samples closer than this share of the path width are dropped
+	private static final float MIN_SAMPLE_DISTANCE = 0.25f;
+
+	// smoothed paths stay within this many view pixels of the curve
+	private static final float SMOOTH_TOLERANCE = 0.5f;
+
+	// zoom in until one image pixel covers this many view pixels
+	private static final float MAX_PIXEL_SCALE = 4f;
+
 	private int mImageWidth;
 	private int mImageHeight;
 
-	private Bitmap bmBaseLayer;
-	private Bitmap bmCoverLayer;
-	private Bitmap bmMosaicLayer;
+	private MosaicRenderer mRenderer;
 
-	private Point startPoint;
+	// corner where current grid rectangle started, in image pixels
+	private PointF mTouchStart;
+	private StrokeSmoother mSmoother;
 
 	private int mGridWidth;
 	private int mPathWidth;
 
+	// fill grid cells with their mean color instead of the top-left pixel
+	private boolean mGridAverage;
+
+	// box blur radius in image pixels, and number of passes
+	private int mBlurRadius;
+	private int mBlurIterations;
+
 	private int mStrokeWidth;
 
 	private int mStrokeColor;
@@ -71,24 +71,49 @@ public class MosaicView extends ViewGroup {
 	private String inPath;
 	private String outPath;
 
+	// format follows the extension of outPath unless set
+	private ExportOptions mExportOptions;
+
 	private Effect mEffect;
 	private Mode mMode;
 
 	private Rect mImageRect;
+	private Rect mClipRect;
+
+	// view pixels per image pixel when the whole image fits, zoom on top of
+	// it, and the image point at the center of the view
+	private float mFitScale;
+	private float mZoom;
+	private float mCenterX;
+	private float mCenterY;
+
+	// where the image is drawn, exact values behind mImageRect
+	private float mViewScale;
+	private float mViewLeft;
+	private float mViewTop;
+
+	// two finger zoom and pan, the image point under the focus stays under
+	// it, a distance of 0 means the gesture needs a new baseline
+	private boolean mGesture;
+	private float mGestureDistance;
+	private float mGestureZoom;
+	private float mGestureX;
+	private float mGestureY;
 
 	private Paint mPaint;
 
-	private Rect mTouchRect;
-	private List<Rect> mTouchRects;
-
-	private Path mTouchPath;
-	private List<Rect> mEraseRects;
+	// rubber band of current grid rectangle in image pixels, mapped to the
+	// view when drawn so a relayout does not move it
+	private RectF mTouchRect;
+	private RectF mDrawRect;
 
 	private int mMosaicColor;
 	private int mPadding;
 
-	private List<Path> mTouchPaths;
-	private List<Path> mErasePaths;
+	// every edit of current image, in image pixels, and the undone ones,
+	// the renderer only keeps the tiles to undo with, redo is these records
+	private EditLog mEditLog;
+	private EditLog mRedoLog;
 
 	private boolean mMosaic;
 
@@ -104,12 +129,8 @@ public class MosaicView extends ViewGroup {
 
 	private void initImage() {
 		mMosaic = true;
-
-		mTouchRects = new ArrayList<Rect>();
-		mEraseRects = new ArrayList<Rect>();
-
-		mTouchPaths = new ArrayList<Path>();
-		mErasePaths = new ArrayList<Path>();
+		mEditLog = new EditLog(0, 0);
+		mRedoLog = new EditLog(0, 0);
 
 		mStrokeWidth = STROKE_WIDTH;
 		mStrokeColor = STROKE_COLOR;
@@ -119,13 +140,41 @@ public class MosaicView extends ViewGroup {
 		mPathWidth = dp2px(PATH_WIDTH);
 		mGridWidth = dp2px(GRID_WIDTH);
 
+		mExportOptions = new ExportOptions();
+
+		mBlurRadius = BitmapUtil.BLUR_RADIUS;
+		mBlurIterations = BitmapUtil.BLUR_ITERATIONS;
+
 		mPaint = new Paint();
 		mPaint.setAntiAlias(true);
 		mPaint.setStyle(Paint.Style.STROKE);
 		mPaint.setStrokeWidth(mStrokeWidth);
 		mPaint.setColor(mStrokeColor);
 
+		mRenderer = new MosaicRenderer(new MosaicRenderer.Listener() {
+
+			@Override
+			public void onFrameReady() {
+				postInvalidate();
+			}
+		});
+
 		mImageRect = new Rect();
+		mClipRect = new Rect();
+		mZoom = 1f;
+		mDrawRect = new RectF();
+		mSmoother = new StrokeSmoother(new StrokeSmoother.Listener() {
+
+			@Override
+			public void onSegment(float startX, float startY, float stopX,
+					float stopY) {
+				mEditLog.addLine(startX, startY, stopX, stopY, mPathWidth,
+						!mMosaic, mEffect);
+				mRedoLog.clear();
+				mRenderer.drawLine(startX, startY, stopX, stopY, mPathWidth,
+						!mMosaic);
+			}
+		});
 
 		setWillNotDraw(false);
 
@@ -154,11 +203,17 @@ public class MosaicView extends ViewGroup {
 		Size size = BitmapUtil.getImageSize(inPath);
 		mImageWidth = size.width;
 		mImageHeight = size.height;
-
-		bmBaseLayer = BitmapUtil.getImage(absPath);
-
-		bmCoverLayer = getCoverLayer();
-		bmMosaicLayer = null;
+		mEditLog = new EditLog(mImageWidth, mImageHeight);
+		mRedoLog = new EditLog(mImageWidth, mImageHeight);
+		mZoom = 1f;
+		mCenterX = mImageWidth / 2f;
+		mCenterY = mImageHeight / 2f;
+
+		// the proxy should cover the screen in either orientation, the
+		// view may not be laid out yet and is never larger
+		DisplayMetrics metrics = getResources().getDisplayMetrics();
+		mRenderer.load(absPath, getEffectParams(), mMode,
+				metrics.widthPixels, metrics.heightPixels);
 
 		requestLayout();
 		invalidate();
@@ -171,18 +226,7 @@ public class MosaicView extends ViewGroup {
 		}
 
 		this.mEffect = effect;
-		if (bmCoverLayer != null) {
-			bmCoverLayer.recycle();
-		}
-
-		bmCoverLayer = getCoverLayer();
-		if (mMode == Mode.GRID) {
-			updateGridMosaic();
-		} else if (mMode == Mode.PATH) {
-			updatePathMosaic();
-		}
-
-		invalidate();
+		mRenderer.setEffect(getEffectParams());
 	}
 
 	public void setMode(Mode mode) {
@@ -191,103 +235,70 @@ public class MosaicView extends ViewGroup {
 			return;
 		}
 
-		if (bmMosaicLayer != null) {
-			bmMosaicLayer.recycle();
-			bmMosaicLayer = null;
-		}
-
 		this.mMode = mode;
-
-		invalidate();
+		mRenderer.setMode(mode);
 	}
 
-	private Bitmap getCoverLayer() {
-		Bitmap bitmap = null;
-		if (mEffect == Effect.GRID) {
-			bitmap = getGridMosaic();
-		} else if (mEffect == Effect.COLOR) {
-			bitmap = getColorMosaic();
-		} else if (mEffect == Effect.BLUR) {
-			bitmap = getBlurMosaic();
-		}
-		return bitmap;
+	public Mode getMode() {
+		return mMode;
 	}
 
-	private Bitmap getColorMosaic() {
-		if (mImageWidth <= 0 || mImageHeight <= 0) {
-			return null;
-		}
-
-		Bitmap bitmap = Bitmap.createBitmap(mImageWidth, mImageHeight,
-				Config.ARGB_8888);
-		Canvas canvas = new Canvas(bitmap);
-		Rect rect = new Rect(0, 0, mImageWidth, mImageHeight);
-		Paint paint = new Paint();
-		paint.setColor(mMosaicColor);
-		canvas.drawRect(rect, paint);
-		canvas.save();
-		return bitmap;
+	public Effect getEffect() {
+		return mEffect;
 	}
 
-	private Bitmap getBlurMosaic() {
-		if (mImageWidth <= 0 || mImageHeight <= 0) {
-			return null;
+	private void updateEffect() {
+		if (inPath == null) {
+			return;
 		}
 
-		if (bmBaseLayer == null) {
-			return null;
-		}
-		Bitmap bitmap = BitmapUtil.blur(bmBaseLayer);
-		return bitmap;
+		mRenderer.setEffect(getEffectParams());
 	}
 
-	private Bitmap getGridMosaic() {
-		if (mImageWidth <= 0 || mImageHeight <= 0) {
-			return null;
-		}
+	// current effect and what it is applied with, a copy
+	public EffectParams getEffectParams() {
+		EffectParams params = new EffectParams();
+		params.effect = mEffect;
+		params.gridWidth = mGridWidth;
+		params.gridAverage = mGridAverage;
+		params.blurRadius = mBlurRadius;
+		params.blurIterations = mBlurIterations;
+		params.mosaicColor = mMosaicColor;
+		return params;
+	}
 
-		Bitmap bitmap = Bitmap.createBitmap(mImageWidth, mImageHeight,
-				Config.ARGB_8888);
-		Canvas canvas = new Canvas(bitmap);
-
-		int horCount = (int) Math.ceil(mImageWidth / (float) mGridWidth);
-		int verCount = (int) Math.ceil(mImageHeight / (float) mGridWidth);
-
-		Paint paint = new Paint();
-		paint.setAntiAlias(true);
-
-		for (int horIndex = 0; horIndex < horCount; ++horIndex) {
-			for (int verIndex = 0; verIndex < verCount; ++verIndex) {
-				int l = mGridWidth * horIndex;
-				int t = mGridWidth * verIndex;
-				int r = l + mGridWidth;
-				if (r > mImageWidth) {
-					r = mImageWidth;
-				}
-				int b = t + mGridWidth;
-				if (b > mImageHeight) {
-					b = mImageHeight;
-				}
-				int color = bmBaseLayer.getPixel(l, t);
-				Rect rect = new Rect(l, t, r, b);
-				paint.setColor(color);
-				canvas.drawRect(rect, paint);
-			}
-		}
-		canvas.save();
-		return bitmap;
+	// effect and sizes in pixels as returned by getEffectParams
+	public void setEffectParams(EffectParams params) {
+		this.mEffect = params.effect;
+		this.mGridWidth = params.gridWidth;
+		this.mGridAverage = params.gridAverage;
+		this.mBlurRadius = params.blurRadius;
+		this.mBlurIterations = params.blurIterations;
+		this.mMosaicColor = params.mosaicColor;
+		updateEffect();
 	}
 
 	public boolean isSaved() {
-		return (bmCoverLayer == null);
+		return !mRenderer.hasCover();
 	}
 
 	public void setOutPath(String absPath) {
 		this.outPath = absPath;
 	}
 
+	public void setExportOptions(ExportOptions options) {
+		this.mExportOptions = new ExportOptions(options);
+	}
+
+	public ExportOptions getExportOptions() {
+		return new ExportOptions(mExportOptions);
+	}
+
+	// grid and blur parameters apply right away, visible tiles first, so
+	// they can follow a slider
 	public void setGridWidth(int width) {
 		this.mGridWidth = dp2px(width);
+		updateEffect();
 	}
 
 	public void setPathWidth(int width) {
@@ -298,6 +309,33 @@ public class MosaicView extends ViewGroup {
 		return this.mGridWidth;
 	}
 
+	public void setBlurRadius(int radius) {
+		this.mBlurRadius = radius;
+		updateEffect();
+	}
+
+	public int getBlurRadius() {
+		return this.mBlurRadius;
+	}
+
+	public void setBlurIterations(int iterations) {
+		this.mBlurIterations = iterations;
+		updateEffect();
+	}
+
+	public int getBlurIterations() {
+		return this.mBlurIterations;
+	}
+
+	public void setGridAverage(boolean average) {
+		this.mGridAverage = average;
+		updateEffect();
+	}
+
+	public boolean isGridAverage() {
+		return this.mGridAverage;
+	}
+
 	public void setStrokeColor(int color) {
 		this.mStrokeColor = color;
 		mPaint.setColor(mStrokeColor);
@@ -305,6 +343,7 @@ public class MosaicView extends ViewGroup {
 
 	public void setMosaicColor(int color) {
 		this.mMosaicColor = color;
+		updateEffect();
 	}
 
 	public int getStrokeColor() {
@@ -325,267 +364,354 @@ public class MosaicView extends ViewGroup {
 	}
 
 	public void clear() {
-		mTouchRects.clear();
-		mEraseRects.clear();
-
-		mTouchPaths.clear();
-		mErasePaths.clear();
+		mEditLog.clear();
+		mRedoLog.clear();
+		mRenderer.clear();
+	}
 
-		if (bmMosaicLayer != null) {
-			bmMosaicLayer.recycle();
-			bmMosaicLayer = null;
+	// a stroke or a rectangle is one edit, false if there is none
+	public boolean undo() {
+		int size = mEditLog.size();
+		if (size == 0 || mSmoother.isActive()) {
+			return false;
 		}
 
-		invalidate();
+		mRedoLog.append(mEditLog, size - 1, size);
+		mEditLog.truncate(size - 1);
+		mRenderer.undo();
+		return true;
 	}
 
-	public boolean reset() {
-		if (bmCoverLayer != null) {
-			bmCoverLayer.recycle();
-			bmCoverLayer = null;
-		}
-		if (bmBaseLayer != null) {
-			bmBaseLayer.recycle();
-			bmBaseLayer = null;
+	public boolean redo() {
+		int size = mRedoLog.size();
+		if (size == 0 || mSmoother.isActive()) {
+			return false;
 		}
-		if (bmMosaicLayer != null) {
-			bmMosaicLayer.recycle();
-			bmMosaicLayer = null;
+
+		EditLog records = new EditLog(mImageWidth, mImageHeight);
+		records.append(mRedoLog, size - 1, size);
+		mEditLog.append(records);
+		mRedoLog.truncate(size - 1);
+		mRenderer.redo(records);
+		return true;
+	}
+
+	public boolean canUndo() {
+		return !mEditLog.isEmpty();
+	}
+
+	public boolean canRedo() {
+		return !mRedoLog.isEmpty();
+	}
+
+	public String getSrcPath() {
+		return inPath;
+	}
+
+	// copy of the edits of current image, can be persisted and restored
+	// with restoreEditLog
+	public EditLog getEditLog() {
+		return new EditLog(mEditLog);
+	}
+
+	// replay edits on top of current image, after setSrcPath, the log may
+	// come from another resolution of the same image
+	public void restoreEditLog(EditLog log) {
+		if (mImageWidth <= 0 || mImageHeight <= 0 || log == null) {
+			return;
 		}
-		mTouchRects.clear();
-		mEraseRects.clear();
 
-		mTouchPaths.clear();
-		mErasePaths.clear();
+		mEditLog.append(log);
+		mRenderer.replay(log);
+	}
+
+	// drop the layers of current image, the buffers stay in the pool so the
+	// next image of the same size does not allocate again
+	public boolean reset() {
+		mRenderer.reset();
+		mEditLog.clear();
+		mRedoLog.clear();
+		mSmoother.cancel();
 		return true;
 	}
 
+	// free all layer buffers and stop the render thread, the view can not
+	// be used afterwards
+	public void release() {
+		mRenderer.release();
+		invalidate();
+	}
+
+	public LayerPool getLayerPool() {
+		return mRenderer.getLayerPool();
+	}
+
+	// latencies and counters of editing and drawing, hot paths log only
+	// when its logging is set
+	public RenderMetrics getMetrics() {
+		return mRenderer.getMetrics();
+	}
+
 	public boolean save() {
-		if (mTouchRects.isEmpty() || bmMosaicLayer == null) {
+		if (!mEditLog.hasMosaic()) {
 			return false;
 		}
 
-		Bitmap bitmap = Bitmap.createBitmap(mImageWidth, mImageHeight,
-				Config.ARGB_8888);
-		Canvas canvas = new Canvas(bitmap);
-		canvas.drawBitmap(bmBaseLayer, 0, 0, null);
-		canvas.drawBitmap(bmMosaicLayer, 0, 0, null);
-		canvas.save();
-
-		try {
-			FileOutputStream fos = new FileOutputStream(outPath);
-			bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-			fos.flush();
-			fos.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-			Log.e(TAG, "failed to write image content");
-			return false;
+		return mRenderer.save(outPath, mExportOptions);
+	}
+
+	// save on a background thread, listener is called on the ui thread,
+	// null if there is nothing to save
+	public MosaicRenderer.SaveTask saveAsync(
+			final MosaicRenderer.SaveListener listener) {
+		if (!mEditLog.hasMosaic()) {
+			return null;
 		}
-		return true;
+
+		if (listener == null) {
+			return mRenderer.saveAsync(outPath, mExportOptions, null);
+		}
+
+		MosaicRenderer.SaveListener poster = new MosaicRenderer.SaveListener() {
+
+			@Override
+			public void onSaveProgress(final MosaicRenderer.SaveTask task,
+					final float progress) {
+				post(new Runnable() {
+
+					@Override
+					public void run() {
+						listener.onSaveProgress(task, progress);
+					}
+				});
+			}
+
+			@Override
+			public void onSaveComplete(final MosaicRenderer.SaveTask task,
+					final boolean succeed) {
+				post(new Runnable() {
+
+					@Override
+					public void run() {
+						listener.onSaveComplete(task, succeed);
+					}
+				});
+			}
+		};
+		return mRenderer.saveAsync(outPath, mExportOptions, poster);
+	}
+
+	public float getZoom() {
+		return mZoom;
 	}
 
 	public boolean dispatchTouchEvent(MotionEvent event) {
 		super.dispatchTouchEvent(event);
 
-		int action = event.getAction();
-		int x = (int) event.getX();
-		int y = (int) event.getY();
-		Log.d(TAG, "action " + action + " x " + x + " y " + y);
-		if (mMode == Mode.GRID) {
+		int action = event.getAction() & MotionEvent.ACTION_MASK;
+		float x = event.getX();
+		float y = event.getY();
+		RenderMetrics metrics = mRenderer.getMetrics();
+		if (metrics.isLogging()) {
+			Log.d(TAG, "action " + action + " x " + x + " y " + y);
+		}
+
+		// event time is uptime in milliseconds, the metrics use nanoTime
+		long age = SystemClock.uptimeMillis() - event.getEventTime();
+		mRenderer.setInputTime(System.nanoTime() - age * 1000000L);
+		if (action == MotionEvent.ACTION_POINTER_DOWN && !mGesture) {
+			// a second finger zooms, the edit so far is kept for paths
+			// and dropped for the rectangle
+			mGesture = true;
+			mGestureDistance = 0;
+			if (mSmoother.isActive()) {
+				endPath();
+			}
+			mTouchRect = null;
+			mTouchStart = null;
+		}
+
+		if (mGesture) {
+			onGestureEvent(event, action);
+		} else if (mMode == Mode.GRID) {
 			onGridEvent(action, x, y);
 		} else if (mMode == Mode.PATH) {
-			onPathEvent(action, x, y);
+			onPathEvent(event, action);
 		}
 		return true;
 	}
 
-	private void onGridEvent(int action, int x, int y) {
-		if (x >= mImageRect.left && x <= mImageRect.right
-				&& y >= mImageRect.top && y <= mImageRect.bottom) {
-			int left = x;
-			int right = x;
-			int top = y;
-			int bottom = y;
-			if (startPoint == null) {
-				startPoint = new Point();
-				startPoint.set(x, y);
-				mTouchRect = new Rect();
-			} else {
-				left = startPoint.x < x ? startPoint.x : x;
-				top = startPoint.y < y ? startPoint.y : y;
-				right = x > startPoint.x ? x : startPoint.x;
-				bottom = y > startPoint.y ? y : startPoint.y;
-			}
-			mTouchRect.set(left, top, right, bottom);
+	private void onGestureEvent(MotionEvent event, int action) {
+		if (action == MotionEvent.ACTION_UP
+				|| action == MotionEvent.ACTION_CANCEL) {
+			mGesture = false;
+			return;
+		}
+
+		if (action == MotionEvent.ACTION_POINTER_UP
+				|| event.getPointerCount() < 2 || mImageWidth <= 0
+				|| mImageHeight <= 0) {
+			// the fingers left start over
+			mGestureDistance = 0;
+			return;
 		}
 
-		if (action == MotionEvent.ACTION_UP) {
-			if (mMosaic) {
-				mTouchRects.add(mTouchRect);
-			} else {
-				mEraseRects.add(mTouchRect);
+		float focusX = (event.getX(0) + event.getX(1)) / 2f;
+		float focusY = (event.getY(0) + event.getY(1)) / 2f;
+		float dx = event.getX(0) - event.getX(1);
+		float dy = event.getY(0) - event.getY(1);
+		float distance = (float) Math.sqrt(dx * dx + dy * dy);
+		if (mGestureDistance <= 0) {
+			if (distance > 0) {
+				mGestureDistance = distance;
+				mGestureZoom = mZoom;
+				mGestureX = toImageX(focusX);
+				mGestureY = toImageY(focusY);
 			}
-			mTouchRect = null;
-			startPoint = null;
-			updateGridMosaic();
+			return;
 		}
 
+		float maxZoom = Math.max(MAX_PIXEL_SCALE / mFitScale, 1f);
+		mZoom = Math.max(1f, Math.min(mGestureZoom * distance
+				/ mGestureDistance, maxZoom));
+		float scale = mFitScale * mZoom;
+		mCenterX = mGestureX + (getWidth() / 2f - focusX) / scale;
+		mCenterY = mGestureY + (getHeight() / 2f - focusY) / scale;
+		updateViewport();
 		invalidate();
 	}
 
-	private void onPathEvent(int action, int x, int y) {
+	// the rectangle is kept in image pixels from the first sample on
+	private void onGridEvent(int action, float x, float y) {
 		if (mImageWidth <= 0 || mImageHeight <= 0) {
 			return;
 		}
 
-		if (x < mImageRect.left || x > mImageRect.right || y < mImageRect.top
-				|| y > mImageRect.bottom) {
-			return;
+		if (isInImage(x, y)) {
+			x = toImageX(x);
+			y = toImageY(y);
+			if (mTouchStart == null) {
+				mTouchStart = new PointF(x, y);
+				mTouchRect = new RectF();
+			}
+			mTouchRect.set(Math.min(mTouchStart.x, x),
+					Math.min(mTouchStart.y, y), Math.max(mTouchStart.x, x),
+					Math.max(mTouchStart.y, y));
 		}
 
-		float ratio = (mImageRect.right - mImageRect.left)
-				/ (float) mImageWidth;
-		x = (int) ((x - mImageRect.left) / ratio);
-		y = (int) ((y - mImageRect.top) / ratio);
-
-		if (action == MotionEvent.ACTION_DOWN) {
-			mTouchPath = new Path();
-			mTouchPath.moveTo(x, y);
-			if (mMosaic) {
-				mTouchPaths.add(mTouchPath);
-			} else {
-				mErasePaths.add(mTouchPath);
+		boolean done = action == MotionEvent.ACTION_UP
+				|| action == MotionEvent.ACTION_CANCEL;
+		if (done && mTouchRect != null) {
+			if (action == MotionEvent.ACTION_UP) {
+				updateGridMosaic(mTouchRect, !mMosaic);
 			}
-		} else if (action == MotionEvent.ACTION_MOVE) {
-			mTouchPath.lineTo(x, y);
-			updatePathMosaic();
-			invalidate();
+			mTouchRect = null;
+			mTouchStart = null;
 		}
+
+		invalidate();
 	}
 
-	private void updatePathMosaic() {
+	// post one image space rectangle to the grid mask
+	private void updateGridMosaic(RectF rect, boolean erase) {
+		mEditLog.addRect(rect.left, rect.top, rect.right, rect.bottom, erase,
+				mEffect);
+		mRedoLog.clear();
+		mRenderer.fillRect(rect.left, rect.top, rect.right, rect.bottom,
+				erase);
+	}
+
+	// every sample of the event goes through the smoother, moves batch
+	// the samples since the last event as history
+	private void onPathEvent(MotionEvent event, int action) {
 		if (mImageWidth <= 0 || mImageHeight <= 0) {
 			return;
 		}
 
-		long time = System.currentTimeMillis();
-		if (bmMosaicLayer != null) {
-			bmMosaicLayer.recycle();
-		}
-		bmMosaicLayer = Bitmap.createBitmap(mImageWidth, mImageHeight,
-				Config.ARGB_8888);
-
-		Bitmap bmTouchLayer = Bitmap.createBitmap(mImageWidth, mImageHeight,
-				Config.ARGB_8888);
-
-		Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
-		paint.setStyle(Paint.Style.STROKE);
-		paint.setAntiAlias(true);
-		paint.setStrokeJoin(Paint.Join.ROUND);
-		paint.setStrokeCap(Paint.Cap.ROUND);
-		paint.setPathEffect(new CornerPathEffect(10));
-		paint.setStrokeWidth(mPathWidth);
-		paint.setColor(Color.BLUE);
+		if (action == MotionEvent.ACTION_DOWN) {
+			float x = event.getX();
+			float y = event.getY();
+			if (!isInImage(x, y)) {
+				return;
+			}
 
-		Canvas canvas = new Canvas(bmTouchLayer);
+			mSmoother.begin(toImageX(x), toImageY(y), mPathWidth
+					* MIN_SAMPLE_DISTANCE, SMOOTH_TOLERANCE / mViewScale);
+		} else if (action == MotionEvent.ACTION_MOVE) {
+			if (!mSmoother.isActive()) {
+				return;
+			}
 
-		for (Path path : mTouchPaths) {
-			canvas.drawPath(path, paint);
-		}
+			int history = event.getHistorySize();
+			for (int index = 0; index < history; ++index) {
+				addPathSample(event.getHistoricalX(index),
+						event.getHistoricalY(index));
+			}
+			addPathSample(event.getX(), event.getY());
+		} else if (action == MotionEvent.ACTION_UP
+				|| action == MotionEvent.ACTION_CANCEL) {
+			if (!mSmoother.isActive()) {
+				return;
+			}
 
-		paint.setColor(Color.TRANSPARENT);
-		paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
-		for (Path path : mErasePaths) {
-			canvas.drawPath(path, paint);
+			endPath();
 		}
+	}
 
-		canvas.setBitmap(bmMosaicLayer);
-		canvas.drawARGB(0, 0, 0, 0);
-		canvas.drawBitmap(bmCoverLayer, 0, 0, null);
-
-		paint.reset();
-		paint.setAntiAlias(true);
-		paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
-		canvas.drawBitmap(bmTouchLayer, 0, 0, paint);
-		paint.setXfermode(null);
-		canvas.save();
+	private void endPath() {
+		mSmoother.end();
+		mEditLog.endPath();
+		mRenderer.endPath();
 
-		bmTouchLayer.recycle();
-		Log.d(TAG, "updatePathMosaic " + (System.currentTimeMillis() - time));
+		RenderMetrics metrics = mRenderer.getMetrics();
+		metrics.recordDropped(mSmoother.getDroppedCount());
+		if (metrics.isLogging()) {
+			Log.d(TAG, "path of " + mSmoother.getSampleCount()
+					+ " samples in " + mSmoother.getSegmentCount()
+					+ " segments");
+		}
 	}
 
-	private void updateGridMosaic() {
-		if (mImageWidth <= 0 || mImageHeight <= 0) {
+	// view pixels to image pixels, samples off the image are skipped
+	private void addPathSample(float x, float y) {
+		if (!isInImage(x, y)) {
+			mRenderer.getMetrics().recordDropped(1);
 			return;
 		}
 
-		long time = System.currentTimeMillis();
-		if (bmMosaicLayer != null) {
-			bmMosaicLayer.recycle();
-		}
-		bmMosaicLayer = Bitmap.createBitmap(mImageWidth, mImageHeight,
-				Config.ARGB_8888);
-
-		float ratio = (mImageRect.right - mImageRect.left)
-				/ (float) mImageWidth;
-		Bitmap bmTouchLayer = Bitmap.createBitmap(mImageWidth, mImageHeight,
-				Config.ARGB_8888);
-
-		Canvas canvas = null;
-		canvas = new Canvas(bmTouchLayer);
-		Paint paint = new Paint();
-		paint.setStyle(Paint.Style.FILL);
-		paint.setColor(mStrokeColor);
-
-		for (Rect rect : mTouchRects) {
-			int left = (int) ((rect.left - mImageRect.left) / ratio);
-			int right = (int) ((rect.right - mImageRect.left) / ratio);
-			int top = (int) ((rect.top - mImageRect.top) / ratio);
-			int bottom = (int) ((rect.bottom - mImageRect.top) / ratio);
-			canvas.drawRect(left, top, right, bottom, paint);
-		}
-
-		paint.setColor(Color.TRANSPARENT);
-		paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
-		for (Rect rect : mEraseRects) {
-			int left = (int) ((rect.left - mImageRect.left) / ratio);
-			int right = (int) ((rect.right - mImageRect.left) / ratio);
-			int top = (int) ((rect.top - mImageRect.top) / ratio);
-			int bottom = (int) ((rect.bottom - mImageRect.top) / ratio);
-			canvas.drawRect(left, top, right, bottom, paint);
-		}
+		mSmoother.add(toImageX(x), toImageY(y));
+	}
 
-		canvas.setBitmap(bmMosaicLayer);
-		canvas.drawARGB(0, 0, 0, 0);
-		canvas.drawBitmap(bmCoverLayer, 0, 0, null);
+	private boolean isInImage(float x, float y) {
+		return x >= mImageRect.left && x <= mImageRect.right
+				&& y >= mImageRect.top && y <= mImageRect.bottom;
+	}
 
-		paint.reset();
-		paint.setAntiAlias(true);
-		paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
-		canvas.drawBitmap(bmTouchLayer, 0, 0, paint);
-		paint.setXfermode(null);
-		canvas.save();
+	private float toImageX(float x) {
+		return (x - mViewLeft) / mViewScale;
+	}
 
-		bmTouchLayer.recycle();
-		Log.d(TAG, "updateGridMosaic " + (System.currentTimeMillis() - time));
+	private float toImageY(float y) {
+		return (y - mViewTop) / mViewScale;
 	}
 
 	public void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
-		Log.d(TAG, "onDraw canvas " + canvas + " mTouchRect " + mTouchRect);
-
-		if (bmBaseLayer != null) {
-			canvas.drawBitmap(bmBaseLayer, null, mImageRect, null);
-		}
+		long start = System.nanoTime();
 
-		if (bmMosaicLayer != null) {
-			canvas.drawBitmap(bmMosaicLayer, null, mImageRect, null);
-		}
+		// only tiles in the view are drawn however far the image reaches
+		mClipRect.set(0, 0, getWidth(), getHeight());
+		mRenderer.draw(canvas, mImageRect, mClipRect);
 
 		if (mTouchRect != null) {
-			canvas.drawRect(mTouchRect, mPaint);
+			float scale = mViewScale;
+			mDrawRect.set(mViewLeft + mTouchRect.left * scale, mViewTop
+					+ mTouchRect.top * scale, mViewLeft + mTouchRect.right
+					* scale, mViewTop + mTouchRect.bottom * scale);
+			canvas.drawRect(mDrawRect, mPaint);
 		}
+		mRenderer.endDraw();
+		mRenderer.getMetrics().frameDraw.record(System.nanoTime() - start);
 	}
 
 	protected void onLayout(boolean changed, int left, int top, int right,
@@ -600,15 +726,40 @@ public class MosaicView extends ViewGroup {
 		int viewHeight = contentHeight - mPadding * 2;
 		float widthRatio = viewWidth / ((float) mImageWidth);
 		float heightRatio = viewHeight / ((float) mImageHeight);
-		float ratio = widthRatio < heightRatio ? widthRatio : heightRatio;
-		int realWidth = (int) (mImageWidth * ratio);
-		int realHeight = (int) (mImageHeight * ratio);
-
-		int imageLeft = (contentWidth - realWidth) / 2;
-		int imageTop = (contentHeight - realHeight) / 2;
-		int imageRight = imageLeft + realWidth;
-		int imageBottom = imageTop + realHeight;
-		mImageRect.set(imageLeft, imageTop, imageRight, imageBottom);
+		mFitScale = widthRatio < heightRatio ? widthRatio : heightRatio;
+		updateViewport();
+	}
+
+	// place the image for current zoom and center, a side smaller than the
+	// view is centered, a larger one can not pan past its edges
+	private void updateViewport() {
+		if (mFitScale <= 0) {
+			return;
+		}
+
+		int width = getWidth();
+		int height = getHeight();
+		float scale = mFitScale * mZoom;
+		mCenterX = clampCenter(mCenterX, mImageWidth, width / 2f / scale);
+		mCenterY = clampCenter(mCenterY, mImageHeight, height / 2f / scale);
+		mViewScale = scale;
+		mViewLeft = width / 2f - mCenterX * scale;
+		mViewTop = height / 2f - mCenterY * scale;
+		mImageRect.set(Math.round(mViewLeft), Math.round(mViewTop),
+				Math.round(mViewLeft + mImageWidth * scale),
+				Math.round(mViewTop + mImageHeight * scale));
+
+		mRenderer.setViewport(Math.max(toImageX(0), 0),
+				Math.max(toImageY(0), 0),
+				Math.min(toImageX(width), mImageWidth),
+				Math.min(toImageY(height), mImageHeight), 1f / scale);
+	}
+
+	private static float clampCenter(float center, int size, float half) {
+		if (size <= half * 2) {
+			return size / 2f;
+		}
+		return Math.max(half, Math.min(center, size - half));
 	}
 
 	private int dp2px(int dip) {
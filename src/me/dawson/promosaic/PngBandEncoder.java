@@ -0,0 +1,130 @@
+package me.dawson.promosaic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// png writer fed with rows of pixels, rows are deflated as they come and
+// flushed in data chunks, alpha is kept
+public class PngBandEncoder implements ExportEngine.BandEncoder {
+	public static final String TAG = "PngBandEncoder";
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G',
+			'\r', '\n', 0x1a, '\n' };
+
+	// size of the deflate output, one data chunk each
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	// filter type of every scanline, difference to the left pixel
+	private static final int FILTER_SUB = 1;
+
+	private final int mLevel;
+	private final CRC32 mCrc;
+	private final byte[] mChunk;
+
+	private Deflater mDeflater;
+	private OutputStream mOut;
+	private int mWidth;
+	private byte[] mLine;
+
+	public PngBandEncoder() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public PngBandEncoder(int level) {
+		mLevel = level;
+		mCrc = new CRC32();
+		mChunk = new byte[CHUNK_SIZE];
+	}
+
+	@Override
+	public void begin(OutputStream out, int width, int height)
+			throws IOException {
+		mOut = out;
+		mWidth = width;
+		mLine = new byte[1 + width * 4];
+		mDeflater = new Deflater(mLevel);
+
+		mOut.write(SIGNATURE);
+
+		// 8 bits per channel, truecolor with alpha
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;
+		header[9] = 6;
+		writeChunk("IHDR", header, header.length);
+	}
+
+	@Override
+	public void write(int[] pixels, int offset, int stride, int rows)
+			throws IOException {
+		byte[] line = mLine;
+		line[0] = FILTER_SUB;
+		for (int row = 0; row < rows; ++row) {
+			int start = offset + row * stride;
+			int prev = 0;
+			for (int x = 0; x < mWidth; ++x) {
+				int argb = pixels[start + x];
+				int index = 1 + x * 4;
+				line[index] = (byte) ((argb >> 16) - (prev >> 16));
+				line[index + 1] = (byte) ((argb >> 8) - (prev >> 8));
+				line[index + 2] = (byte) (argb - prev);
+				line[index + 3] = (byte) ((argb >>> 24) - (prev >>> 24));
+				prev = argb;
+			}
+
+			mDeflater.setInput(line, 0, line.length);
+			while (!mDeflater.needsInput()) {
+				drain();
+			}
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		mDeflater.finish();
+		while (!mDeflater.finished()) {
+			drain();
+		}
+		mDeflater.end();
+		mDeflater = null;
+		mLine = null;
+
+		writeChunk("IEND", mChunk, 0);
+	}
+
+	private void drain() throws IOException {
+		int length = mDeflater.deflate(mChunk, 0, mChunk.length);
+		if (length > 0) {
+			writeChunk("IDAT", mChunk, length);
+		}
+	}
+
+	private void writeChunk(String type, byte[] data, int length)
+			throws IOException {
+		byte[] header = new byte[8];
+		putInt(header, 0, length);
+		for (int index = 0; index < 4; ++index) {
+			header[4 + index] = (byte) type.charAt(index);
+		}
+
+		mCrc.reset();
+		mCrc.update(header, 4, 4);
+		mCrc.update(data, 0, length);
+		mOut.write(header);
+		mOut.write(data, 0, length);
+
+		byte[] crc = new byte[4];
+		putInt(crc, 0, (int) mCrc.getValue());
+		mOut.write(crc);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+}
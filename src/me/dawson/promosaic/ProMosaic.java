@@ -1,13 +1,23 @@
 package me.dawson.promosaic;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.List;
 
-import me.dawson.promosaic.MosaicView.Effect;
-import me.dawson.promosaic.MosaicView.Mode;
+import me.dawson.promosaic.MosaicRenderer.SaveListener;
+import me.dawson.promosaic.MosaicRenderer.SaveTask;
 import me.dawson.promosaic.PopMenuList.ListMenuListener;
 import me.dawson.promosaic.PopMenuList.MenuItem;
 import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
@@ -17,12 +27,33 @@ import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.SeekBar;
+import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.Toast;
 
 public class ProMosaic extends Activity {
 	public static final String TAG = "ProMosaic";
 	private static final int REQ_PICK_IMAGE = 1984;
 
+	// session state, the image, its effect and its edits, the edits can
+	// outgrow a bundle so only the path of their file is kept there
+	private static final String KEY_SRC_PATH = "src_path";
+	private static final String KEY_MODE = "mode";
+	private static final String KEY_EFFECT = "effect";
+	private static final String KEY_GRID_WIDTH = "grid_width";
+	private static final String KEY_GRID_AVERAGE = "grid_average";
+	private static final String KEY_BLUR_RADIUS = "blur_radius";
+	private static final String KEY_BLUR_ITERATIONS = "blur_iterations";
+	private static final String KEY_MOSAIC_COLOR = "mosaic_color";
+	private static final String KEY_EDIT_LOG_PATH = "edit_log_path";
+	private static final String EDIT_LOG_FILE = "session.log";
+
+	// slider range of grid width in dip pixels, and of blur radius
+	private static final int MIN_GRID_WIDTH = 2;
+	private static final int MAX_GRID_WIDTH = 64;
+	private static final int MIN_BLUR_RADIUS = 1;
+	private static final int MAX_BLUR_RADIUS = 64;
+
 	private MosaicView mvImage;
 
 	private Button btClear;
@@ -32,10 +63,16 @@ public class ProMosaic extends Activity {
 	private Button btMode;
 	private Button btAbout;
 	private Button btErase;
+	private Button btUndo;
+	private Button btRedo;
+	private SeekBar sbStrength;
 
 	private PopMenuList effectList;
 	private PopMenuList modeList;
 
+	private SaveTask mSaveTask;
+	private ProgressDialog mSaveDialog;
+
 	protected void onCreate(Bundle bundle) {
 		super.onCreate(bundle);
 		setContentView(R.layout.pro_mosaic);
@@ -49,6 +86,8 @@ public class ProMosaic extends Activity {
 		btMode = (Button) findViewById(R.id.bt_mode);
 		btEffect = (Button) findViewById(R.id.bt_effect);
 		btErase = (Button) findViewById(R.id.bt_erase);
+		btUndo = (Button) findViewById(R.id.bt_undo);
+		btRedo = (Button) findViewById(R.id.bt_redo);
 		btLoad.setOnClickListener(cl);
 		btClear.setOnClickListener(cl);
 		btSave.setOnClickListener(cl);
@@ -56,6 +95,125 @@ public class ProMosaic extends Activity {
 		btEffect.setOnClickListener(cl);
 		btMode.setOnClickListener(cl);
 		btErase.setOnClickListener(cl);
+		btUndo.setOnClickListener(cl);
+		btRedo.setOnClickListener(cl);
+
+		sbStrength = (SeekBar) findViewById(R.id.sb_strength);
+		sbStrength.setOnSeekBarChangeListener(sbl);
+		updateStrength();
+
+		if (bundle != null) {
+			restoreSession(bundle);
+		}
+	}
+
+	protected void onSaveInstanceState(Bundle bundle) {
+		super.onSaveInstanceState(bundle);
+		String srcPath = mvImage.getSrcPath();
+		if (srcPath == null) {
+			return;
+		}
+
+		bundle.putString(KEY_SRC_PATH, srcPath);
+		bundle.putString(KEY_MODE, mvImage.getMode().name());
+
+		EffectParams params = mvImage.getEffectParams();
+		bundle.putString(KEY_EFFECT, params.effect.name());
+		bundle.putInt(KEY_GRID_WIDTH, params.gridWidth);
+		bundle.putBoolean(KEY_GRID_AVERAGE, params.gridAverage);
+		bundle.putInt(KEY_BLUR_RADIUS, params.blurRadius);
+		bundle.putInt(KEY_BLUR_ITERATIONS, params.blurIterations);
+		bundle.putInt(KEY_MOSAIC_COLOR, params.mosaicColor);
+
+		File file = new File(getCacheDir(), EDIT_LOG_FILE);
+		if (writeEditLog(mvImage.getEditLog(), file)) {
+			bundle.putString(KEY_EDIT_LOG_PATH, file.getPath());
+		}
+	}
+
+	// reload the image with its effect and replay its edits, rotation does
+	// not lose work
+	private void restoreSession(Bundle bundle) {
+		String srcPath = bundle.getString(KEY_SRC_PATH);
+		if (srcPath == null) {
+			return;
+		}
+
+		String mode = bundle.getString(KEY_MODE);
+		if (mode != null) {
+			mvImage.setMode(Mode.valueOf(mode));
+		}
+		String effect = bundle.getString(KEY_EFFECT);
+		if (effect != null) {
+			EffectParams params = new EffectParams();
+			params.effect = Effect.valueOf(effect);
+			params.gridWidth = bundle.getInt(KEY_GRID_WIDTH);
+			params.gridAverage = bundle.getBoolean(KEY_GRID_AVERAGE);
+			params.blurRadius = bundle.getInt(KEY_BLUR_RADIUS);
+			params.blurIterations = bundle.getInt(KEY_BLUR_ITERATIONS);
+			params.mosaicColor = bundle.getInt(KEY_MOSAIC_COLOR);
+			mvImage.setEffectParams(params);
+			updateStrength();
+		}
+		mvImage.setSrcPath(srcPath);
+
+		String logPath = bundle.getString(KEY_EDIT_LOG_PATH);
+		if (logPath == null) {
+			return;
+		}
+		EditLog log = readEditLog(new File(logPath));
+		if (log != null) {
+			mvImage.restoreEditLog(log);
+		}
+	}
+
+	private boolean writeEditLog(EditLog log, File file) {
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			log.writeTo(out);
+			out.flush();
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "failed to write edits " + e.getMessage());
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					Log.w(TAG, "failed to close " + file);
+				}
+			}
+		}
+	}
+
+	// null if the file is gone or not a log
+	private EditLog readEditLog(File file) {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			return EditLog.readFrom(in);
+		} catch (IOException e) {
+			Log.w(TAG, "failed to restore edits " + e.getMessage());
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					Log.w(TAG, "failed to close " + file);
+				}
+			}
+		}
+	}
+
+	protected void onDestroy() {
+		super.onDestroy();
+		if (mSaveTask != null) {
+			mSaveTask.cancel();
+		}
+		mvImage.release();
 	}
 
 	private OnClickListener cl = new OnClickListener() {
@@ -73,11 +231,7 @@ public class ProMosaic extends Activity {
 				mvImage.clear();
 				mvImage.setErase(false);
 			} else if (view.equals(btSave)) {
-				boolean succced = mvImage.save();
-				String text = "save image "
-						+ (succced ? " succeed" : " failed");
-				Toast.makeText(view.getContext(), text, Toast.LENGTH_SHORT)
-						.show();
+				save();
 			} else if (view.equals(btEffect)) {
 				initEffectList();
 				effectList.show(btEffect);
@@ -89,10 +243,128 @@ public class ProMosaic extends Activity {
 				startActivity(intent);
 			} else if (view.equals(btErase)) {
 				mvImage.setErase(true);
+			} else if (view.equals(btUndo)) {
+				mvImage.undo();
+			} else if (view.equals(btRedo)) {
+				mvImage.redo();
+			}
+		}
+	};
+
+	// the slider follows the effect, grid width or blur radius
+	private void updateStrength() {
+		Effect effect = mvImage.getEffect();
+		if (effect == Effect.GRID) {
+			float density = getResources().getDisplayMetrics().density;
+			int width = Math.round(mvImage.getGridWidth() / density);
+			sbStrength.setMax(MAX_GRID_WIDTH - MIN_GRID_WIDTH);
+			sbStrength.setProgress(width - MIN_GRID_WIDTH);
+			sbStrength.setVisibility(View.VISIBLE);
+		} else if (effect == Effect.BLUR) {
+			sbStrength.setMax(MAX_BLUR_RADIUS - MIN_BLUR_RADIUS);
+			sbStrength.setProgress(mvImage.getBlurRadius() - MIN_BLUR_RADIUS);
+			sbStrength.setVisibility(View.VISIBLE);
+		} else {
+			sbStrength.setVisibility(View.GONE);
+		}
+	}
+
+	private OnSeekBarChangeListener sbl = new OnSeekBarChangeListener() {
+
+		@Override
+		public void onProgressChanged(SeekBar seekBar, int progress,
+				boolean fromUser) {
+			if (!fromUser) {
+				return;
+			}
+
+			Effect effect = mvImage.getEffect();
+			if (effect == Effect.GRID) {
+				mvImage.setGridWidth(MIN_GRID_WIDTH + progress);
+			} else if (effect == Effect.BLUR) {
+				mvImage.setBlurRadius(MIN_BLUR_RADIUS + progress);
+			}
+		}
+
+		@Override
+		public void onStartTrackingTouch(SeekBar seekBar) {
+		}
+
+		@Override
+		public void onStopTrackingTouch(SeekBar seekBar) {
+		}
+	};
+
+	private void save() {
+		if (mSaveTask != null) {
+			return;
+		}
+
+		mSaveTask = mvImage.saveAsync(sl);
+		if (mSaveTask == null) {
+			showSaveResult(false);
+			return;
+		}
+
+		mSaveDialog = new ProgressDialog(this);
+		mSaveDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		mSaveDialog.setMessage(getResources().getString(R.string.saving));
+		mSaveDialog.setMax(100);
+		mSaveDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+
+			@Override
+			public void onCancel(DialogInterface dialog) {
+				if (mSaveTask != null) {
+					mSaveTask.cancel();
+				}
+			}
+		});
+		mSaveDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getResources()
+				.getString(R.string.cancel),
+				new DialogInterface.OnClickListener() {
+
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						dialog.cancel();
+					}
+				});
+		mSaveDialog.show();
+	}
+
+	private SaveListener sl = new SaveListener() {
+
+		@Override
+		public void onSaveProgress(SaveTask task, float progress) {
+			if (task == mSaveTask && mSaveDialog != null) {
+				mSaveDialog.setProgress((int) (progress * 100));
+			}
+		}
+
+		@Override
+		public void onSaveComplete(SaveTask task, boolean succeed) {
+			if (task != mSaveTask) {
+				return;
+			}
+
+			mSaveTask = null;
+			if (mSaveDialog != null) {
+				mSaveDialog.dismiss();
+				mSaveDialog = null;
+			}
+			if (!task.isCancelled()) {
+				showSaveResult(succeed);
+			}
+			if (succeed) {
+				Log.d(TAG, "save metrics " + task.getMetrics());
 			}
 		}
 	};
 
+	private void showSaveResult(boolean succeed) {
+		String text = "save image " + (succeed ? " succeed" : " failed");
+		Toast.makeText(this, text, Toast.LENGTH_SHORT).show();
+	}
+
 	private void initEffectList() {
 		if (effectList != null) {
 			return;
@@ -121,6 +393,7 @@ public class ProMosaic extends Activity {
 				mvImage.setMosaicColor(0xFF4D4D4D);
 				mvImage.setEffect(Effect.COLOR);
 			}
+			updateStrength();
 		}
 	};
 
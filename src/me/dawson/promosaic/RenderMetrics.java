@@ -0,0 +1,246 @@
+package me.dawson.promosaic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+// counters of the edit and draw paths, recorded from the ui and the render
+// thread without locks, times are System.nanoTime based
+public class RenderMetrics {
+	public static final String TAG = "RenderMetrics";
+
+	// stages of an edit on the render thread, they may nest, cover tiles
+	// are rendered while composing or fetching
+	public static final int STAGE_MASK = 0;
+	public static final int STAGE_COMPOSE = 1;
+	public static final int STAGE_PYRAMID = 2;
+	public static final int STAGE_FETCH = 3;
+	public static final int STAGE_COVER = 4;
+	private static final int STAGE_COUNT = 5;
+
+	private static final String[] STAGE_NAMES = { "mask", "compose",
+			"pyramid", "fetch", "cover" };
+
+	// count, total and worst of some duration
+	public static class Timer {
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mTotal = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		public void record(long nanos) {
+			mCount.incrementAndGet();
+			mTotal.addAndGet(nanos);
+			long max = mMax.get();
+			while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+				max = mMax.get();
+			}
+		}
+
+		public long getCount() {
+			return mCount.get();
+		}
+
+		public long getTotalNanos() {
+			return mTotal.get();
+		}
+
+		public long getMaxNanos() {
+			return mMax.get();
+		}
+
+		public long getMeanNanos() {
+			long count = mCount.get();
+			return count == 0 ? 0 : mTotal.get() / count;
+		}
+
+		void reset() {
+			mCount.set(0);
+			mTotal.set(0);
+			mMax.set(0);
+		}
+
+		@Override
+		public String toString() {
+			return "n " + getCount() + " mean " + getMeanNanos() / 1000
+					+ "us max " + getMaxNanos() / 1000 + "us";
+		}
+	}
+
+	// timer which also counts durations in power of two microsecond
+	// buckets, percentiles are the upper bound of their bucket
+	public static class Histogram extends Timer {
+		private static final int BUCKETS = 32;
+
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+		@Override
+		public void record(long nanos) {
+			super.record(nanos);
+			mBuckets.incrementAndGet(getBucket(nanos));
+		}
+
+		public long getPercentileNanos(float percentile) {
+			long count = 0;
+			for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+				count += mBuckets.get(bucket);
+			}
+			long rank = (long) Math.ceil(count * percentile / 100f);
+			for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+				rank -= mBuckets.get(bucket);
+				if (rank <= 0) {
+					return (1L << bucket) * 1000;
+				}
+			}
+			return getMaxNanos();
+		}
+
+		// counts of bucket, durations below 2^bucket microseconds
+		public long getBucketCount(int bucket) {
+			return mBuckets.get(bucket);
+		}
+
+		public int getBucketCount() {
+			return BUCKETS;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+				mBuckets.set(bucket, 0);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + " p50 " + getPercentileNanos(50)
+					/ 1000 + "us p99 " + getPercentileNanos(99) / 1000 + "us";
+		}
+
+		private static int getBucket(long nanos) {
+			long micros = nanos / 1000;
+			int bucket = 0;
+			while (bucket < BUCKETS - 1 && (1L << bucket) <= micros) {
+				bucket++;
+			}
+			return bucket;
+		}
+	}
+
+	// from the touch event to the mosaic tiles which show the edit
+	public final Histogram touchLatency;
+
+	// ui thread time of a frame
+	public final Histogram frameDraw;
+
+	private final Timer[] mStages;
+
+	private final AtomicLong mEdits;
+	private final AtomicLong mCoalesced;
+	private final AtomicLong mDropped;
+	private final AtomicLong mAllocated;
+
+	private volatile boolean mLogging;
+
+	public RenderMetrics() {
+		touchLatency = new Histogram();
+		frameDraw = new Histogram();
+		mStages = new Timer[STAGE_COUNT];
+		for (int stage = 0; stage < STAGE_COUNT; ++stage) {
+			mStages[stage] = new Timer();
+		}
+		mEdits = new AtomicLong();
+		mCoalesced = new AtomicLong();
+		mDropped = new AtomicLong();
+		mAllocated = new AtomicLong();
+	}
+
+	// hot paths only log while this is set
+	public void setLogging(boolean logging) {
+		mLogging = logging;
+	}
+
+	public boolean isLogging() {
+		return mLogging;
+	}
+
+	public void recordStage(int stage, long nanos) {
+		mStages[stage].record(nanos);
+	}
+
+	public Timer getStage(int stage) {
+		return mStages[stage];
+	}
+
+	// edits handled by one flush, all but one of them were coalesced
+	public void recordEdits(int edits) {
+		mEdits.addAndGet(edits);
+		if (edits > 1) {
+			mCoalesced.addAndGet(edits - 1);
+		}
+	}
+
+	// touch samples which never became an edit
+	public void recordDropped(int samples) {
+		mDropped.addAndGet(samples);
+	}
+
+	// buffers allocated while editing
+	public void recordAllocated(long bytes) {
+		mAllocated.addAndGet(bytes);
+	}
+
+	public long getEditCount() {
+		return mEdits.get();
+	}
+
+	public long getCoalescedCount() {
+		return mCoalesced.get();
+	}
+
+	public long getDroppedCount() {
+		return mDropped.get();
+	}
+
+	public long getBytesAllocated() {
+		return mAllocated.get();
+	}
+
+	public long getBytesPerEdit() {
+		long edits = mEdits.get();
+		return edits == 0 ? 0 : mAllocated.get() / edits;
+	}
+
+	public void reset() {
+		touchLatency.reset();
+		frameDraw.reset();
+		for (Timer stage : mStages) {
+			stage.reset();
+		}
+		mEdits.set(0);
+		mCoalesced.set(0);
+		mDropped.set(0);
+		mAllocated.set(0);
+	}
+
+	public void log() {
+		Log.d(TAG, toString());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("latency ").append(touchLatency);
+		builder.append(", frame ").append(frameDraw);
+		for (int stage = 0; stage < STAGE_COUNT; ++stage) {
+			builder.append(", ").append(STAGE_NAMES[stage]).append(' ')
+					.append(mStages[stage]);
+		}
+		builder.append(", edits ").append(getEditCount());
+		builder.append(" coalesced ").append(getCoalescedCount());
+		builder.append(" dropped ").append(getDroppedCount());
+		builder.append(", bytes per edit ").append(getBytesPerEdit());
+		return builder.toString();
+	}
+}
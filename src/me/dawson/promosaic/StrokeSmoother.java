@@ -0,0 +1,165 @@
+package me.dawson.promosaic;
+
+// turns raw touch samples into a smooth chain of short segments, samples
+// closer than a minimum distance are dropped and the rest are joined by
+// quadratic curves through their midpoints, flattened to a tolerance
+public class StrokeSmoother {
+	public static final String TAG = "StrokeSmoother";
+
+	// a curve is never split into more segments than this
+	private static final int MAX_STEPS = 16;
+
+	public interface Listener {
+		// every segment starts where the last one stopped
+		public void onSegment(float startX, float startY, float stopX,
+				float stopY);
+	}
+
+	private final Listener mListener;
+
+	private float mMinDistance;
+	private float mTolerance;
+
+	// last accepted sample, and the start of the next curve
+	private float mLastX;
+	private float mLastY;
+	private float mStartX;
+	private float mStartY;
+
+	// newest sample, kept when dropped so the stroke ends under the finger
+	private float mPendingX;
+	private float mPendingY;
+	private boolean mPending;
+
+	private int mAccepted;
+	private boolean mActive;
+
+	private int mSamples;
+	private int mSegments;
+
+	public StrokeSmoother(Listener listener) {
+		mListener = listener;
+	}
+
+	// start a stroke at x, y, samples closer than minDistance to the last
+	// one are dropped, curves stay within tolerance of their segments
+	public void begin(float x, float y, float minDistance, float tolerance) {
+		mMinDistance = minDistance;
+		mTolerance = Math.max(tolerance, 0.01f);
+		mLastX = x;
+		mLastY = y;
+		mStartX = x;
+		mStartY = y;
+		mPending = false;
+		mAccepted = 1;
+		mActive = true;
+		mSamples = 1;
+		mSegments = 0;
+	}
+
+	public boolean isActive() {
+		return mActive;
+	}
+
+	// drop the stroke without finishing it
+	public void cancel() {
+		mActive = false;
+	}
+
+	public void add(float x, float y) {
+		if (!mActive) {
+			return;
+		}
+
+		mSamples++;
+		float dx = x - mLastX;
+		float dy = y - mLastY;
+		if (dx * dx + dy * dy < mMinDistance * mMinDistance) {
+			mPendingX = x;
+			mPendingY = y;
+			mPending = true;
+			return;
+		}
+
+		accept(x, y);
+	}
+
+	// finish the curve at the last sample
+	public void end() {
+		if (!mActive) {
+			return;
+		}
+
+		if (mPending) {
+			accept(mPendingX, mPendingY);
+		}
+		if (mAccepted > 1) {
+			segment(mStartX, mStartY, mLastX, mLastY);
+		}
+		mActive = false;
+	}
+
+	public int getSampleCount() {
+		return mSamples;
+	}
+
+	public int getSegmentCount() {
+		return mSegments;
+	}
+
+	// samples too close to the last one, they never shaped the curve
+	public int getDroppedCount() {
+		return mSamples - mAccepted;
+	}
+
+	private void accept(float x, float y) {
+		mPending = false;
+		float midX = (mLastX + x) / 2f;
+		float midY = (mLastY + y) / 2f;
+		if (mAccepted == 1) {
+			// nothing to bend around yet
+			segment(mStartX, mStartY, midX, midY);
+		} else {
+			curve(mStartX, mStartY, mLastX, mLastY, midX, midY);
+		}
+
+		mStartX = midX;
+		mStartY = midY;
+		mLastX = x;
+		mLastY = y;
+		mAccepted++;
+	}
+
+	// quadratic from start to stop around control, the flattening error of
+	// n steps is |start - 2 control + stop| / (8 n^2)
+	private void curve(float startX, float startY, float controlX,
+			float controlY, float stopX, float stopY) {
+		float ddx = startX - 2f * controlX + stopX;
+		float ddy = startY - 2f * controlY + stopY;
+		float error = (float) Math.sqrt(ddx * ddx + ddy * ddy);
+		int steps = (int) Math.ceil(Math.sqrt(error / (8f * mTolerance)));
+		steps = Math.max(1, Math.min(steps, MAX_STEPS));
+
+		float lastX = startX;
+		float lastY = startY;
+		for (int step = 1; step <= steps; ++step) {
+			float t = step / (float) steps;
+			float u = 1f - t;
+			float x = u * u * startX + 2f * u * t * controlX + t * t * stopX;
+			float y = u * u * startY + 2f * u * t * controlY + t * t * stopY;
+			segment(lastX, lastY, x, y);
+			lastX = x;
+			lastY = y;
+		}
+	}
+
+	private void segment(float startX, float startY, float stopX,
+			float stopY) {
+		if (startX == stopX && startY == stopY) {
+			return;
+		}
+
+		mSegments++;
+		mListener.onSegment(startX, startY, stopX, stopY);
+	}
+}
@@ -0,0 +1,162 @@
+package me.dawson.promosaic;
+
+// per channel sums of all pixels above and left of every pixel corner of
+// an image, so the mean color of any rectangle takes four lookups, sums are
+// ints which wrap around, the sum of a rectangle is still exact as long as
+// it has less than 2^24 pixels
+public class SummedAreaTable {
+	public static final String TAG = "SummedAreaTable";
+
+	private int mWidth;
+	private int mHeight;
+
+	// rows added so far
+	private int mRows;
+
+	// (width + 1) x (height + 1) corners of alpha, red, green and blue sums
+	private int[] mSums;
+
+	// start an empty table of a width x height image, rows come with
+	// addRows from the top
+	public void reset(int width, int height) {
+		int length = (width + 1) * (height + 1) * 4;
+		if (mSums == null || mSums.length < length) {
+			mSums = new int[length];
+		}
+		mWidth = width;
+		mHeight = height;
+		mRows = 0;
+
+		// the top row of corners sums nothing
+		for (int index = 0; index < (width + 1) * 4; ++index) {
+			mSums[index] = 0;
+		}
+	}
+
+	// whole table of width x height pixels
+	public void build(int[] pixels, int width, int height) {
+		reset(width, height);
+		addRows(pixels, 0, height);
+	}
+
+	// the next rows of the image, width pixels each from offset
+	public void addRows(int[] pixels, int offset, int rows) {
+		int[] sums = mSums;
+		int stride = (mWidth + 1) * 4;
+		int end = Math.min(mRows + rows, mHeight);
+		for (int y = mRows; y < end; ++y) {
+			int above = y * stride;
+			int row = above + stride;
+			sums[row] = 0;
+			sums[row + 1] = 0;
+			sums[row + 2] = 0;
+			sums[row + 3] = 0;
+			int ta = 0, tr = 0, tg = 0, tb = 0;
+			for (int x = 0; x < mWidth; ++x) {
+				int rgb = pixels[offset++];
+				ta += rgb >>> 24;
+				tr += (rgb >> 16) & 0xff;
+				tg += (rgb >> 8) & 0xff;
+				tb += rgb & 0xff;
+				int corner = (x + 1) * 4;
+				sums[row + corner] = sums[above + corner] + ta;
+				sums[row + corner + 1] = sums[above + corner + 1] + tr;
+				sums[row + corner + 2] = sums[above + corner + 2] + tg;
+				sums[row + corner + 3] = sums[above + corner + 3] + tb;
+			}
+		}
+		mRows = end;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public boolean isComplete() {
+		return mSums != null && mRows == mHeight;
+	}
+
+	public long getByteCount() {
+		return mSums == null ? 0 : mSums.length * 4L;
+	}
+
+	// rounded mean color of pixels left to right and top to bottom, which
+	// have to be inside the table and not empty
+	public int getMean(int left, int top, int right, int bottom) {
+		int stride = (mWidth + 1) * 4;
+		int a = top * stride + left * 4;
+		int b = top * stride + right * 4;
+		int c = bottom * stride + left * 4;
+		int d = bottom * stride + right * 4;
+		long count = (long) (right - left) * (bottom - top);
+		int[] sums = mSums;
+		int color = 0;
+		for (int channel = 0; channel < 4; ++channel) {
+			long sum = (sums[d + channel] - sums[b + channel]
+					- sums[c + channel] + sums[a + channel]) & 0xffffffffL;
+			color = (color << 8) | MosaicEngine.getMean(sum, count);
+		}
+		return color;
+	}
+
+	// fill a width x height region at left, top of the image with the mean
+	// colors of the grid cells it meets, cells are aligned to the image
+	public void pixelate(int grid, int[] pixels, int left, int top,
+			int width, int height) {
+		pixelate(getEdges(grid, left, left + width, mWidth),
+				getEdges(grid, top, top + height, mHeight), pixels, left, top,
+				width, height);
+	}
+
+	// same with cells between the edges of columns and rows, in pixels of
+	// the image, which reach over the region
+	public void pixelate(int[] columns, int[] rows, int[] pixels, int left,
+			int top, int width, int height) {
+		int right = left + width;
+		int bottom = top + height;
+		for (int row = 0; row + 1 < rows.length; ++row) {
+			int cellTop = rows[row];
+			int cellBottom = rows[row + 1];
+			int from = Math.max(cellTop, top);
+			int to = Math.min(cellBottom, bottom);
+			if (to <= from) {
+				continue;
+			}
+			int rowStart = (from - top) * width;
+
+			// fill the first row of the band, then copy it downwards
+			for (int column = 0; column + 1 < columns.length; ++column) {
+				int cellLeft = columns[column];
+				int cellRight = columns[column + 1];
+				int l = Math.max(cellLeft, left) - left;
+				int r = Math.min(cellRight, right) - left;
+				if (r <= l) {
+					continue;
+				}
+				int color = getMean(cellLeft, cellTop, cellRight, cellBottom);
+				for (int x = l; x < r; ++x) {
+					pixels[rowStart + x] = color;
+				}
+			}
+			for (int y = from + 1; y < to; ++y) {
+				System.arraycopy(pixels, rowStart, pixels, (y - top) * width,
+						width);
+			}
+		}
+	}
+
+	// edges of grid wide cells over from to to, not past size
+	private static int[] getEdges(int grid, int from, int to, int size) {
+		int first = from / grid;
+		int last = (Math.max(to, from + 1) + grid - 1) / grid;
+		int[] edges = new int[last - first + 1];
+		for (int cell = first; cell <= last; ++cell) {
+			edges[cell - first] = Math.min(cell * grid, size);
+		}
+		return edges;
+	}
+}
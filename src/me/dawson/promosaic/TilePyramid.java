@@ -0,0 +1,281 @@
+package me.dawson.promosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+// coarser levels of a tiled layer, each half the size of the one below and
+// filtered down from four of its tiles, so a zoomed out view draws tiles
+// close to 1:1 instead of scaling the layer down every frame
+public class TilePyramid {
+	public static final String TAG = "TilePyramid";
+
+	// tiles of the layer itself, level 0
+	public interface Source {
+		// tile of the layer, null if there is nothing there
+		public Bitmap obtainTile(int index);
+
+		// done with a tile from obtainTile
+		public void releaseTile(int index, Bitmap tile);
+	}
+
+	private final LayerPool mPool;
+	private final TiledLayer mLayer;
+	private final Source mSource;
+
+	// level 1 and up, tiles which changed below since they were built
+	private final TiledLayer[] mLevels;
+	private final boolean[][] mDirty;
+
+	// level which is drawn, and its visible tiles
+	private int mLevel;
+	private final Rect mVisible;
+
+	private final Rect mBounds;
+	private final Rect mRange;
+	private final Rect mSrc;
+	private final Rect mDst;
+	private final Paint mPaint;
+
+	public TilePyramid(LayerPool pool, TiledLayer layer, Source source,
+			int maxLevels, int maxTiles) {
+		mPool = pool;
+		mLayer = layer;
+		mSource = source;
+
+		// stop once a level fits in one tile
+		int count = 0;
+		int width = layer.getWidth();
+		int height = layer.getHeight();
+		while (count < maxLevels
+				&& Math.max(width, height) > TiledLayer.TILE_SIZE) {
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+			count++;
+		}
+
+		mLevels = new TiledLayer[count];
+		mDirty = new boolean[count][];
+		width = layer.getWidth();
+		height = layer.getHeight();
+		for (int level = 0; level < count; ++level) {
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+			mLevels[level] = new TiledLayer(pool, width, height, maxTiles);
+			mDirty[level] = new boolean[mLevels[level].getTileCount()];
+		}
+
+		mVisible = new Rect();
+		mBounds = new Rect();
+		mRange = new Rect();
+		mSrc = new Rect();
+		mDst = new Rect();
+
+		// at exactly half the size filtering averages 2x2 pixels
+		mPaint = new Paint();
+		mPaint.setFilterBitmap(true);
+		mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+	}
+
+	// levels above the layer, level 0 is the layer itself
+	public int getLevelCount() {
+		return mLevels.length;
+	}
+
+	public TiledLayer getLevel(int level) {
+		return level == 0 ? mLayer : mLevels[level - 1];
+	}
+
+	// draw level and visible rect, in pixels of level 0, levels above it
+	// are dropped, the ones below stay as a cache to build it from
+	public void setVisible(int level, Rect rect) {
+		mLevel = Math.max(0, Math.min(level, mLevels.length));
+		for (int above = mLevel + 1; above <= mLevels.length; ++above) {
+			TiledLayer layer = getLevel(above);
+			for (int index = 0; index < layer.getTileCount(); ++index) {
+				layer.setExpected(index, false);
+			}
+			layer.clear();
+		}
+
+		if (mLevel == 0) {
+			mVisible.setEmpty();
+			return;
+		}
+
+		int size = 1 << mLevel;
+		mVisible.set(floorDiv(rect.left, size), floorDiv(rect.top, size),
+				(rect.right + size - 1) / size, (rect.bottom + size - 1)
+						/ size);
+	}
+
+	// level 0 changed in rect, in its pixels
+	public void invalidate(Rect rect) {
+		for (int level = 1; level <= mLevels.length; ++level) {
+			int size = 1 << level;
+			mBounds.set(floorDiv(rect.left, size), floorDiv(rect.top, size),
+					(rect.right + size - 1) / size, (rect.bottom + size - 1)
+							/ size);
+			TiledLayer layer = getLevel(level);
+			layer.getTileRange(mBounds, mRange);
+			for (int row = mRange.top; row < mRange.bottom; ++row) {
+				for (int column = mRange.left; column < mRange.right;
+						++column) {
+					mDirty[level - 1][layer.getIndex(column, row)] = true;
+				}
+			}
+		}
+	}
+
+	// build the visible tiles of the draw level which are missing or out of
+	// date, each one aside and swapped in, returns how many were built
+	public int update() {
+		if (mLevel == 0) {
+			return 0;
+		}
+
+		TiledLayer layer = getLevel(mLevel);
+		layer.getTileRange(mVisible, mRange);
+		int built = 0;
+		int count = layer.getTileCount();
+		for (int index = 0; index < count; ++index) {
+			int column = index % layer.getColumns();
+			int row = index / layer.getColumns();
+			boolean expected = column >= mRange.left
+					&& column < mRange.right && row >= mRange.top
+					&& row < mRange.bottom && hasContent(mLevel, index);
+			layer.setExpected(index, expected);
+			if (!expected) {
+				if (!isVisible(column, row)) {
+					continue;
+				}
+				// nothing below any more
+				layer.remove(index);
+				mDirty[mLevel - 1][index] = false;
+				continue;
+			}
+
+			if (layer.contains(index) && !mDirty[mLevel - 1][index]) {
+				continue;
+			}
+			if (!layer.contains(index) && !layer.reserve()) {
+				break;
+			}
+			layer.put(index, build(mLevel, index));
+			mDirty[mLevel - 1][index] = false;
+			built++;
+		}
+		return built;
+	}
+
+	public void clear() {
+		for (int level = 1; level <= mLevels.length; ++level) {
+			getLevel(level).clear();
+			boolean[] dirty = mDirty[level - 1];
+			for (int index = 0; index < dirty.length; ++index) {
+				dirty[index] = false;
+			}
+		}
+	}
+
+	private boolean isVisible(int column, int row) {
+		return column >= mRange.left && column < mRange.right
+				&& row >= mRange.top && row < mRange.bottom;
+	}
+
+	// whether any expected tile of level 0 is under the tile
+	private boolean hasContent(int level, int index) {
+		TiledLayer layer = getLevel(level);
+		int size = 1 << level;
+		int left = (index % layer.getColumns()) * size;
+		int top = (index / layer.getColumns()) * size;
+		int right = Math.min(left + size, mLayer.getColumns());
+		int bottom = Math.min(top + size, mLayer.getRows());
+		for (int row = top; row < bottom; ++row) {
+			for (int column = left; column < right; ++column) {
+				if (mLayer.isExpected(mLayer.getIndex(column, row))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// a new tile of level filtered down from the 2x2 tiles under it
+	private Bitmap build(int level, int index) {
+		TiledLayer layer = getLevel(level);
+		TiledLayer below = getLevel(level - 1);
+		Bitmap tile = mPool.obtainTile();
+		tile.eraseColor(Color.TRANSPARENT);
+		Canvas canvas = new Canvas(tile);
+
+		int half = TiledLayer.TILE_SIZE / 2;
+		int column = index % layer.getColumns();
+		int row = index / layer.getColumns();
+		for (int dy = 0; dy < 2; ++dy) {
+			for (int dx = 0; dx < 2; ++dx) {
+				int childColumn = column * 2 + dx;
+				int childRow = row * 2 + dy;
+				if (childColumn >= below.getColumns()
+						|| childRow >= below.getRows()) {
+					continue;
+				}
+
+				int child = below.getIndex(childColumn, childRow);
+				if (!hasContent(level - 1, child)) {
+					continue;
+				}
+				Bitmap bitmap = obtainTile(level - 1, child);
+				if (bitmap == null) {
+					continue;
+				}
+
+				below.getBounds(child, mBounds);
+				mSrc.set(0, 0, mBounds.width(), mBounds.height());
+				mDst.set(dx * half, dy * half, dx * half
+						+ (mBounds.width() + 1) / 2, dy * half
+						+ (mBounds.height() + 1) / 2);
+				canvas.drawBitmap(bitmap, mSrc, mDst, mPaint);
+				releaseTile(level - 1, child, bitmap);
+			}
+		}
+		return tile;
+	}
+
+	// resident tile of level if up to date, else built and kept if the
+	// budget allows
+	private Bitmap obtainTile(int level, int index) {
+		if (level == 0) {
+			return mSource.obtainTile(index);
+		}
+
+		TiledLayer layer = getLevel(level);
+		Bitmap tile = layer.get(index);
+		if (tile != null && !mDirty[level - 1][index]) {
+			return tile;
+		}
+
+		tile = build(level, index);
+		if (layer.contains(index) || layer.reserve()) {
+			layer.put(index, tile);
+			mDirty[level - 1][index] = false;
+		}
+		return tile;
+	}
+
+	private void releaseTile(int level, int index, Bitmap tile) {
+		if (level == 0) {
+			mSource.releaseTile(index, tile);
+		} else if (getLevel(level).get(index) != tile) {
+			mPool.recycleTile(tile);
+		}
+	}
+
+	private static int floorDiv(int value, int size) {
+		return (int) Math.floor(value / (float) size);
+	}
+}
@@ -0,0 +1,232 @@
+package me.dawson.promosaic;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+// image sized layer split into square tiles, tiles are only created when
+// needed and the least recently used ones are evicted when over budget
+public class TiledLayer {
+	public static final int TILE_SIZE = 256;
+	public static final long TILE_BYTES = TILE_SIZE * TILE_SIZE * 4L;
+
+	private final LayerPool mPool;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mColumns;
+	private final int mRows;
+	private final int mMaxTiles;
+
+	// resident tiles by index, in access order
+	private final LinkedHashMap<Integer, Bitmap> mTiles;
+
+	// tiles that should be resident, the missing ones are reported by draw
+	private final boolean[] mExpected;
+
+	// frame in which each tile was drawn last, those are never evicted
+	private final int[] mDrawnFrame;
+	private int mFrame;
+
+	private final Rect mBounds;
+	private final Rect mSrc;
+	private final Rect mDst;
+
+	public TiledLayer(LayerPool pool, int width, int height, int maxTiles) {
+		mPool = pool;
+		mWidth = width;
+		mHeight = height;
+		mColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+		mRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		mMaxTiles = maxTiles;
+
+		mTiles = new LinkedHashMap<Integer, Bitmap>(16, 0.75f, true);
+		mExpected = new boolean[mColumns * mRows];
+		mDrawnFrame = new int[mColumns * mRows];
+		mFrame = 1;
+
+		mBounds = new Rect();
+		mSrc = new Rect();
+		mDst = new Rect();
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getColumns() {
+		return mColumns;
+	}
+
+	public int getRows() {
+		return mRows;
+	}
+
+	public int getTileCount() {
+		return mColumns * mRows;
+	}
+
+	// image pixels covered by the tile, smaller than a tile at the edges
+	public void getBounds(int index, Rect bounds) {
+		int left = (index % mColumns) * TILE_SIZE;
+		int top = (index / mColumns) * TILE_SIZE;
+		bounds.set(left, top, Math.min(left + TILE_SIZE, mWidth),
+				Math.min(top + TILE_SIZE, mHeight));
+	}
+
+	// columns and rows of the tiles intersecting rect, right and bottom
+	// exclusive, empty if the rect is outside of the image
+	public void getTileRange(Rect rect, Rect range) {
+		int left = Math.max(rect.left, 0);
+		int top = Math.max(rect.top, 0);
+		int right = Math.min(rect.right, mWidth);
+		int bottom = Math.min(rect.bottom, mHeight);
+		if (right <= left || bottom <= top) {
+			range.setEmpty();
+			return;
+		}
+		range.set(left / TILE_SIZE, top / TILE_SIZE, (right - 1) / TILE_SIZE
+				+ 1, (bottom - 1) / TILE_SIZE + 1);
+	}
+
+	public int getIndex(int column, int row) {
+		return row * mColumns + column;
+	}
+
+	public synchronized Bitmap get(int index) {
+		return mTiles.get(index);
+	}
+
+	public synchronized boolean contains(int index) {
+		return mTiles.containsKey(index);
+	}
+
+	public synchronized int size() {
+		return mTiles.size();
+	}
+
+	public synchronized void setExpected(int index, boolean expected) {
+		mExpected[index] = expected;
+	}
+
+	public synchronized boolean isExpected(int index) {
+		return mExpected[index];
+	}
+
+	// make room for one more tile, false if every resident tile is on
+	// screen and the budget of the layer or of the pool is used up, a true
+	// reserve has to be followed by put of a tile which is not resident
+	public synchronized boolean reserve() {
+		if (mTiles.size() < mMaxTiles && mPool.reserveBytes(TILE_BYTES)) {
+			return true;
+		}
+
+		// an evicted tile hands its share of the pool to the new one
+		Iterator<Map.Entry<Integer, Bitmap>> iterator = mTiles.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Integer, Bitmap> entry = iterator.next();
+			if (mDrawnFrame[entry.getKey()] == mFrame) {
+				continue;
+			}
+			iterator.remove();
+			mPool.retireTile(entry.getValue());
+			return true;
+		}
+		return false;
+	}
+
+	// publish the tile, the replaced one goes back to the pool once no
+	// frame draws it any more
+	public synchronized void put(int index, Bitmap tile) {
+		Bitmap old = mTiles.put(index, tile);
+		if (old != null && old != tile) {
+			mPool.retireTile(old);
+		}
+	}
+
+	public synchronized void remove(int index) {
+		Bitmap old = mTiles.remove(index);
+		if (old != null) {
+			mPool.retireTile(old);
+			mPool.releaseBytes(TILE_BYTES);
+		}
+	}
+
+	public synchronized void clear() {
+		for (Bitmap tile : mTiles.values()) {
+			mPool.retireTile(tile);
+		}
+		mPool.releaseBytes(mTiles.size() * TILE_BYTES);
+		mTiles.clear();
+	}
+
+	// expected tiles which are not resident
+	public synchronized List<Integer> getMissing() {
+		List<Integer> missing = new ArrayList<Integer>();
+		for (int index = 0; index < mExpected.length; ++index) {
+			if (mExpected[index] && !mTiles.containsKey(index)) {
+				missing.add(index);
+			}
+		}
+		return missing;
+	}
+
+	// draw resident tiles scaled into dst, only those inside clip when it
+	// is not null, returns the number of expected tiles which could not be
+	// drawn there
+	public synchronized int draw(Canvas canvas, Rect dst, Rect clip,
+			Paint paint) {
+		mFrame++;
+		return drawTiles(canvas, dst, clip, paint);
+	}
+
+	// expected tiles inside clip which draw would miss, none means the
+	// layer alone covers what is visible of it
+	public synchronized int countMissing(Rect dst, Rect clip) {
+		return drawTiles(null, dst, clip, null);
+	}
+
+	// only counts when canvas is null
+	private int drawTiles(Canvas canvas, Rect dst, Rect clip, Paint paint) {
+		float scaleX = dst.width() / (float) mWidth;
+		float scaleY = dst.height() / (float) mHeight;
+		int missing = 0;
+		int count = getTileCount();
+		for (int index = 0; index < count; ++index) {
+			getBounds(index, mBounds);
+			mDst.set(dst.left + Math.round(mBounds.left * scaleX), dst.top
+					+ Math.round(mBounds.top * scaleY), dst.left
+					+ Math.round(mBounds.right * scaleX), dst.top
+					+ Math.round(mBounds.bottom * scaleY));
+			if (clip != null && !Rect.intersects(clip, mDst)) {
+				continue;
+			}
+
+			Bitmap tile = mTiles.get(index);
+			if (tile == null) {
+				if (mExpected[index]) {
+					missing++;
+				}
+				continue;
+			}
+
+			if (canvas != null) {
+				mSrc.set(0, 0, mBounds.width(), mBounds.height());
+				canvas.drawBitmap(tile, mSrc, mDst, paint);
+				mDrawnFrame[index] = mFrame;
+			}
+		}
+		return missing;
+	}
+}